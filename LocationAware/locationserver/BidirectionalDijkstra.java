@@ -0,0 +1,177 @@
+package locationserver;
+
+import java.util.*;
+
+/**
+ * Bidirectional variant of the space search in Dijkstra. One search
+ * runs forward from the source space(s) over legal portals, the other
+ * runs backward from the destination space(s) over the same portals
+ * reversed (Space.getIncomingPortals), and the two meet in the middle.
+ * Step weights are the same as Dijkstra.getWeight: the portal weight
+ * plus the centroid-to-centroid distance.
+ *
+ * Several sources (a building's transition spaces) and several targets
+ * (all spaces of a destination building) are allowed; each is seeded
+ * at distance zero. Like Dijkstra, an object is good for one search.
+ */
+public class BidirectionalDijkstra {
+
+    private IndexedHeap fwdHeap = new IndexedHeap();
+    private IndexedHeap bwdHeap = new IndexedHeap();
+    private double[] fwdDist  = new double[0];   // id -> distance from a source
+    private double[] bwdDist  = new double[0];   // id -> distance to a target
+    private int[] fwdParent   = new int[0];      // id -> previous id on the path
+    private int[] bwdParent   = new int[0];      // id -> next id on the path
+    private boolean[] fwdSettled = new boolean[0];
+    private boolean[] bwdSettled = new boolean[0];
+    private Space[] space = new Space[0];        // id -> space
+
+    private double best = Double.POSITIVE_INFINITY; // shortest path seen so far
+    private int meet = -1;                          // where the two searches meet
+    private int expanded = 0;
+
+    public BidirectionalDijkstra() {}
+
+    /** Seed the forward search with a source space. */
+    public void addSource(Space s) {
+	int id = s.getId();
+	ensureCapacity(id + 1);
+	if (fwdHeap.insertOrDecrease(id, 0.0)) {
+	    fwdDist[id] = 0.0;
+	    fwdParent[id] = -1;
+	    space[id] = s;
+	    touch(id);
+	}
+    }
+
+    /** Seed the backward search with a destination space. */
+    public void addTarget(Space s) {
+	int id = s.getId();
+	ensureCapacity(id + 1);
+	if (bwdHeap.insertOrDecrease(id, 0.0)) {
+	    bwdDist[id] = 0.0;
+	    bwdParent[id] = -1;
+	    space[id] = s;
+	    touch(id);
+	}
+    }
+
+    /** Number of spaces settled by both directions together. */
+    public int getExpandedCount() {
+	return expanded;
+    }
+
+    /**
+     * Run the search, returning the vector of spaces on the shortest
+     * path from a source to a target, or null if there is none.
+     */
+    public Vector findRoute(Route r) {
+	while (!fwdHeap.isEmpty() && !bwdHeap.isEmpty() &&
+	       fwdHeap.peekKey() + bwdHeap.peekKey() < best) {
+
+	    // expand the side with the smaller frontier
+	    if (fwdHeap.size() <= bwdHeap.size()) {
+		expandForward(r);
+	    } else {
+		expandBackward(r);
+	    }
+	}
+
+	if (meet < 0) {
+	    System.out.println("no path found!");
+	    return null;
+	}
+	Vector path = new Vector();
+	for (int i = meet; i >= 0; i = fwdParent[i]) {
+	    path.add(space[i]);
+	}
+	Collections.reverse(path);
+	for (int i = bwdParent[meet]; i >= 0; i = bwdParent[i]) {
+	    path.add(space[i]);
+	}
+	return path;
+    }
+
+    private void expandForward(Route r) {
+	int headId = fwdHeap.removeMin();
+	fwdSettled[headId] = true;
+	expanded++;
+	Space head = space[headId];
+
+	Iterator i = head.getPortals().iterator();
+	while (i.hasNext()) {
+	    Portal p = (Portal) i.next();
+	    Space next = p.spaces[1];
+	    if (next == null || !r.isLegal(p)) continue;
+	    int nextId = next.getId();
+	    ensureCapacity(nextId + 1);
+	    if (fwdSettled[nextId]) continue;
+
+	    double d = fwdDist[headId] + stepWeight(head, next, p, r);
+	    if (d < fwdDist[nextId]) {
+		fwdHeap.insertOrDecrease(nextId, d);
+		fwdDist[nextId] = d;
+		fwdParent[nextId] = headId;
+		space[nextId] = next;
+		touch(nextId);
+	    }
+	}
+    }
+
+    private void expandBackward(Route r) {
+	int headId = bwdHeap.removeMin();
+	bwdSettled[headId] = true;
+	expanded++;
+	Space head = space[headId];
+
+	Iterator i = head.getIncomingPortals().iterator();
+	while (i.hasNext()) {
+	    Portal p = (Portal) i.next();
+	    Space prev = p.spaces[0];
+	    if (prev == null || !r.isLegal(p)) continue;
+	    int prevId = prev.getId();
+	    ensureCapacity(prevId + 1);
+	    if (bwdSettled[prevId]) continue;
+
+	    double d = bwdDist[headId] + stepWeight(prev, head, p, r);
+	    if (d < bwdDist[prevId]) {
+		bwdHeap.insertOrDecrease(prevId, d);
+		bwdDist[prevId] = d;
+		bwdParent[prevId] = headId;
+		space[prevId] = prev;
+		touch(prevId);
+	    }
+	}
+    }
+
+    /** weight of stepping from a to b through portal p */
+    private static double stepWeight(Space a, Space b, Portal p, Route r) {
+	return p.getWeight(r) + a.getCenter().distance(b.getCenter());
+    }
+
+    /** a node's distance changed on one side; see if the paths now meet */
+    private void touch(int id) {
+	double d = fwdDist[id] + bwdDist[id];
+	if (d < best) {
+	    best = d;
+	    meet = id;
+	}
+    }
+
+    private void ensureCapacity(int n) {
+	if (n <= space.length) return;
+	int old = space.length;
+	int cap = Math.max(n, old * 2);
+	double[] fd = new double[cap]; System.arraycopy(fwdDist, 0, fd, 0, old);
+	double[] bd = new double[cap]; System.arraycopy(bwdDist, 0, bd, 0, old);
+	Arrays.fill(fd, old, cap, Double.POSITIVE_INFINITY);
+	Arrays.fill(bd, old, cap, Double.POSITIVE_INFINITY);
+	int[] fp = new int[cap]; System.arraycopy(fwdParent, 0, fp, 0, old);
+	int[] bp = new int[cap]; System.arraycopy(bwdParent, 0, bp, 0, old);
+	boolean[] fs = new boolean[cap]; System.arraycopy(fwdSettled, 0, fs, 0, old);
+	boolean[] bs = new boolean[cap]; System.arraycopy(bwdSettled, 0, bs, 0, old);
+	Space[] sp = new Space[cap]; System.arraycopy(space, 0, sp, 0, old);
+	fwdDist = fd; bwdDist = bd; fwdParent = fp; bwdParent = bp;
+	fwdSettled = fs; bwdSettled = bs; space = sp;
+    }
+}
@@ -0,0 +1,370 @@
+package locationserver;
+
+import java.util.*;
+import java.io.*;
+
+/**
+ * Directed graph in compressed sparse row form: the arcs leaving node u
+ * are targets[offsets[u]] .. targets[offsets[u+1]-1], with their weights
+ * at the same index. Nodes have coordinates, and optionally the portal
+ * they stand for. Everything is held in primitive arrays, so a search
+ * allocates nothing per node or arc.
+ *
+ * A space's Graph is converted with Graph.toCSR (see Space.getCSR); the
+ * space adjacency graph for preprocessing is built with fromSpaces.
+ * Weights of node graphs are stored as floats rounded down, so that
+ * distances over them never exceed the exact ones. The space adjacency
+ * graph keeps its weights as doubles, the same as Dijkstra.getWeight
+ * adds up, so that the hierarchy and landmarks built over it see the
+ * distances plain Dijkstra sees rather than ones a float apart.
+ */
+public class CSRGraph implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private int[] offsets;       // node -> first arc, length n+1
+    private int[] targets;       // arc -> head node
+    private float[] weights;     // arc -> weight, null if exactWeights
+    private double[] exactWeights; // arc -> weight, for fromSpaces; else null
+    private double[] x, y, z;    // node -> coordinates
+    private Portal[] portals;    // node -> portal, null for interior nodes
+
+    /**
+     * Build from a list of arcs. Arcs keep their relative order within
+     * each tail node. Coordinates and portals may be null.
+     */
+    public CSRGraph(int n, int[] tails, int[] heads, double[] w, int m,
+		    double[] x, double[] y, double[] z, Portal[] portals) {
+	this(n, tails, heads, w, m, x, y, z, portals, false);
+    }
+
+    // as above; if exact, the weights are kept as doubles
+    private CSRGraph(int n, int[] tails, int[] heads, double[] w, int m,
+		     double[] x, double[] y, double[] z, Portal[] portals,
+		     boolean exact) {
+	this.offsets = new int[n + 1];
+	for (int a = 0; a < m; a++) {
+	    this.offsets[tails[a] + 1]++;
+	}
+	for (int u = 0; u < n; u++) {
+	    this.offsets[u + 1] += this.offsets[u];
+	}
+	this.targets = new int[m];
+	if (exact) {
+	    this.exactWeights = new double[m];
+	} else {
+	    this.weights = new float[m];
+	}
+	int[] fill = new int[n];
+	for (int a = 0; a < m; a++) {
+	    int slot = this.offsets[tails[a]] + fill[tails[a]]++;
+	    this.targets[slot] = heads[a];
+	    if (exact) {
+		this.exactWeights[slot] = w[a];
+	    } else {
+		this.weights[slot] = roundDown(w[a]);
+	    }
+	}
+	this.x = (x == null) ? new double[n] : x;
+	this.y = (y == null) ? new double[n] : y;
+	this.z = (z == null) ? new double[n] : z;
+	this.portals = portals;
+    }
+
+    /** Wrap arrays that are already in CSR form. */
+    CSRGraph(int[] offsets, int[] targets, float[] weights,
+	     double[] x, double[] y, double[] z, Portal[] portals) {
+	this.offsets = offsets;
+	this.targets = targets;
+	this.weights = weights;
+	this.x = x;
+	this.y = y;
+	this.z = z;
+	this.portals = portals;
+    }
+
+    /** No-args constructor for serialized version */
+    public CSRGraph() { }
+
+    static float roundDown(double d) {
+	float f = (float) d;
+	if (f > d) f = Math.nextDown(f);
+	return f;
+    }
+
+    /**
+     * The space adjacency graph for one route type: node i is nodes[i],
+     * and each portal that is legal for the route is an arc weighted like
+     * Dijkstra.getWeight (portal weight plus centroid distance), kept as
+     * a double. nodeOfSpace maps space ids to node indices (-1 if
+     * absent); portals into spaces outside the array are dropped, as are
+     * self loops.
+     */
+    public static CSRGraph fromSpaces(Space[] nodes, int[] nodeOfSpace, Route r) {
+	int n = nodes.length;
+	int m = 0;
+	int[] tails = new int[16], heads = new int[16];
+	double[] w = new double[16];
+	double[] x = new double[n], y = new double[n], z = new double[n];
+	for (int u = 0; u < n; u++) {
+	    Position c = nodes[u].getCenter();
+	    x[u] = c.x; y[u] = c.y; z[u] = c.z;
+	    Iterator i = nodes[u].getPortals().iterator();
+	    while (i.hasNext()) {
+		Portal p = (Portal) i.next();
+		Space dest = p.spaces[1];
+		if (dest == null || !r.isLegal(p) || dest.getId() < 0 ||
+		    dest.getId() >= nodeOfSpace.length) continue;
+		int v = nodeOfSpace[dest.getId()];
+		if (v < 0 || v == u) continue;
+		if (m == tails.length) {
+		    tails = Arrays.copyOf(tails, 2*m);
+		    heads = Arrays.copyOf(heads, 2*m);
+		    w = Arrays.copyOf(w, 2*m);
+		}
+		tails[m] = u;
+		heads[m] = v;
+		w[m] = p.getWeight(r) + c.distance(dest.getCenter());
+		m++;
+	    }
+	}
+	return new CSRGraph(n, tails, heads, w, m, x, y, z, null, true);
+    }
+
+    /** The same graph with every arc reversed. */
+    public CSRGraph reverse() {
+	int n = this.getNumNodes();
+	int m = this.getNumArcs();
+	int[] tails = new int[m], heads = new int[m];
+	double[] w = new double[m];
+	for (int u = 0; u < n; u++) {
+	    for (int a = this.offsets[u]; a < this.offsets[u+1]; a++) {
+		tails[a] = this.targets[a];
+		heads[a] = u;
+		w[a] = this.getWeight(a);
+	    }
+	}
+	return new CSRGraph(n, tails, heads, w, m, this.x, this.y, this.z, this.portals,
+			    this.exactWeights != null);
+    }
+
+    public int getNumNodes() {
+	return this.offsets.length - 1;
+    }
+
+    public int getNumArcs() {
+	return this.targets.length;
+    }
+
+    public int[] getOffsets() {
+	return this.offsets;
+    }
+
+    public int[] getTargets() {
+	return this.targets;
+    }
+
+    /** Weights of the arcs of a node graph (null for fromSpaces graphs). */
+    public float[] getWeights() {
+	return this.weights;
+    }
+
+    public double getWeight(int a) {
+	return (this.exactWeights != null) ? this.exactWeights[a] : this.weights[a];
+    }
+
+    public Position getPosition(int u) {
+	return new Position(this.x[u], this.y[u], this.z[u]);
+    }
+
+    public double distance(int u, int v) {
+	return this.distance(u, this.x[v], this.y[v], this.z[v]);
+    }
+
+    // same arithmetic as Position.distance, so nearest-node ties come
+    // out the same as with Graph
+    private double distance(int u, double px, double py, double pz) {
+	double deltaX = Math.pow((this.x[u] - px), 2);
+	double deltaY = Math.pow((this.y[u] - py), 2);
+	double deltaZ = Math.pow((this.z[u] - pz), 2);
+	return Math.sqrt(deltaX + deltaY + deltaZ);
+    }
+
+    public boolean isPortal(int u) {
+	return this.portals != null && this.portals[u] != null;
+    }
+
+    public Portal getPortal(int u) {
+	return (this.portals == null) ? null : this.portals[u];
+    }
+
+    /** Portal nodes, in node order. */
+    public int[] getPortalNodes() {
+	int count = 0;
+	for (int u = 0; u < this.getNumNodes(); u++) if (this.isPortal(u)) count++;
+	int[] answer = new int[count];
+	count = 0;
+	for (int u = 0; u < this.getNumNodes(); u++) if (this.isPortal(u)) answer[count++] = u;
+	return answer;
+    }
+
+    /**
+     * Closest portal node to a position, or -1 if there are none (like
+     * Graph.getPortalNode(Position)).
+     */
+    public int getPortalNode(Position p) {
+	double minDistance = Double.MAX_VALUE;
+	int answer = -1;
+	for (int u = 0; u < this.getNumNodes(); u++) {
+	    if (!this.isPortal(u)) continue;
+	    double distance = this.distance(u, p.x, p.y, p.z);
+	    if (distance < minDistance) {
+		minDistance = distance;
+		answer = u;
+	    }
+	}
+	return answer;
+    }
+
+    /**
+     * Closest portal node whose portal joins the same two spaces as p,
+     * in either direction, or -1 (like Graph.getPortalNode(Portal)).
+     */
+    public int getPortalNode(Portal p) {
+	Position pos = p.getApproximatePosition();
+	double minDistance = Double.MAX_VALUE;
+	int answer = -1;
+	for (int u = 0; u < this.getNumNodes(); u++) {
+	    Portal curr = this.getPortal(u);
+	    if (curr == null) continue;
+	    if ((curr.spaces[0] == p.spaces[0] && curr.spaces[1] == p.spaces[1]) ||
+		(curr.spaces[0] == p.spaces[1] && curr.spaces[1] == p.spaces[0])) {
+		double distance = this.distance(u, pos.x, pos.y, pos.z);
+		if (distance < minDistance) {
+		    minDistance = distance;
+		    answer = u;
+		}
+	    }
+	}
+	return answer;
+    }
+
+    /**
+     * One-to-all Dijkstra: distance from source to every node, infinite
+     * where unreachable. If parent is given, it receives the shortest
+     * path tree (-1 for the source and unreached nodes).
+     */
+    public double[] distancesFrom(int source, int[] parent) {
+	int n = this.getNumNodes();
+	double[] dist = new double[n];
+	Arrays.fill(dist, Double.POSITIVE_INFINITY);
+	if (parent != null) Arrays.fill(parent, -1);
+	IndexedHeap heap = new IndexedHeap(Math.max(1, n));
+	dist[source] = 0.0;
+	heap.insertOrDecrease(source, 0.0);
+	while (!heap.isEmpty()) {
+	    int u = heap.removeMin();
+	    for (int a = this.offsets[u]; a < this.offsets[u+1]; a++) {
+		int v = this.targets[a];
+		double d = dist[u] + this.getWeight(a);
+		if (d < dist[v]) {
+		    dist[v] = d;
+		    if (parent != null) parent[v] = u;
+		    heap.insertOrDecrease(v, d);
+		}
+	    }
+	}
+	return dist;
+    }
+
+    /**
+     * Shortest path from one node to another, as the node sequence, or
+     * null if there is none.
+     */
+    public int[] shortestPath(int from, int to) {
+	int n = this.getNumNodes();
+	double[] dist = new double[n];
+	int[] parent = new int[n];
+	boolean[] settled = new boolean[n];
+	IndexedHeap heap = new IndexedHeap(Math.max(1, n));
+	heap.insertOrDecrease(from, 0.0);
+	parent[from] = -1;
+	while (!heap.isEmpty()) {
+	    int u = heap.removeMin();
+	    settled[u] = true;
+	    if (u == to) {
+		int length = 0;
+		for (int v = u; v >= 0; v = parent[v]) length++;
+		int[] path = new int[length];
+		for (int v = u; v >= 0; v = parent[v]) path[--length] = v;
+		return path;
+	    }
+	    for (int a = this.offsets[u]; a < this.offsets[u+1]; a++) {
+		int v = this.targets[a];
+		if (settled[v]) continue;
+		double d = dist[u] + this.getWeight(a);
+		if (d < dist[v] || !heap.contains(v)) {
+		    if (!heap.insertOrDecrease(v, d)) continue;
+		    dist[v] = d;
+		    parent[v] = u;
+		}
+	    }
+	}
+	return null;
+    }
+
+    /**
+     * Write a node graph (or null) to a snapshot: the number of nodes (-1
+     * for null), then the arrays, with portals as portal indices.
+     */
+    static void write(Snapshot.Out out, CSRGraph g) throws IOException {
+	if (g == null) {
+	    out.writeInt(-1);
+	    return;
+	}
+	int n = g.getNumNodes();
+	out.writeInt(n);
+	out.writeIntBlock(g.offsets);
+	out.writeIntBlock(g.targets);
+	out.writeFloatBlock(g.weights);
+	out.writeDoubleBlock(g.x);
+	out.writeDoubleBlock(g.y);
+	out.writeDoubleBlock(g.z);
+	out.writeBoolean(g.portals != null);
+	for (int u = 0; g.portals != null && u < n; u++) {
+	    out.writePortal(g.portals[u]);
+	}
+    }
+
+    /** Read a graph written by write(), or null. */
+    static CSRGraph read(Snapshot.In in) {
+	int n = in.readInt();
+	if (n < 0) {
+	    return null;
+	}
+	int[] offsets = in.readIntBlock(n + 1);
+	int m = offsets[n];
+	int[] targets = in.readIntBlock(m);
+	float[] weights = in.readFloatBlock(m);
+	double[] x = in.readDoubleBlock(n);
+	double[] y = in.readDoubleBlock(n);
+	double[] z = in.readDoubleBlock(n);
+	Portal[] portals = null;
+	if (in.readBoolean()) {
+	    portals = new Portal[n];
+	    for (int u = 0; u < n; u++) {
+		portals[u] = in.readPortal();
+	    }
+	}
+	return new CSRGraph(offsets, targets, weights, x, y, z, portals);
+    }
+
+    /** Bytes taken by the arrays of this graph. */
+    public long memoryBytes() {
+	long n = this.getNumNodes();
+	long weights = (this.exactWeights != null) ?
+	    8L * this.exactWeights.length : 4L * this.weights.length;
+	return 4L * (this.offsets.length + this.targets.length) + weights
+	    + 24L * n + ((this.portals == null) ? 0 : 4L * n);
+    }
+}
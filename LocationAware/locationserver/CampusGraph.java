@@ -0,0 +1,279 @@
+package locationserver;
+
+import java.util.*;
+
+/**
+ * One node graph for the whole campus, assembled once at startup from
+ * the graph each space built in precomputeSpaces (Space.getCSR), or,
+ * while a snapshot is read lazily, from the buildings read so far (see
+ * JavaLocationServer.getCampusGraph). It
+ * replaces Library.combineGraphs, which rebuilt and re-linked the
+ * graphs of the spaces on a route for every request.
+ *
+ * Node ids are global: the nodes of each space's graph occupy a block
+ * starting at base[space id], in their order in that graph. Arcs are
+ * held in a CSRGraph, with each node's interior arcs followed by its
+ * portal links. A portal A->B
+ * is linked, as in Graph.add, from its node in A to the closest B->A
+ * portal node of B (see Space.computePortalDistances).
+ *
+ * findNodesThroughSpaces searches a view of the graph restricted to the
+ * spaces of a route. As with combined graphs, a link made by a portal
+ * A->B is only part of the view if A comes before B on the route.
+ */
+public class CampusGraph {
+
+    private static final byte INTERIOR  = 0;
+    private static final byte LINK_FWD  = 1; // tail's space made the link
+    private static final byte LINK_BACK = 2; // head's space made the link
+
+    private CSRGraph graph;      // all nodes, interior arcs and links
+    private byte[] kind;         // arc -> INTERIOR, LINK_FWD or LINK_BACK
+    private int[] spaceOf;       // global id -> space id
+    private int[] base;          // space id -> first global id, -1 if no graph
+    private int[] size;          // space id -> number of nodes
+    private int numSpaces;
+
+    /**
+     * Assemble the graph from the spaces in the collection, which must
+     * have ids and graphs (spaces without a graph are left out).
+     */
+    public CampusGraph(Collection spaces) {
+	Space[] byId = new Space[0];
+	for (Iterator i = spaces.iterator(); i.hasNext();) {
+	    Space s = (Space)i.next();
+	    if (s.getId() >= byId.length) {
+		Space[] grown = new Space[Math.max(s.getId() + 1, 2 * byId.length)];
+		System.arraycopy(byId, 0, grown, 0, byId.length);
+		byId = grown;
+	    }
+	    byId[s.getId()] = s;
+	}
+	numSpaces = byId.length;
+
+	// blocks of global ids, one per space
+	CSRGraph[] local = new CSRGraph[numSpaces];
+	base = new int[numSpaces];
+	size = new int[numSpaces];
+	int n = 0;
+	for (int s = 0; s < numSpaces; s++) {
+	    base[s] = -1;
+	    if (byId[s] == null || byId[s].getCSR() == null) continue;
+	    local[s] = byId[s].getCSR();
+	    base[s] = n;
+	    size[s] = local[s].getNumNodes();
+	    n += size[s];
+	}
+	spaceOf = new int[n];
+	double[] x = new double[n], y = new double[n], z = new double[n];
+	Portal[] portals = new Portal[n];
+	for (int s = 0; s < numSpaces; s++) {
+	    for (int i = 0; i < size[s]; i++) {
+		int u = base[s] + i;
+		Position p = local[s].getPosition(i);
+		spaceOf[u] = s;
+		x[u] = p.x; y[u] = p.y; z[u] = p.z;
+		portals[u] = local[s].getPortal(i);
+	    }
+	}
+
+	// resolve portal links once: node of A->B in A <-> node it arrives at in B
+	int[][] portalNodesOf = new int[numSpaces][];
+	for (int s = 0; s < numSpaces; s++) {
+	    if (base[s] >= 0) portalNodesOf[s] = local[s].getPortalNodes();
+	}
+	int[] linkTail = new int[16], linkHead = new int[16];
+	int links = 0;
+	for (int s = 0; s < numSpaces; s++) {
+	    if (base[s] < 0) continue;
+	    int[] portalNodes = portalNodesOf[s];
+	    for (int i = 0; i < portalNodes.length; i++) {
+		Portal p = local[s].getPortal(portalNodes[i]);
+		Space dest = p.spaces[1];
+		if (dest == null || dest == byId[s] || dest.getId() < 0 ||
+		    dest.getId() >= numSpaces || byId[dest.getId()] != dest ||
+		    base[dest.getId()] < 0 || p.destIndex < 0) continue;
+		int[] destNodes = portalNodesOf[dest.getId()];
+		if (p.destIndex >= destNodes.length) continue;
+		if (links == linkTail.length) {
+		    linkTail = Arrays.copyOf(linkTail, 2 * links);
+		    linkHead = Arrays.copyOf(linkHead, 2 * links);
+		}
+		linkTail[links] = base[s] + portalNodes[i];
+		linkHead[links] = base[dest.getId()] + destNodes[p.destIndex];
+		links++;
+	    }
+	}
+
+	// count arcs: each space's own arcs, and each link in both directions
+	int[] first = new int[n + 1];
+	for (int s = 0; s < numSpaces; s++) {
+	    if (base[s] < 0) continue;
+	    int[] offsets = local[s].getOffsets();
+	    for (int i = 0; i < size[s]; i++) {
+		first[base[s] + i + 1] = offsets[i + 1] - offsets[i];
+	    }
+	}
+	for (int l = 0; l < links; l++) {
+	    first[linkTail[l] + 1]++;
+	    first[linkHead[l] + 1]++;
+	}
+	for (int u = 0; u < n; u++) {
+	    first[u + 1] += first[u];
+	}
+	int[] head = new int[first[n]];
+	float[] weight = new float[first[n]];
+	kind = new byte[first[n]];
+	int[] fill = new int[n];
+
+	// interior arcs first, in the order of each space's graph
+	for (int s = 0; s < numSpaces; s++) {
+	    if (base[s] < 0) continue;
+	    int[] offsets = local[s].getOffsets();
+	    int[] targets = local[s].getTargets();
+	    float[] weights = local[s].getWeights();
+	    for (int i = 0; i < size[s]; i++) {
+		int u = base[s] + i;
+		for (int b = offsets[i]; b < offsets[i + 1]; b++) {
+		    int a = first[u] + fill[u]++;
+		    head[a] = base[s] + targets[b];
+		    weight[a] = weights[b];
+		    kind[a] = INTERIOR;
+		}
+	    }
+	}
+	// then links, each in both directions
+	for (int l = 0; l < links; l++) {
+	    int u = linkTail[l], v = linkHead[l];
+	    float w = CSRGraph.roundDown(new Position(x[u], y[u], z[u]).distance(
+					 new Position(x[v], y[v], z[v])));
+	    int a = first[u] + fill[u]++;
+	    head[a] = v; weight[a] = w; kind[a] = LINK_FWD;
+	    a = first[v] + fill[v]++;
+	    head[a] = u; weight[a] = w; kind[a] = LINK_BACK;
+	}
+	graph = new CSRGraph(first, head, weight, x, y, z, portals);
+    }
+
+    public int getNumNodes() {
+	return graph.getNumNodes();
+    }
+
+    public int getNumArcs() {
+	return graph.getNumArcs();
+    }
+
+    /** Bytes taken by the arrays of this graph. */
+    public long memoryBytes() {
+	return graph.memoryBytes() + kind.length +
+	    4L * (spaceOf.length + base.length + size.length);
+    }
+
+    /**
+     * Shortest node path from the portal nodes of start to a portal
+     * node into or out of end, through the given spaces only (in route
+     * order). Returns the portals crossed on the way, in order, or null
+     * if there is no path. expanded[0], if given, receives the number of
+     * nodes settled.
+     */
+    public Vector findPath(Vector spaces, Space start, Space end, int[] expanded) {
+	// the view: rank of each space on the route, and where its nodes go
+	int[] rank = new int[numSpaces];   // space id -> position + 1, 0 if not in view
+	int[] offset = new int[spaces.size()];
+	int viewSize = 0;
+	for (int i = 0; i < spaces.size(); i++) {
+	    int s = ((Space)spaces.get(i)).getId();
+	    if (s < 0 || s >= numSpaces || base[s] < 0 || rank[s] != 0) continue;
+	    rank[s] = i + 1;
+	    offset[i] = viewSize;
+	    viewSize += size[s];
+	}
+	int[] global = new int[viewSize];      // view index -> global id
+	for (int i = 0; i < spaces.size(); i++) {
+	    int s = ((Space)spaces.get(i)).getId();
+	    if (s < 0 || s >= numSpaces || rank[s] != i + 1) continue;
+	    for (int j = 0; j < size[s]; j++) global[offset[i] + j] = base[s] + j;
+	}
+
+	int[] first = graph.getOffsets();
+	int[] head = graph.getTargets();
+	float[] weight = graph.getWeights();
+	double[] dist = new double[viewSize];
+	int[] parent = new int[viewSize];      // view index of parent, -1 for sources
+	boolean[] settled = new boolean[viewSize];
+	IndexedHeap heap = new IndexedHeap(Math.max(1, viewSize));
+
+	// sources: the start space's portal nodes, in the order of its portals
+	int startId = start.getId();
+	if (startId >= 0 && startId < numSpaces && rank[startId] != 0) {
+	    for (int i = 0; i < size[startId]; i++) {
+		if (!graph.isPortal(base[startId] + i)) continue;
+		int v = offset[rank[startId] - 1] + i;
+		if (heap.insertOrDecrease(v, 0.0)) {
+		    dist[v] = 0.0;
+		    parent[v] = -1;
+		}
+	    }
+	}
+
+	int count = 0;
+	while (!heap.isEmpty()) {
+	    int uv = heap.removeMin();
+	    settled[uv] = true;
+	    count++;
+	    int u = global[uv];
+	    Portal up = graph.getPortal(u);
+
+	    if (up != null && (up.spaces[0] == end || up.spaces[1] == end)) {
+		if (expanded != null) expanded[0] = count;
+		return getPortals(uv, parent, global, end);
+	    }
+
+	    int su = spaceOf[u];
+	    for (int a = first[u]; a < first[u + 1]; a++) {
+		int v = head[a];
+		int sv = spaceOf[v];
+		if (rank[sv] == 0) continue;
+		if (kind[a] == LINK_FWD && !(rank[su] < rank[sv])) continue;
+		if (kind[a] == LINK_BACK && !(rank[sv] < rank[su])) continue;
+
+		int vv = offset[rank[sv] - 1] + (v - base[sv]);
+		if (settled[vv]) continue;
+		double d = dist[uv] + weight[a];
+		if (d < dist[vv] || !heap.contains(vv)) {
+		    if (!heap.insertOrDecrease(vv, d)) continue;
+		    dist[vv] = d;
+		    parent[vv] = uv;
+		}
+	    }
+	}
+	if (expanded != null) expanded[0] = count;
+	System.out.println("no path found!");
+	return null;
+    }
+
+    /**
+     * Portals crossed on the path ending at view index last: the portal
+     * of each node whose successor lies in another space, and the
+     * portal of the last node if it leads into end. Portal nodes a path
+     * only passes by, inside a space, are not crossed.
+     */
+    private Vector getPortals(int last, int[] parent, int[] global, Space end) {
+	int length = 0;
+	for (int i = last; i >= 0; i = parent[i]) length++;
+	int[] path = new int[length];
+	for (int i = last; i >= 0; i = parent[i]) path[--length] = global[i];
+
+	Vector portals = new Vector();
+	for (int i = 0; i + 1 < path.length; i++) {
+	    if (spaceOf[path[i]] != spaceOf[path[i + 1]]) {
+		portals.add(graph.getPortal(path[i]));
+	    }
+	}
+	Portal p = graph.getPortal(path[path.length - 1]);
+	if (p.spaces[1] == end && p.spaces[0] != end) {
+	    portals.add(p);
+	}
+	return portals;
+    }
+}
@@ -0,0 +1,552 @@
+package locationserver;
+
+import java.util.*;
+import java.io.*;
+
+/**
+ * Contraction hierarchy over the space adjacency graph for one route
+ * type. Nodes are spaces, arcs are the portals that are legal for the
+ * route type, weighted like Dijkstra.getWeight (portal weight plus the
+ * centroid-to-centroid distance; the cheapest portal wins when two
+ * spaces share several), as given by CSRGraph.fromSpaces.
+ *
+ * The hierarchy is built once during BATCH_OUT: nodes are contracted
+ * in order of importance, adding shortcut arcs wherever a shortest path
+ * ran through the contracted node. A query is then a bidirectional
+ * Dijkstra that only climbs upward in the order, which settles a few
+ * hundred spaces instead of most of campus. Shortcuts remember the node
+ * they bypass, so paths are unpacked back into the plain space sequence.
+ *
+ * Nodes are stored by space name and bound to the loaded spaces with
+ * bind(), because space ids are not stable between runs.
+ */
+public class ContractionHierarchy implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  // limits on the local witness searches run while contracting
+  private static final int WITNESS_SETTLE_LIMIT = 500;
+
+  private String routeType;
+  private String[] names;      // node -> space name
+  private int[] rank;          // node -> position in contraction order
+
+  // upward arcs leaving each node (rank[head] > rank[node])
+  private int[] fwdFirst;      // node -> first arc, CSR offsets
+  private int[] fwdHead;
+  private double[] fwdWeight;
+  private int[] fwdMid;        // bypassed node, -1 for a real portal
+
+  // upward arcs entering each node (rank[tail] > rank[node])
+  private int[] bwdFirst;
+  private int[] bwdTail;
+  private double[] bwdWeight;
+  private int[] bwdMid;
+
+  private int shortcuts;
+
+  // bound to the running server, see bind()
+  private transient Space[] spaceOf;     // node -> space
+  private transient int[] nodeOfSpace;   // space id -> node, -1 if absent
+
+  /** No-args constructor for serialized version */
+  public ContractionHierarchy() { }
+
+  public String getRouteType() {
+    return this.routeType;
+  }
+
+  public int getNumNodes() {
+    return this.names.length;
+  }
+
+  public int getNumShortcuts() {
+    return this.shortcuts;
+  }
+
+  /**
+   * Build the hierarchy for the spaces in the collection (which must
+   * have ids, see JavaLocationServer.numberSpaces) and the type of the
+   * given route.
+   */
+  public static ContractionHierarchy build(Collection spaces, Route r) {
+    ContractionHierarchy ch = new ContractionHierarchy();
+    ch.routeType = r.getType();
+
+    // number the nodes, sorted by name so the output is deterministic
+    Space[] nodes = (Space[]) spaces.toArray(new Space[spaces.size()]);
+    Arrays.sort(nodes, new Comparator() {
+	public int compare(Object a, Object b) {
+	  return ((Space) a).getName().compareTo(((Space) b).getName());
+	}
+      });
+    int n = nodes.length;
+    int maxId = 0;
+    for (int i = 0; i < n; i++) {
+      maxId = Math.max(maxId, nodes[i].getId());
+    }
+    int[] nodeOfSpace = new int[maxId + 1];
+    Arrays.fill(nodeOfSpace, -1);
+    ch.names = new String[n];
+    for (int i = 0; i < n; i++) {
+      ch.names[i] = nodes[i].getName();
+      nodeOfSpace[nodes[i].getId()] = i;
+    }
+
+    // original arcs
+    ArcList[] out = new ArcList[n];
+    ArcList[] in  = new ArcList[n];
+    for (int i = 0; i < n; i++) {
+      out[i] = new ArcList();
+      in[i]  = new ArcList();
+    }
+    CSRGraph g = CSRGraph.fromSpaces(nodes, nodeOfSpace, r);
+    int[] offsets = g.getOffsets();
+    int[] targets = g.getTargets();
+    for (int u = 0; u < n; u++) {
+      for (int a = offsets[u]; a < offsets[u+1]; a++) {
+	out[u].put(targets[a], g.getWeight(a), -1);
+	in[targets[a]].put(u, g.getWeight(a), -1);
+      }
+    }
+
+    ch.contract(out, in);
+    ch.spaceOf = nodes;
+    ch.nodeOfSpace = nodeOfSpace;
+    return ch;
+  }
+
+  /**
+   * Attach the hierarchy to the spaces of a running server. Spaces are
+   * looked up by name; returns the number of nodes that could not be
+   * found (queries touching those fall back to plain search).
+   */
+  public int bind(Map roomHashMap) {
+    this.spaceOf = new Space[this.names.length];
+    int maxId = -1;
+    int missing = 0;
+    for (int i = 0; i < this.names.length; i++) {
+      this.spaceOf[i] = (Space) roomHashMap.get(this.names[i]);
+      if (this.spaceOf[i] == null) {
+	missing++;
+      } else {
+	maxId = Math.max(maxId, this.spaceOf[i].getId());
+      }
+    }
+    this.nodeOfSpace = new int[maxId + 1];
+    Arrays.fill(this.nodeOfSpace, -1);
+    for (int i = 0; i < this.names.length; i++) {
+      if (this.spaceOf[i] != null) {
+	this.nodeOfSpace[this.spaceOf[i].getId()] = i;
+      }
+    }
+    return missing;
+  }
+
+  /** node of a space, or -1 if the space is not in the hierarchy */
+  private int nodeOf(Space s) {
+    if (s == null) return -1;
+    int id = s.getId();
+    if (id < 0 || id >= this.nodeOfSpace.length) return -1;
+    int node = this.nodeOfSpace[id];
+    if (node < 0 || this.spaceOf[node] != s) return -1;
+    return node;
+  }
+
+  /**
+   * Returns true if every space in the collection is a node of the
+   * hierarchy, i.e. it can answer a query from or to them.
+   */
+  public boolean covers(Collection spaces) {
+    Iterator i = spaces.iterator();
+    while (i.hasNext()) {
+      if (this.nodeOf((Space) i.next()) < 0) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Shortest path query between any of the sources and any of the
+   * targets. Returns the unpacked vector of spaces, or null if there is
+   * no path. expanded[0], if given, receives the number of nodes settled.
+   */
+  public Vector findRoute(Collection sources, Collection targets, int[] expanded) {
+    int n = this.names.length;
+    double[] fwdDist = new double[n];
+    double[] bwdDist = new double[n];
+    Arrays.fill(fwdDist, Double.POSITIVE_INFINITY);
+    Arrays.fill(bwdDist, Double.POSITIVE_INFINITY);
+    int[] fwdParent = new int[n];
+    int[] fwdArc = new int[n];   // arc used to reach the node
+    int[] bwdParent = new int[n];
+    int[] bwdArc = new int[n];
+    IndexedHeap fwdHeap = new IndexedHeap(n);
+    IndexedHeap bwdHeap = new IndexedHeap(n);
+
+    double best = Double.POSITIVE_INFINITY;
+    int meet = -1;
+
+    for (Iterator i = sources.iterator(); i.hasNext();) {
+      int s = this.nodeOf((Space) i.next());
+      if (s >= 0 && fwdHeap.insertOrDecrease(s, 0.0)) {
+	fwdDist[s] = 0.0;
+	fwdParent[s] = -1;
+      }
+    }
+    for (Iterator i = targets.iterator(); i.hasNext();) {
+      int t = this.nodeOf((Space) i.next());
+      if (t >= 0 && bwdHeap.insertOrDecrease(t, 0.0)) {
+	bwdDist[t] = 0.0;
+	bwdParent[t] = -1;
+	if (fwdDist[t] < best) { best = fwdDist[t]; meet = t; }
+      }
+    }
+
+    int settled = 0;
+    boolean forward = true;
+    while (true) {
+      boolean fwdOpen = !fwdHeap.isEmpty() && fwdHeap.peekKey() < best;
+      boolean bwdOpen = !bwdHeap.isEmpty() && bwdHeap.peekKey() < best;
+      if (!fwdOpen && !bwdOpen) break;
+      if (!fwdOpen) forward = false;
+      if (!bwdOpen) forward = true;
+
+      if (forward) {
+	int u = fwdHeap.removeMin();
+	settled++;
+	for (int a = this.fwdFirst[u]; a < this.fwdFirst[u+1]; a++) {
+	  int v = this.fwdHead[a];
+	  double d = fwdDist[u] + this.fwdWeight[a];
+	  if (d < fwdDist[v]) {
+	    fwdHeap.insertOrDecrease(v, d);
+	    fwdDist[v] = d;
+	    fwdParent[v] = u;
+	    fwdArc[v] = a;
+	    if (d + bwdDist[v] < best) { best = d + bwdDist[v]; meet = v; }
+	  }
+	}
+      } else {
+	int u = bwdHeap.removeMin();
+	settled++;
+	for (int a = this.bwdFirst[u]; a < this.bwdFirst[u+1]; a++) {
+	  int v = this.bwdTail[a];
+	  double d = bwdDist[u] + this.bwdWeight[a];
+	  if (d < bwdDist[v]) {
+	    bwdHeap.insertOrDecrease(v, d);
+	    bwdDist[v] = d;
+	    bwdParent[v] = u;
+	    bwdArc[v] = a;
+	    if (d + fwdDist[v] < best) { best = d + fwdDist[v]; meet = v; }
+	  }
+	}
+      }
+      forward = !forward;
+    }
+    if (expanded != null) expanded[0] = settled;
+    if (meet < 0) {
+      return null;
+    }
+
+    // unpack the upward halves into a plain node sequence: walk back
+    // from the meeting node to a source, then on to a target
+    Vector nodePath = new Vector();
+    int v = meet;
+    for (; fwdParent[v] >= 0; v = fwdParent[v]) {
+      Vector piece = new Vector();
+      this.unpack(fwdParent[v], v, this.fwdMid[fwdArc[v]], piece);
+      Collections.reverse(piece);
+      nodePath.addAll(piece);
+    }
+    nodePath.add(Integer.valueOf(v));
+    Collections.reverse(nodePath);
+    for (v = meet; bwdParent[v] >= 0; v = bwdParent[v]) {
+      this.unpack(v, bwdParent[v], this.bwdMid[bwdArc[v]], nodePath);
+    }
+
+    Vector path = new Vector();
+    for (int i = 0; i < nodePath.size(); i++) {
+      path.add(this.spaceOf[((Integer) nodePath.get(i)).intValue()]);
+    }
+    return path;
+  }
+
+  /**
+   * Append the nodes of arc u->v, excluding u, to the vector. mid is
+   * the node bypassed by the arc, or -1 for an original arc.
+   */
+  private void unpack(int u, int v, int mid, Vector out) {
+    if (mid < 0) {
+      out.add(Integer.valueOf(v));
+      return;
+    }
+    // u->mid is an upward arc into mid, mid->v an upward arc out of mid
+    this.unpack(u, mid, this.findArc(this.bwdFirst, this.bwdTail, this.bwdWeight,
+				     this.bwdMid, mid, u), out);
+    this.unpack(mid, v, this.findArc(this.fwdFirst, this.fwdHead, this.fwdWeight,
+				     this.fwdMid, mid, v), out);
+  }
+
+  /** mid of the cheapest arc at node between node and other */
+  private int findArc(int[] first, int[] other, double[] weight, int[] mid,
+		      int node, int target) {
+    int best = -1;
+    for (int a = first[node]; a < first[node+1]; a++) {
+      if (other[a] == target && (best < 0 || weight[a] < weight[best])) {
+	best = a;
+      }
+    }
+    return mid[best];
+  }
+
+  /** Write the hierarchy to a snapshot (see Snapshot). */
+  void write(Snapshot.Out out) throws IOException {
+    out.writeString(this.routeType);
+    out.writeStrings(this.names);
+    out.writeInts(this.rank);
+    out.writeInts(this.fwdFirst);
+    out.writeInts(this.fwdHead);
+    out.writeDoubles(this.fwdWeight);
+    out.writeInts(this.fwdMid);
+    out.writeInts(this.bwdFirst);
+    out.writeInts(this.bwdTail);
+    out.writeDoubles(this.bwdWeight);
+    out.writeInts(this.bwdMid);
+    out.writeInt(this.shortcuts);
+  }
+
+  /** Read a hierarchy written by write(); bind() it before use. */
+  static ContractionHierarchy read(Snapshot.In in) {
+    ContractionHierarchy ch = new ContractionHierarchy();
+    ch.routeType = in.readString();
+    ch.names = in.readStrings();
+    ch.rank = in.readInts();
+    ch.fwdFirst = in.readInts();
+    ch.fwdHead = in.readInts();
+    ch.fwdWeight = in.readDoubles();
+    ch.fwdMid = in.readInts();
+    ch.bwdFirst = in.readInts();
+    ch.bwdTail = in.readInts();
+    ch.bwdWeight = in.readDoubles();
+    ch.bwdMid = in.readInts();
+    ch.shortcuts = in.readInt();
+    return ch;
+  }
+
+  /**
+   * Bytes taken by the arc arrays, for perf reporting.
+   */
+  public long memoryBytes() {
+    long arcs = this.fwdHead.length + this.bwdTail.length;
+    return 4L * (this.rank.length + this.fwdFirst.length + this.bwdFirst.length)
+      + arcs * (4 + 8 + 4);
+  }
+
+  ///////////////////////////////////////////////////////////
+  // PREPROCESSING
+  ///////////////////////////////////////////////////////////
+
+  /**
+   * Contract all nodes in order of edge difference (shortcuts added
+   * minus arcs removed) plus the number of contracted neighbors, with
+   * lazy updates of the priorities. Fills in rank and the upward arcs.
+   */
+  private void contract(ArcList[] out, ArcList[] in) {
+    int n = out.length;
+    boolean[] contracted = new boolean[n];
+    int[] deleted = new int[n];
+    this.rank = new int[n];
+    Witness witness = new Witness(n);
+
+    IndexedHeap queue = new IndexedHeap(n);
+    for (int v = 0; v < n; v++) {
+      queue.insertOrDecrease(v, this.priority(v, out, in, contracted, deleted, witness));
+    }
+
+    int order = 0;
+    while (!queue.isEmpty()) {
+      int v = queue.removeMin();
+      // lazy update: re-evaluate, and put back if no longer the minimum
+      double p = this.priority(v, out, in, contracted, deleted, witness);
+      if (!queue.isEmpty() && p > queue.peekKey()) {
+	queue.insertOrDecrease(v, p);
+	continue;
+      }
+
+      this.shortcuts += this.contractNode(v, out, in, contracted, witness, false);
+      contracted[v] = true;
+      this.rank[v] = order++;
+
+      // neighbors' priorities depend on v; bump their deleted count
+      for (int a = 0; a < out[v].n; a++) {
+	int x = out[v].to[a];
+	if (!contracted[x]) deleted[x]++;
+      }
+      for (int a = 0; a < in[v].n; a++) {
+	int u = in[v].to[a];
+	if (!contracted[u]) deleted[u]++;
+      }
+    }
+
+    // split arcs into the upward forward and backward graphs
+    int fwdCount = 0, bwdCount = 0;
+    for (int u = 0; u < n; u++) {
+      for (int a = 0; a < out[u].n; a++) {
+	if (this.rank[out[u].to[a]] > this.rank[u]) fwdCount++;
+	else bwdCount++;
+      }
+    }
+    this.fwdFirst = new int[n+1];
+    this.fwdHead = new int[fwdCount];
+    this.fwdWeight = new double[fwdCount];
+    this.fwdMid = new int[fwdCount];
+    this.bwdFirst = new int[n+1];
+    this.bwdTail = new int[bwdCount];
+    this.bwdWeight = new double[bwdCount];
+    this.bwdMid = new int[bwdCount];
+
+    for (int u = 0; u < n; u++) {
+      for (int a = 0; a < out[u].n; a++) {
+	int x = out[u].to[a];
+	if (this.rank[x] > this.rank[u]) this.fwdFirst[u+1]++;
+	else this.bwdFirst[x+1]++;
+      }
+    }
+    for (int v = 0; v < n; v++) {
+      this.fwdFirst[v+1] += this.fwdFirst[v];
+      this.bwdFirst[v+1] += this.bwdFirst[v];
+    }
+    int[] fwdFill = new int[n];
+    int[] bwdFill = new int[n];
+    for (int u = 0; u < n; u++) {
+      for (int a = 0; a < out[u].n; a++) {
+	int x = out[u].to[a];
+	if (this.rank[x] > this.rank[u]) {
+	  int slot = this.fwdFirst[u] + fwdFill[u]++;
+	  this.fwdHead[slot] = x;
+	  this.fwdWeight[slot] = out[u].w[a];
+	  this.fwdMid[slot] = out[u].mid[a];
+	} else {
+	  int slot = this.bwdFirst[x] + bwdFill[x]++;
+	  this.bwdTail[slot] = u;
+	  this.bwdWeight[slot] = out[u].w[a];
+	  this.bwdMid[slot] = out[u].mid[a];
+	}
+      }
+    }
+  }
+
+  private double priority(int v, ArcList[] out, ArcList[] in,
+			  boolean[] contracted, int[] deleted, Witness witness) {
+    int added = this.contractNode(v, out, in, contracted, witness, true);
+    int removed = 0;
+    for (int a = 0; a < out[v].n; a++) if (!contracted[out[v].to[a]]) removed++;
+    for (int a = 0; a < in[v].n; a++) if (!contracted[in[v].to[a]]) removed++;
+    return (added - removed) + deleted[v];
+  }
+
+  /**
+   * Contract node v (or only count the shortcuts it needs, if simulate
+   * is set): for each pair of remaining neighbors u->v->x, add the
+   * shortcut u->x unless a witness path avoiding v is no longer.
+   */
+  private int contractNode(int v, ArcList[] out, ArcList[] in,
+			   boolean[] contracted, Witness witness, boolean simulate) {
+    int added = 0;
+    for (int a = 0; a < in[v].n; a++) {
+      int u = in[v].to[a];
+      if (contracted[u]) continue;
+      double wIn = in[v].w[a];
+
+      double maxDist = 0.0;
+      for (int b = 0; b < out[v].n; b++) {
+	int x = out[v].to[b];
+	if (contracted[x] || x == u) continue;
+	maxDist = Math.max(maxDist, wIn + out[v].w[b]);
+      }
+      if (maxDist == 0.0) continue;
+      witness.run(u, v, maxDist, out, contracted);
+
+      for (int b = 0; b < out[v].n; b++) {
+	int x = out[v].to[b];
+	if (contracted[x] || x == u) continue;
+	double via = wIn + out[v].w[b];
+	if (witness.distance(x) <= via) continue;
+	added++;
+	if (!simulate) {
+	  out[u].put(x, via, v);
+	  in[x].put(u, via, v);
+	}
+      }
+    }
+    return added;
+  }
+
+  /** growable list of weighted arcs at one node */
+  private static class ArcList {
+    int[] to = new int[4];
+    double[] w = new double[4];
+    int[] mid = new int[4];
+    int n = 0;
+
+    /** add an arc, or lower the weight of an existing one to the same node */
+    void put(int target, double weight, int via) {
+      for (int i = 0; i < n; i++) {
+	if (to[i] == target) {
+	  if (weight < w[i]) { w[i] = weight; mid[i] = via; }
+	  return;
+	}
+      }
+      if (n == to.length) {
+	to = Arrays.copyOf(to, 2*n);
+	w = Arrays.copyOf(w, 2*n);
+	mid = Arrays.copyOf(mid, 2*n);
+      }
+      to[n] = target; w[n] = weight; mid[n] = via; n++;
+    }
+  }
+
+  /** bounded local Dijkstra over uncontracted nodes, skipping one node */
+  private static class Witness {
+    double[] dist;
+    int[] touched;
+    int numTouched = 0;
+    IndexedHeap heap;
+
+    Witness(int n) {
+      dist = new double[n];
+      Arrays.fill(dist, Double.POSITIVE_INFINITY);
+      touched = new int[n];
+      heap = new IndexedHeap(n);
+    }
+
+    double distance(int x) {
+      return dist[x];
+    }
+
+    void run(int source, int skip, double maxDist, ArcList[] out, boolean[] contracted) {
+      for (int i = 0; i < numTouched; i++) dist[touched[i]] = Double.POSITIVE_INFINITY;
+      numTouched = 0;
+      heap.clear();
+
+      dist[source] = 0.0;
+      touched[numTouched++] = source;
+      heap.insertOrDecrease(source, 0.0);
+      int settled = 0;
+      while (!heap.isEmpty() && settled < WITNESS_SETTLE_LIMIT) {
+	if (heap.peekKey() > maxDist) break;
+	int u = heap.removeMin();
+	settled++;
+	for (int a = 0; a < out[u].n; a++) {
+	  int x = out[u].to[a];
+	  if (x == skip || contracted[x]) continue;
+	  double d = dist[u] + out[u].w[a];
+	  if (d < dist[x]) {
+	    if (dist[x] == Double.POSITIVE_INFINITY) touched[numTouched++] = x;
+	    dist[x] = d;
+	    heap.insertOrDecrease(x, d);
+	  }
+	}
+      }
+    }
+  }
+}
@@ -7,90 +7,168 @@ import java.awt.geom.*;
 * This class implements Dijkstra's shortest path graph search algorithm.
 * Child classes overide the FoundDest function to account for Space, Building,
 * or Graph.Node destination types.
+*
+* Search state is kept per query in arrays indexed by integer node ids
+* (see getId): tentative distance, parent id and the node itself. The
+* frontier is an IndexedHeap with decrease-key, and the path is only
+* reconstructed once the destination is settled. A Dijkstra object is
+* therefore good for exactly one search.
+*
+* Subclasses may supply a lower bound on the remaining distance through
+* getHeuristic, which turns the search into A*. The bound must never
+* overestimate, and must obey the triangle inequality over the edge
+* weights, for the returned path to stay the shortest one. A set of
+* landmark bounds (see Landmarks.Potential) can be given to any space
+* search with setPotential.
 */
 
 public abstract class Dijkstra {
-    
+
+    private IndexedHeap heap = new IndexedHeap();
+    private double[] dist    = new double[0];  // id -> best known distance
+    private int[] parent     = new int[0];     // id -> parent id, -1 for sources
+    private Object[] node    = new Object[0];  // id -> node object
+    private boolean[] settled = new boolean[0];
+    private int expanded = 0;                  // nodes settled so far
+    private Landmarks.Potential potential = null; // landmark lower bounds
+
     public abstract boolean FoundDest(Object head, Object end);
-    
-    public Collection getNeighbors(Vector shortestPath, Object head, Route r) {
-	return Library.getSpacesExcludingWithWeights(shortestPath, (Space)head, r);
+
+    /** Integer id of a node, unique within the graph being searched. */
+    public abstract int getId(Object node);
+
+    public Collection getNeighbors(Object head, Route r) {
+	return Library.getLegalSpacesWithWeights((Space)head, r);
     }
-    
+
     public double getWeight(Object head, Object nextObj,
 			    Double nextWeight, Double pathLength) {
-	    
+
 	double centroidDist = ((Space)head).getCenter().distance(((Space)nextObj).getCenter());
 	double weight = pathLength.doubleValue() + nextWeight.doubleValue() + centroidDist;
 	return weight;
     }
 
     /**
-     * Dijkstra's search from start to end, returning a vector of spaces
-     * representing the shortest centroid-to-centroid path between the two.
+     * Guide the search with landmark lower bounds towards its
+     * destination space(s).
+     */
+    public void setPotential(Landmarks.Potential potential) {
+	this.potential = potential;
+    }
+
+    /**
+     * Lower bound on the distance from node to end. The default is the
+     * landmark bound if one was set, and zero (plain Dijkstra) otherwise.
+     */
+    public double getHeuristic(Object node, Object end) {
+	if (potential != null) {
+	    return potential.lowerBound((Space)node);
+	}
+	return 0.0;
+    }
+
+    /** Number of nodes settled (expanded) by the search so far. */
+    public int getExpandedCount() {
+	return expanded;
+    }
+
+    /**
+     * Seed the search with a start node at distance zero. Sources are
+     * expanded in the order they are added.
+     */
+    public void addSource(Object start) {
+	addSource(start, null);
+    }
+
+    /**
+     * Seed the search with a start node, giving the destination so an
+     * A* subclass can compute the start node's heuristic.
      */
-    public Vector findRouteBreadthFirst (PriorityQueue priorityQueue, 
-					 Object end, Route r) {
-	
-	// continue to search paths until there are no more partial paths
-	// to expand
-	while (!priorityQueue.isEmpty()) {
-	    Object[] nextObject = priorityQueue.removeShortestPath();
-	    if(nextObject == null) break;
-	    
-	    Double shortestPathLength = (Double) nextObject[0];
-	    Vector shortestPath = (Vector) nextObject[1];
-	    Object head = shortestPath.lastElement();
-      
+    public void addSource(Object start, Object end) {
+	int id = getId(start);
+	ensureCapacity(id + 1);
+	if (settled[id]) return;
+	double h = (end == null && potential == null) ? 0.0 : getHeuristic(start, end);
+	if (heap.insertOrDecrease(id, h)) {
+	    dist[id] = 0.0;
+	    parent[id] = -1;
+	    node[id] = start;
+	}
+    }
+
+    /**
+     * Dijkstra's search from the added sources to end, returning a vector
+     * of nodes representing the shortest path between the two.
+     */
+    public Vector findRouteBreadthFirst (Object end, Route r) {
+
+	// continue to search until there are no more nodes to expand
+	while (!heap.isEmpty()) {
+	    int headId = heap.removeMin();
+	    settled[headId] = true;
+	    expanded++;
+	    Object head = node[headId];
+	    Double shortestPathLength = Double.valueOf(dist[headId]);
+
 	    // check to see if we're done with the search
 	    if (FoundDest(head, end)) {
-		return shortestPath;
+		return getPath(headId);
 	    }
-	    
-	    // see if there are any adjacencies to follow for this space
-	    Collection nextObjects = getNeighbors(shortestPath, head, r);
+
+	    // see if there are any adjacencies to follow for this node
+	    Collection nextObjects = getNeighbors(head, r);
 	    if (nextObjects == null) {
 		continue;
 	    }
-      
-	    // iterate over adjacent spaces
+
+	    // iterate over adjacent nodes
 	    for (Iterator i = nextObjects.iterator(); i.hasNext();) {
 		Object[] item = (Object[]) i.next();
 		Object nextObj = item[1];
+		int nextId = getId(nextObj);
+		ensureCapacity(nextId + 1);
 
-		if (!shortestPath.contains(nextObj)) {
+		if (!settled[nextId]) {
 		    Double nextWeight = (Double) item[0];
-		
-		    // append the next Spaces onto the path.  Add the new paths to
-		    // the priority queue by making a shallow copy of the shortest path.
-		    Vector extendPath = (Vector) shortestPath.clone();
-		    extendPath.add(nextObj);
-		
+
 		    // add the existing path length, the weight imposed by the portal,
-		    // and the distance between the two adjacent nodes.		
+		    // and the distance between the two adjacent nodes.
 		    double newWeight = getWeight(head, nextObj, shortestPathLength, nextWeight);
-		    priorityQueue.add(newWeight, extendPath);
+		    if (newWeight < dist[nextId] || !heap.contains(nextId)) {
+			double key = newWeight + getHeuristic(nextObj, end);
+			if (!heap.insertOrDecrease(nextId, key)) continue;
+			dist[nextId] = newWeight;
+			parent[nextId] = headId;
+			node[nextId] = nextObj;
+		    }
 		}
 	    } // end iterative path
 	}
-	
-	// base case - we've run out of partial paths to expand
+
+	// base case - we've run out of nodes to expand
 	System.out.println("no path found!");
 	return null;
     }
-}
-
-/** Destination is of type Space. */
-class DijkstraRoom extends Dijkstra {
 
-    public DijkstraRoom() {}
+    /** Walk the parent pointers back from id to a source. */
+    private Vector getPath(int id) {
+	Vector path = new Vector();
+	for (int i = id; i >= 0; i = parent[i]) {
+	    path.add(node[i]);
+	}
+	Collections.reverse(path);
+	return path;
+    }
 
-    public boolean FoundDest(Object head, Object end) {
-	// check to see if we're done with the search
-	if (((Space)head).equals((Space)end)) {
-	    return true;
-	} else
-	    return false;
+    private void ensureCapacity(int n) {
+	if (n <= dist.length) return;
+	int cap = Math.max(n, dist.length * 2);
+	double[] d  = new double[cap];  System.arraycopy(dist, 0, d, 0, dist.length);
+	int[] p     = new int[cap];     System.arraycopy(parent, 0, p, 0, parent.length);
+	Object[] o  = new Object[cap];  System.arraycopy(node, 0, o, 0, node.length);
+	boolean[] s = new boolean[cap]; System.arraycopy(settled, 0, s, 0, settled.length);
+	dist = d; parent = p; node = o; settled = s;
     }
 }
 
@@ -99,6 +177,10 @@ class DijkstraBuilding extends Dijkstra {
 
     public DijkstraBuilding() {}
 
+    public int getId(Object node) {
+	return ((Space)node).getId();
+    }
+
     public boolean FoundDest(Object head, Object end) {
 	// check to see if we're done with the search
 
@@ -116,12 +198,16 @@ class DijkstraNode extends Dijkstra {
 
     public DijkstraNode() {}
 
+    public int getId(Object node) {
+	return ((Graph.Node)node).getId();
+    }
+
     public boolean FoundDest(Object h, Object end) {
 	// stopping condition: the head of the search path queue is
 	// is a portal into the path destination
 	Graph.Node head = (Graph.Node)h;
 
-	if (head.isPortal() && 
+	if (head.isPortal() &&
 	    (head.getPortal().spaces[0].equals(end) ||
 	     head.getPortal().spaces[1].equals(end))) {
 	    return true;
@@ -129,7 +215,7 @@ class DijkstraNode extends Dijkstra {
 	    return false;
     }
 
-    public Collection getNeighbors(Vector shortestPath, Object head, Route r) {
+    public Collection getNeighbors(Object head, Route r) {
 	return ((Graph.Node)head).getAdjNodesWithWeights();
     }
 
@@ -139,3 +225,72 @@ class DijkstraNode extends Dijkstra {
     }
 
 }
+
+/** Destination is one particular Graph.Node, e.g. a portal of a space. */
+class DijkstraNodeTarget extends DijkstraNode {
+
+    public DijkstraNodeTarget() {}
+
+    public boolean FoundDest(Object head, Object end) {
+	return head == end;
+    }
+}
+
+/**
+ * Search over portals, for exact routes in one search. A node is a
+ * portal A->B, standing at its position in A; stepping on to a portal
+ * B->C costs the distance across the doorway plus the shortest path
+ * through B between the two portal nodes (see
+ * Space.getPortalDistances). The search ends at the first legal portal
+ * into a destination space.
+ */
+class DijkstraPortal extends Dijkstra {
+
+    private Route route;
+    private Set targets;   // destination spaces
+
+    public DijkstraPortal(Route route, Collection targets) {
+	this.route = route;
+	this.targets = new HashSet(targets);
+    }
+
+    public int getId(Object node) {
+	return ((Portal)node).getId();
+    }
+
+    public boolean FoundDest(Object head, Object end) {
+	Portal p = (Portal)head;
+	return p.spaces[1] != null && targets.contains(p.spaces[1]) &&
+	    route.isLegal(p);
+    }
+
+    public Collection getNeighbors(Object head, Route r) {
+	Portal p = (Portal)head;
+	Space dest = p.spaces[1];
+	if (dest == null || !r.isLegal(p)) {
+	    return null;
+	}
+	float[] dist = dest.getPortalDistances();
+	if (p.destIndex < 0) {
+	    return null;
+	}
+	Vector portals = (Vector)dest.getPortals();
+	int k = portals.size();
+	Vector answer = new Vector();
+	for (int j = 0; j < k; j++) {
+	    float d = dist[p.destIndex*k + j];
+	    Portal next = (Portal)portals.get(j);
+	    if (d == Float.POSITIVE_INFINITY || next.getId() < 0) continue;
+	    Object[] object = new Object[2];
+	    object[0] = Double.valueOf(p.crossLength + d);
+	    object[1] = next;
+	    answer.add(object);
+	}
+	return answer;
+    }
+
+    public double getWeight(Object head, Object nextObj,
+			    Double nextWeight, Double pathLength) {
+	return pathLength.doubleValue() + nextWeight.doubleValue();
+    }
+}
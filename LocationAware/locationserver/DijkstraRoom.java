@@ -0,0 +1,42 @@
+package locationserver;
+
+/**
+ * Destination is of type Space. In A* mode the straight-line distance
+ * between space centroids is used as the heuristic: getWeight adds the
+ * centroid-to-centroid distance of every step plus a positive portal
+ * weight, so the straight line to the destination centroid is a lower
+ * bound.
+ */
+class DijkstraRoom extends Dijkstra {
+
+    private boolean astar = false;
+    private Position goal = null;   // centroid of the destination space
+
+    public DijkstraRoom() {}
+
+    public DijkstraRoom(boolean astar) {
+	this.astar = astar;
+    }
+
+    public double getHeuristic(Object node, Object end) {
+	if (!astar) {
+	    return super.getHeuristic(node, end);
+	}
+	if (goal == null) {
+	    goal = ((Space)end).getCenter();
+	}
+	return ((Space)node).getCenter().distance(goal);
+    }
+
+    public int getId(Object node) {
+	return ((Space)node).getId();
+    }
+
+    public boolean FoundDest(Object head, Object end) {
+	// check to see if we're done with the search
+	if (((Space)head).equals((Space)end)) {
+	    return true;
+	} else
+	    return false;
+    }
+}
@@ -0,0 +1,177 @@
+package locationserver;
+
+import java.io.*;
+import java.util.*;
+import javax.xml.stream.*;
+
+/**
+ * Streaming reader for the floor files in floordata/. Instead of
+ * building a DOM of the whole file, it reads one space element at a
+ * time with StAX and keeps only that space: its attributes, the points
+ * of its (first) contour, its triangles and its portals. Memory use is
+ * bounded by the largest space, not by the file.
+ *
+ * Usage:
+ *   FloorFileReader r = new FloorFileReader(filename);
+ *   while (r.nextSpace()) { ... r.getName(), r.getX(i) ... }
+ *   r.close();
+ *
+ * Missing attributes read as "", as with Element.getAttribute.
+ */
+public class FloorFileReader {
+
+  private static XMLInputFactory factory = XMLInputFactory.newInstance();
+
+  private InputStream in;
+  private XMLStreamReader xml;
+
+  // the current space
+  private String name, type;
+  private double[] x = new double[64], y = new double[64];
+  private int numPoints;
+  private int[] triangles = new int[192];   // v0, v1, v2 per triangle
+  private int numTriangles;
+  private Vector portals = new Vector();    // PortalElement
+
+  /**
+   * A portal element of the current space, with the attributes of its
+   * first edge element (hasEdge is false if there is none).
+   */
+  public static class PortalElement {
+    public String target, pclass, type, direction;
+    public boolean hasEdge;
+    public String index, param, minparam, maxparam;
+    public boolean hasMinparam;
+  }
+
+  public FloorFileReader(String filename) throws IOException, XMLStreamException {
+    this.in = new BufferedInputStream(new FileInputStream(filename), 1 << 16);
+    synchronized (factory) {
+      this.xml = factory.createXMLStreamReader(this.in);
+    }
+  }
+
+  /**
+   * Advance to the next space element of the file. Returns false at the
+   * end of the file.
+   */
+  public boolean nextSpace() throws XMLStreamException {
+    while (xml.hasNext()) {
+      if (xml.next() == XMLStreamConstants.START_ELEMENT &&
+	  xml.getLocalName().equals("space")) {
+	this.readSpace();
+	return true;
+      }
+    }
+    return false;
+  }
+
+  // reads the space element the stream is at, up to its end tag
+  private void readSpace() throws XMLStreamException {
+    this.name = attribute("name");
+    this.type = attribute("type");
+    this.numPoints = 0;
+    this.numTriangles = 0;
+    this.portals = new Vector();
+
+    int depth = 1;
+    int contours = 0;        // contour elements seen in this space
+    int contourDepth = -1;   // depth of the first contour while inside it
+    PortalElement portal = null;
+    int portalDepth = -1;
+    while (depth > 0) {
+      int event = xml.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+	depth++;
+	String tag = xml.getLocalName();
+	if (tag.equals("contour")) {
+	  if (contours++ == 0) contourDepth = depth;
+	} else if (tag.equals("point") && contourDepth > 0) {
+	  this.addPoint(Double.valueOf(attribute("x")).doubleValue(),
+			Double.valueOf(attribute("y")).doubleValue());
+	} else if (tag.equals("triangle")) {
+	  this.addTriangle(Integer.parseInt(attribute("v0")),
+			   Integer.parseInt(attribute("v1")),
+			   Integer.parseInt(attribute("v2")));
+	} else if (tag.equals("portal")) {
+	  portal = new PortalElement();
+	  portal.target = attribute("target");
+	  portal.pclass = attribute("class");
+	  portal.type = attribute("type");
+	  portal.direction = attribute("direction");
+	  this.portals.add(portal);
+	  portalDepth = depth;
+	} else if (tag.equals("edge") && portal != null && !portal.hasEdge) {
+	  portal.hasEdge = true;
+	  portal.index = attribute("index");
+	  portal.param = attribute("param");
+	  portal.hasMinparam = xml.getAttributeValue(null, "minparam") != null;
+	  portal.minparam = attribute("minparam");
+	  portal.maxparam = attribute("maxparam");
+	}
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+	if (depth == contourDepth) contourDepth = -1;
+	if (depth == portalDepth) {
+	  portal = null;
+	  portalDepth = -1;
+	}
+	depth--;
+      }
+    }
+  }
+
+  private String attribute(String attr) {
+    String value = xml.getAttributeValue(null, attr);
+    return (value == null) ? "" : value;
+  }
+
+  private void addPoint(double px, double py) {
+    if (this.numPoints == this.x.length) {
+      this.x = Arrays.copyOf(this.x, 2 * this.numPoints);
+      this.y = Arrays.copyOf(this.y, 2 * this.numPoints);
+    }
+    this.x[this.numPoints] = px;
+    this.y[this.numPoints] = py;
+    this.numPoints++;
+  }
+
+  private void addTriangle(int v0, int v1, int v2) {
+    if (3 * this.numTriangles == this.triangles.length) {
+      this.triangles = Arrays.copyOf(this.triangles, 2 * this.triangles.length);
+    }
+    this.triangles[3 * this.numTriangles]     = v0;
+    this.triangles[3 * this.numTriangles + 1] = v1;
+    this.triangles[3 * this.numTriangles + 2] = v2;
+    this.numTriangles++;
+  }
+
+  public String getName() { return this.name; }
+  public String getType() { return this.type; }
+
+  /** Number of points on the contour of the current space. */
+  public int getNumPoints() { return this.numPoints; }
+  public double getX(int i) { return this.x[this.checkPoint(i)]; }
+  public double getY(int i) { return this.y[this.checkPoint(i)]; }
+
+  private int checkPoint(int i) {
+    if (i >= this.numPoints) throw new ArrayIndexOutOfBoundsException(i);
+    return i;
+  }
+
+  public int getNumTriangles() { return this.numTriangles; }
+
+  /** Contour point index of vertex k (0..2) of triangle i. */
+  public int getVertex(int i, int k) { return this.triangles[3 * i + k]; }
+
+  /** Portal elements of the current space, in file order. */
+  public Vector getPortals() { return this.portals; }
+
+  public void close() {
+    try {
+      this.xml.close();
+      this.in.close();
+    } catch (Exception e) {
+      // nothing left to read
+    }
+  }
+}
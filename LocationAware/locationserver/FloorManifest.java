@@ -0,0 +1,159 @@
+package locationserver;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * Manifest of the floor files a snapshot was built from, written by
+ * BATCH_OUT next to the snapshot as <snapshot>.manifest. For each file,
+ * in the order it was read, it records a content hash and the names of
+ * the spaces and portals the file defined. BATCH_UPDATE compares the
+ * hashes with the files on disk to decide which files to read again.
+ *
+ * The format is plain text, one record per line with tab separated
+ * fields:
+ *   file    <hash>  <filename>
+ *   space   <name>
+ *   portal  <name>
+ * where the space and portal lines belong to the file above them. A
+ * file that could not be read has the hash "-".
+ */
+public class FloorManifest {
+
+  public static final String SUFFIX = ".manifest";
+  public static final String NO_HASH = "-";
+
+  private Vector files = new Vector();     // file names, in read order
+  private HashMap hashes = new HashMap();  // file name -> hash
+  private HashMap spaces = new HashMap();  // file name -> Vector of space names
+  private HashMap portals = new HashMap(); // file name -> Vector of portal names
+
+  /**
+   * Record a file, with the names of the spaces and portals read from
+   * it (in file order).
+   */
+  public void add(String filename, String hash, Collection spaceNames,
+		  Collection portalNames) {
+    this.files.add(filename);
+    this.hashes.put(filename, hash);
+    this.spaces.put(filename, new Vector(spaceNames));
+    this.portals.put(filename, new Vector(portalNames));
+  }
+
+  /** The files, in the order they were read. */
+  public Vector getFiles() {
+    return this.files;
+  }
+
+  public String getHash(String filename) {
+    return (String) this.hashes.get(filename);
+  }
+
+  public Vector getSpaces(String filename) {
+    return (Vector) this.spaces.get(filename);
+  }
+
+  public Vector getPortals(String filename) {
+    return (Vector) this.portals.get(filename);
+  }
+
+  /**
+   * SHA-256 of the contents of a file, in hex, or NO_HASH if the file
+   * cannot be read.
+   */
+  public static String hash(String filename) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      InputStream in = new FileInputStream(filename);
+      try {
+	byte[] buf = new byte[1 << 16];
+	int n;
+	while ((n = in.read(buf)) > 0) {
+	  md.update(buf, 0, n);
+	}
+      } finally {
+	in.close();
+      }
+      byte[] digest = md.digest();
+      StringBuffer sb = new StringBuffer();
+      for (int i = 0; i < digest.length; i++) {
+	sb.append(Integer.toHexString((digest[i] >> 4) & 0xf));
+	sb.append(Integer.toHexString(digest[i] & 0xf));
+      }
+      return sb.toString();
+    } catch (IOException ioe) {
+      return NO_HASH;
+    } catch (NoSuchAlgorithmException nsae) {
+      throw new RuntimeException(nsae);
+    }
+  }
+
+  /** Write the manifest of the given snapshot file. */
+  public void write(String snapshot) throws IOException {
+    PrintWriter out = new PrintWriter(new BufferedWriter(
+			  new OutputStreamWriter(new FileOutputStream(snapshot + SUFFIX), "UTF-8")));
+    try {
+      for (int i = 0; i < this.files.size(); i++) {
+	String filename = (String) this.files.get(i);
+	out.print("file\t" + getHash(filename) + "\t" + filename + "\n");
+	Vector names = getSpaces(filename);
+	for (int j = 0; j < names.size(); j++) {
+	  out.print("space\t" + names.get(j) + "\n");
+	}
+	names = getPortals(filename);
+	for (int j = 0; j < names.size(); j++) {
+	  out.print("portal\t" + names.get(j) + "\n");
+	}
+      }
+    } finally {
+      out.close();
+    }
+    if (out.checkError()) {
+      throw new IOException("Writing " + snapshot + SUFFIX + " failed");
+    }
+  }
+
+  /**
+   * Read the manifest of the given snapshot file. Returns null if there
+   * is none, or if it cannot be read.
+   */
+  public static FloorManifest read(String snapshot) {
+    File file = new File(snapshot + SUFFIX);
+    if (!file.exists()) {
+      return null;
+    }
+    FloorManifest manifest = new FloorManifest();
+    try {
+      BufferedReader in = new BufferedReader(new InputStreamReader(
+			      new FileInputStream(file), "UTF-8"));
+      try {
+	String filename = null;
+	String line;
+	while ((line = in.readLine()) != null) {
+	  int tab = line.indexOf('\t');
+	  String kind = line.substring(0, tab);
+	  String rest = line.substring(tab + 1);
+	  if (kind.equals("file")) {
+	    tab = rest.indexOf('\t');
+	    filename = rest.substring(tab + 1);
+	    manifest.add(filename, rest.substring(0, tab),
+			 new Vector(), new Vector());
+	  } else if (kind.equals("space")) {
+	    manifest.getSpaces(filename).add(rest);
+	  } else if (kind.equals("portal")) {
+	    manifest.getPortals(filename).add(rest);
+	  } else {
+	    throw new IOException("Unknown record: " + line);
+	  }
+	}
+      } finally {
+	in.close();
+      }
+    } catch (Exception e) {
+      System.out.println("Cannot read " + file + ": " + e);
+      return null;
+    }
+    return manifest;
+  }
+}
@@ -0,0 +1,165 @@
+package locationserver;
+
+import java.util.*;
+
+/**
+ * Pulls a route through a space taut (Library.shortenedPoly). The nodes
+ * of a space's graph sit on the midpoints of the edges its triangles
+ * share (see Graph), so a node path from one portal to another crosses
+ * a channel of triangles, entering each through one of those edges. The
+ * shortest route through the channel bends only at the ends of the
+ * edges; it is found with the "simple stupid funnel" algorithm, which
+ * keeps the wedge of directions from the last bend that pass through
+ * every edge so far, narrows it edge by edge, and bends wherever one
+ * side would cross the other. This takes time linear in the length of
+ * the path and never looks at the boundary of the space.
+ *
+ * Portal nodes in the middle of a path are kept as points the route
+ * must go through, since they lie on the boundary rather than on an
+ * edge between triangles.
+ */
+public class Funnel {
+
+  // ends of two edges closer than this are taken to be the same point
+  private static final double EPSILON = 1e-3;
+
+  /**
+   * Return (a Vector of Positions) the taut route along the given node
+   * path of the space's graph g, from the position of its first node to
+   * the position of its last. Returns null if the path does not cross a
+   * channel of triangles, in which case the caller has to make do with
+   * the node positions.
+   */
+  public static Vector pull(Space space, CSRGraph g, int[] path) {
+    double[] edges = space.getSharedEdges();
+    int n = path.length;
+    double[] lx = new double[n], ly = new double[n];
+    double[] rx = new double[n], ry = new double[n];
+    Vector answer = new Vector();
+    Position from = g.getPosition(path[0]);
+    answer.add(from);
+    int first = 0;
+    for (int i = 1; i < n; i++) {
+      int u = path[i];
+      Position p = g.getPosition(u);
+      if (i == n - 1 || g.isPortal(u)) {
+	// a channel ends here; the points between first and i are its edges
+	lx[i] = rx[i] = p.x;
+	ly[i] = ry[i] = p.y;
+	if (!funnel(lx, ly, rx, ry, first, i, from.z, answer)) {
+	  return null;
+	}
+	Position last = (Position) answer.lastElement();
+	if (last == from || !same(last.x, last.y, p.x, p.y)) {
+	  answer.add(p);
+	} else {
+	  answer.set(answer.size() - 1, p); // the funnel closed on p itself
+	}
+	from = p;
+	first = i;
+	continue;
+      }
+      if (4 * u + 3 >= edges.length) {
+	return null;
+      }
+      double ax = edges[4 * u], ay = edges[4 * u + 1];
+      double bx = edges[4 * u + 2], by = edges[4 * u + 3];
+      if (Math.abs((ax + bx) / 2 - p.x) > EPSILON || Math.abs((ay + by) / 2 - p.y) > EPSILON) {
+	return null; // not the edge this node was put on
+      }
+
+      // the path must come into the edge from one side and leave it on
+      // the other; seen from the side it comes from, a is on the right
+      // if b is counterclockwise of it
+      Position prev = g.getPosition(path[i - 1]);
+      Position next = g.getPosition(path[i + 1]);
+      double before = cross(prev.x, prev.y, ax, ay, bx, by);
+      double after = cross(next.x, next.y, ax, ay, bx, by);
+      if (before == 0 || after == 0 || (before > 0) == (after > 0)) {
+	return null;
+      }
+      if (before > 0) {
+	rx[i] = ax; ry[i] = ay; lx[i] = bx; ly[i] = by;
+      } else {
+	rx[i] = bx; ry[i] = by; lx[i] = ax; ly[i] = ay;
+      }
+    }
+    return answer;
+  }
+
+  /*
+   * Add to answer the bends of the taut route through the edges
+   * (left, right) first+1 .. last-1, from the point at first to the
+   * point at last (given as edges with both ends the same). Returns
+   * false if the edges turn out to be no channel.
+   */
+  private static boolean funnel(double[] lx, double[] ly, double[] rx, double[] ry,
+				int first, int last, double z, Vector answer) {
+    if (last == first + 1) {
+      return true; // straight from one point to the next
+    }
+    lx[first] = rx[first] = ((Position) answer.lastElement()).x;
+    ly[first] = ry[first] = ((Position) answer.lastElement()).y;
+    double apexX = lx[first], apexY = ly[first];
+    double leftX = apexX, leftY = apexY, rightX = apexX, rightY = apexY;
+    int apex = first, left = first, right = first;
+    int bends = 0;
+    for (int i = first + 1; i <= last; i++) {
+      // narrow the right side of the funnel, unless it would cross the left
+      if (cross(apexX, apexY, rightX, rightY, rx[i], ry[i]) >= 0) {
+	if (same(apexX, apexY, rightX, rightY) ||
+	    cross(apexX, apexY, leftX, leftY, rx[i], ry[i]) < 0) {
+	  rightX = rx[i]; rightY = ry[i]; right = i;
+	} else {
+	  // the route bends around the left side
+	  bend(answer, leftX, leftY, z);
+	  apexX = leftX; apexY = leftY; apex = left;
+	  rightX = leftX; rightY = leftY; right = left;
+	  i = apex;
+	  if (++bends > last - first) {
+	    return false;
+	  }
+	  continue;
+	}
+      }
+      // and the left side, unless it would cross the right
+      if (cross(apexX, apexY, leftX, leftY, lx[i], ly[i]) <= 0) {
+	if (same(apexX, apexY, leftX, leftY) ||
+	    cross(apexX, apexY, rightX, rightY, lx[i], ly[i]) > 0) {
+	  leftX = lx[i]; leftY = ly[i]; left = i;
+	} else {
+	  // the route bends around the right side
+	  bend(answer, rightX, rightY, z);
+	  apexX = rightX; apexY = rightY; apex = right;
+	  leftX = rightX; leftY = rightY; left = right;
+	  i = apex;
+	  if (++bends > last - first) {
+	    return false;
+	  }
+	  continue;
+	}
+      }
+    }
+    return true;
+  }
+
+  // add a bend to the route, unless the route is there already (edges
+  // in a row often share the corner the route bends around)
+  private static void bend(Vector answer, double x, double y, double z) {
+    Position last = (Position) answer.lastElement();
+    if (!same(last.x, last.y, x, y)) {
+      answer.add(new Position(x, y, z));
+    }
+  }
+
+  // twice the signed area of the triangle o, a, b: positive if b is
+  // counterclockwise of a as seen from o
+  private static double cross(double ox, double oy, double ax, double ay,
+			      double bx, double by) {
+    return (ax - ox) * (by - oy) - (ay - oy) * (bx - ox);
+  }
+
+  private static boolean same(double ax, double ay, double bx, double by) {
+    return Math.abs(ax - bx) <= EPSILON && Math.abs(ay - by) <= EPSILON;
+  }
+}
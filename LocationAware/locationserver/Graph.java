@@ -16,6 +16,9 @@ import java.io.*;
 
 public class Graph implements Serializable {
 
+    // fixed, so that snapshots written with Java serialization stay readable
+    private static final long serialVersionUID = -3439379679392545064L;
+
     public Vector edges;
     public Vector nodes;
 
@@ -68,6 +71,33 @@ public class Graph implements Serializable {
 	} return answer;
     }
 
+    // the same graph in primitive arrays: node ids are kept, and each
+    // edge becomes an arc in both directions, in the order of each
+    // node's edge list
+    public CSRGraph toCSR() {
+	int n = nodes.size();
+	int m = 2 * edges.size();
+	int[] tails = new int[m], heads = new int[m];
+	double[] w = new double[m];
+	double[] x = new double[n], y = new double[n], z = new double[n];
+	Portal[] portals = new Portal[n];
+	int a = 0;
+	for (int u = 0; u < n; u++) {
+	    Node curr = (Node)nodes.get(u);
+	    x[u] = curr.pos().x; y[u] = curr.pos().y; z[u] = curr.pos().z;
+	    portals[u] = curr.getPortal();
+	    Vector adj = curr.getEdges();
+	    for (int i = 0; i < adj.size() && a < m; i++) {
+		Edge E = (Edge)adj.get(i);
+		tails[a] = u;
+		heads[a] = (E.A() == curr) ? E.B().getId() : E.A().getId();
+		w[a] = E.weight();
+		a++;
+	    }
+	}
+	return new CSRGraph(n, tails, heads, w, a, x, y, z, portals);
+    }
+
    /**
     * Combines graph G with this graph. Links are made by adding edges
     * between corresponding portal nodes. "s" is the space that G belongs to.
@@ -89,12 +119,30 @@ public class Graph implements Serializable {
 		}
 	    }
 	}
-	this.nodes.addAll(G.nodes);
+	for (int i = 0; i < G.nodes.size(); i++) {
+	    addNode((Node)G.nodes.get(i));
+	}
 	this.edges.addAll(G.edges);
     }
 
+    // appends a node, giving it the next dense id in this graph
+    private void addNode(Node n) {
+	n.id = nodes.size();
+	nodes.add(n);
+    }
+
+    // graphs written before nodes had ids come back with every id 0;
+    // the ids are the positions in nodes, so give them again
+    private void readObject(ObjectInputStream in)
+	throws IOException, ClassNotFoundException {
+	in.defaultReadObject();
+	for (int i = 0; nodes != null && i < nodes.size(); i++) {
+	    ((Node)nodes.get(i)).id = i;
+	}
+    }
+
     // convert list of vertex coordinates into triangle objects
-    private Vector getTriangles(Space space) {
+    private static Vector getTriangles(Space space) {
 	double[] triangles = space.getTriangles();
 	Vector triangleVec = new Vector();
 
@@ -112,51 +160,145 @@ public class Graph implements Serializable {
 
     // adds node at midpoint of every shared triangle edge
     private void setTriangleNodes(Vector triangleVec) {
+	Vector[] adjacent = getAdjacentTriangles(triangleVec);
 	for (int i = 0; i < triangleVec.size(); i++) {
-	    // find the triangles adjacent to this one
+	    // the triangles adjacent to this one, in order
 	    Triangle currTri = (Triangle)triangleVec.get(i);
 
-	    for (int j = i+1; j < triangleVec.size(); j++) {
+	    for (int k = 0; k < adjacent[i].size(); k++) {
+		int j = ((Integer)adjacent[i].get(k)).intValue();
 		Triangle nextTri = (Triangle)triangleVec.get(j);
-		if (currTri.commonEdge(nextTri)) {
-
-		    // find the common edge
-		    Position point[] = currTri.getcommonEdge(nextTri);
-		    //find the midpoint of the shared edge
-		    Position midpoint = new Position((point[0].x + point[1].x)/2,
-						     (point[0].y + point[1].y)/2,
-						     (point[0].z + point[1].z)/2);
-		    // add it to the graph
-		    Node node = new Node(midpoint);
-		    currTri.nodes.add(node);
-		    nextTri.nodes.add(node);
-		    nodes.add(node);
+
+		// find the common edge
+		Position point[] = currTri.getcommonEdge(nextTri);
+		//find the midpoint of the shared edge
+		Position midpoint = new Position((point[0].x + point[1].x)/2,
+						 (point[0].y + point[1].y)/2,
+						 (point[0].z + point[1].z)/2);
+		// add it to the graph
+		Node node = new Node(midpoint);
+		currTri.nodes.add(node);
+		nextTri.nodes.add(node);
+		addNode(node);
+	    }
+	}
+    }
+
+    /* The shared triangle edges of a space, in the order setTriangleNodes
+     * puts nodes on them: x, y of one end and x, y of the other for each
+     * interior node, so that interior node u of the space's graph sits
+     * on the edge at 4*u. Funnel walks these to pull routes taut.
+     */
+    static double[] getSharedEdges(Space space) {
+	Vector triangleVec = getTriangles(space);
+	Vector[] adjacent = getAdjacentTriangles(triangleVec);
+	int count = 0;
+	for (int i = 0; i < adjacent.length; i++) {
+	    count += adjacent[i].size();
+	}
+	double[] answer = new double[4 * count];
+	int a = 0;
+	for (int i = 0; i < triangleVec.size(); i++) {
+	    Triangle currTri = (Triangle)triangleVec.get(i);
+	    for (int k = 0; k < adjacent[i].size(); k++) {
+		int j = ((Integer)adjacent[i].get(k)).intValue();
+		Position point[] = currTri.getcommonEdge((Triangle)triangleVec.get(j));
+		answer[a++] = point[0].x; answer[a++] = point[0].y;
+		answer[a++] = point[1].x; answer[a++] = point[1].y;
+	    }
+	}
+	return answer;
+    }
+
+    /* For each triangle i, the indices j > i (ascending) of the
+     * triangles that share an edge with it (Triangle.commonEdge).
+     * Vertices are hashed into grid cells the size of the Position.equals
+     * tolerance, so vertices that compare equal lie in the same or a
+     * neighbouring cell; only triangles found that way are compared.
+     * Small spaces just compare every pair.
+     */
+    private static Vector[] getAdjacentTriangles(Vector triangleVec) {
+	Vector[] adjacent = new Vector[triangleVec.size()];
+	if (triangleVec.size() <= SMALL_SPACE) {
+	    for (int i = 0; i < triangleVec.size(); i++) {
+		Triangle t = (Triangle)triangleVec.get(i);
+		adjacent[i] = new Vector();
+		for (int j = i+1; j < triangleVec.size(); j++) {
+		    if (t.commonEdge((Triangle)triangleVec.get(j)))
+			adjacent[i].add(Integer.valueOf(j));
+		}
+	    }
+	    return adjacent;
+	}
+
+	HashMap cells = new HashMap(); // cell key -> Vector of triangle indices
+	for (int i = 0; i < triangleVec.size(); i++) {
+	    Triangle t = (Triangle)triangleVec.get(i);
+	    Position[] verts = {t.p1, t.p2, t.p3};
+	    for (int v = 0; v < 3; v++) {
+		Long key = Long.valueOf(cellKey(cellOf(verts[v].x), cellOf(verts[v].y)));
+		Vector cell = (Vector)cells.get(key);
+		if (cell == null) {
+		    cell = new Vector();
+		    cells.put(key, cell);
 		}
+		if (cell.isEmpty() || ((Integer)cell.lastElement()).intValue() != i)
+		    cell.add(Integer.valueOf(i));
 	    }
 	}
+
+	TreeSet candidates = new TreeSet();
+	for (int i = 0; i < triangleVec.size(); i++) {
+	    Triangle t = (Triangle)triangleVec.get(i);
+	    Position[] verts = {t.p1, t.p2, t.p3};
+	    candidates.clear();
+	    for (int v = 0; v < 3; v++) {
+		long cx = cellOf(verts[v].x), cy = cellOf(verts[v].y);
+		for (long dx = -1; dx <= 1; dx++) {
+		    for (long dy = -1; dy <= 1; dy++) {
+			Vector cell = (Vector)cells.get(Long.valueOf(cellKey(cx + dx, cy + dy)));
+			if (cell == null) continue;
+			for (int k = 0; k < cell.size(); k++) {
+			    if (((Integer)cell.get(k)).intValue() > i)
+				candidates.add(cell.get(k));
+			}
+		    }
+		}
+	    }
+	    adjacent[i] = new Vector();
+	    for (Iterator c = candidates.iterator(); c.hasNext();) {
+		Integer j = (Integer)c.next();
+		if (t.commonEdge((Triangle)triangleVec.get(j.intValue())))
+		    adjacent[i].add(j);
+	    }
+	}
+	return adjacent;
+    }
+
+    private static final double CELL = 0.1;     // Position.equals tolerance
+    private static final int SMALL_SPACE = 32;  // triangles
+
+    private static long cellOf(double d) {
+	return (long)Math.floor(d / CELL);
+    }
+
+    private static long cellKey(long cx, long cy) {
+	return (cx << 32) ^ (cy & 0xffffffffL);
     }
 
     // adds node for every portal
     private void setPortalNodes(Vector portals, Vector triangleVec) {
+	TriangleGrid grid = new TriangleGrid(triangleVec);
 	for (int i = 0; i < portals.size(); i++) {
 	    Portal portal = (Portal)portals.get(i);
 	    Position portalPosition = portal.getApproximatePosition();
-	    double minDistance = Double.MAX_VALUE;
-	    Triangle portalTri = null;
-
-	    // loop finds the triangle closest to the current portal
-	    for (int j = 0; j < triangleVec.size(); j++) {
-		Triangle nextTriangle = (Triangle)triangleVec.get(j);
-		double distance = nextTriangle.closestEdge(portalPosition);
-		if (distance < minDistance) {
-		    minDistance = distance;
-		    portalTri = nextTriangle;
-		}		
-	    }
+
+	    // the triangle closest to the current portal
+	    Triangle portalTri = grid.getClosest(portalPosition);
 	    Node node = new Node(portalPosition);
 	    node.tagPortal(portal);
 	    portalTri.nodes.add(node);
-	    nodes.add(node);
+	    addNode(node);
 	}
     }
 
@@ -261,10 +403,13 @@ public class Graph implements Serializable {
     }
     
     public class Node implements Serializable {
+	private static final long serialVersionUID = 8795355199819069495L;
+
 	private Portal portal;
 	private boolean portalTag;
 	private Position position;
 	private Vector adjEdges;
+	private int id;        // index in the owning graph's node vector
 	
 	public Node() {}
 	public Node(Position p) {
@@ -274,6 +419,7 @@ public class Graph implements Serializable {
 	    adjEdges = new Vector();
 	}
 	public Position pos() { return position; }
+	public int getId() { return id; }
 	public void tagPortal(Portal p) {
 	    portalTag = true;
 	    portal = p;
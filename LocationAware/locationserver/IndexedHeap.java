@@ -0,0 +1,144 @@
+package locationserver;
+
+/**
+ * Binary min-heap over integer node ids, supporting decrease-key.
+ * Used by the search engines in place of the old path-cloning
+ * PriorityQueue. Each id is present at most once; a second insert
+ * for an id already in the heap only succeeds if it lowers its key.
+ *
+ * Ties between equal keys are broken by the order in which the keys
+ * were last set (first in, first out), which is the order the old
+ * TreeMap-based queue handed out paths of equal length. This keeps
+ * the routes returned by the search engines unchanged.
+ */
+class IndexedHeap {
+    private int[] heap;      // heap slot -> node id
+    private int[] slot;      // node id -> heap slot, -1 if not queued
+    private double[] keys;   // node id -> current key
+    private long[] stamps;   // node id -> order in which key was set
+    private int size;
+    private long clock;
+
+    public IndexedHeap() {
+	this(64);
+    }
+
+    public IndexedHeap(int capacity) {
+	heap   = new int[capacity];
+	slot   = new int[capacity];
+	keys   = new double[capacity];
+	stamps = new long[capacity];
+	java.util.Arrays.fill(slot, -1);
+    }
+
+    public boolean isEmpty() {
+	return size == 0;
+    }
+
+    public int size() {
+	return size;
+    }
+
+    public boolean contains(int id) {
+	return id < slot.length && slot[id] >= 0;
+    }
+
+    public double getKey(int id) {
+	return keys[id];
+    }
+
+    /** Key of the minimum element. Heap must not be empty. */
+    public double peekKey() {
+	return keys[heap[0]];
+    }
+
+    /** Id of the minimum element. Heap must not be empty. */
+    public int peek() {
+	return heap[0];
+    }
+
+    /**
+     * Insert id with the given key, or lower its key if it is already
+     * queued. Returns false if the id was queued with a key that is
+     * already less than or equal to the given one.
+     */
+    public boolean insertOrDecrease(int id, double key) {
+	ensureCapacity(id + 1);
+	int s = slot[id];
+	if (s >= 0) {
+	    if (key >= keys[id]) return false;
+	    keys[id] = key;
+	    stamps[id] = clock++;
+	    siftUp(s);
+	    return true;
+	}
+	keys[id] = key;
+	stamps[id] = clock++;
+	heap[size] = id;
+	slot[id] = size;
+	siftUp(size++);
+	return true;
+    }
+
+    /** Remove and return the id with the smallest key. */
+    public int removeMin() {
+	int min = heap[0];
+	slot[min] = -1;
+	size--;
+	if (size > 0) {
+	    heap[0] = heap[size];
+	    slot[heap[0]] = 0;
+	    siftDown(0);
+	}
+	return min;
+    }
+
+    public void clear() {
+	for (int i = 0; i < size; i++) slot[heap[i]] = -1;
+	size = 0;
+    }
+
+    private boolean less(int a, int b) {
+	if (keys[a] != keys[b]) return keys[a] < keys[b];
+	return stamps[a] < stamps[b];
+    }
+
+    private void siftUp(int s) {
+	int id = heap[s];
+	while (s > 0) {
+	    int p = (s - 1) >> 1;
+	    if (!less(id, heap[p])) break;
+	    heap[s] = heap[p];
+	    slot[heap[s]] = s;
+	    s = p;
+	}
+	heap[s] = id;
+	slot[id] = s;
+    }
+
+    private void siftDown(int s) {
+	int id = heap[s];
+	while (true) {
+	    int c = 2*s + 1;
+	    if (c >= size) break;
+	    if (c + 1 < size && less(heap[c+1], heap[c])) c++;
+	    if (!less(heap[c], id)) break;
+	    heap[s] = heap[c];
+	    slot[heap[s]] = s;
+	    s = c;
+	}
+	heap[s] = id;
+	slot[id] = s;
+    }
+
+    private void ensureCapacity(int n) {
+	if (n <= slot.length) return;
+	int cap = Math.max(n, slot.length * 2);
+	int[] h = new int[cap];    System.arraycopy(heap, 0, h, 0, size);
+	int[] sl = new int[cap];   java.util.Arrays.fill(sl, -1);
+	System.arraycopy(slot, 0, sl, 0, slot.length);
+	double[] k = new double[cap]; System.arraycopy(keys, 0, k, 0, keys.length);
+	long[] st = new long[cap];    System.arraycopy(stamps, 0, st, 0, stamps.length);
+	heap = h; slot = sl; keys = k; stamps = st;
+    }
+}
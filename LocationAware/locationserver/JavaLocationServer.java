@@ -5,12 +5,16 @@ import java.util.*;
 import java.rmi.*;
 import java.rmi.server.*;
 import java.awt.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.lang.management.*;
 
 // for reading xml data
 import javax.xml.parsers.DocumentBuilder; 
 import javax.xml.parsers.DocumentBuilderFactory;  
 import javax.xml.parsers.FactoryConfigurationError;  
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 
 import org.xml.sax.SAXException;  
 import org.xml.sax.SAXParseException;
@@ -35,15 +39,99 @@ public class JavaLocationServer extends UnicastRemoteObject
   // internal rep
   private HashMap roomHashMap;
   private HashMap portalHashMap;
-  private HashMap routeCache; // cache full routes
+  private RouteCache routeCache; // routes found by getRoute, see MEMOIZE
+  private RouteLog routeLog;     // the same routes on disk, see ROUTE_LOG
+  private Vector snapshotPaths;  // PortalPathCache.Paths read with the snapshot, until the portals are numbered
+  private SpaceIndex spaceIndex; // locates points for getSpace(Location)
+  private HashMap floorIndex;    // building -> floor id -> Vector of Spaces, see getSpacesWithConstraints
+  private NameIndex nameIndex;   // space and building names, see completeSpaceName
+  private ConcurrentHashMap routesInFlight = new ConcurrentHashMap(); // key -> FutureTask, see getRoute
   private HashMap buildingHashMap;
+  private HashMap hierarchies; // route type -> ContractionHierarchy
+  private HashMap landmarks;   // route type -> Landmarks
+  private volatile CampusGraph campus;  // all space graphs read, linked; see getCampusGraph
+  private volatile boolean lazySpaces;  // space graphs still in the snapshot (LAZY_LOAD)
+  private Snapshot lazySnapshot;        // the snapshot they are in, while lazySpaces
+  private int campusParts;              // parts of lazySnapshot read into campus
+  private FloorManifest manifest; // floor files read in BATCH_OUT/BATCH_UPDATE
 
   // flag variables (mostly for perf testing)
-  private boolean MEMOIZE    = true;
+  private boolean MEMOIZE    =
+    Boolean.valueOf(System.getProperty("locationserver.memoize", "true")).booleanValue();
   private boolean NOISY      = false;
   private boolean PERFDATA   = true;
   private boolean PRECOMPUTE = true;
 
+  // route types to prepare contraction hierarchies for in BATCH_OUT
+  // (getRoute currently serves every request as ROUTE_PAVED)
+  private String[] HIERARCHY_TYPES = { Route.ROUTE_PAVED };
+
+  // landmarks for goal-directed (SEARCH_ALT) search, prepared in BATCH_OUT
+  // for the same route types; selection is Landmarks.SELECT_AVOID or
+  // SELECT_FARTHEST
+  private int NUM_LANDMARKS = 16;
+  private String LANDMARK_SELECTION = Landmarks.SELECT_AVOID;
+
+  // space search algorithm used when a request does not name one and
+  // there is no hierarchy for its route type
+  // (Route.SEARCH_DIJKSTRA, SEARCH_ASTAR, SEARCH_BIDIRECTIONAL, SEARCH_ALT
+  // or SEARCH_EXACT)
+  private String SEARCH_MODE =
+    System.getProperty("locationserver.search", Route.SEARCH_DIJKSTRA);
+
+  // worker threads for precomputeSpaces in BATCH_OUT; every space is
+  // precomputed on its own, so the output is the same for any setting
+  private int PRECOMPUTE_THREADS =
+    Integer.getInteger("locationserver.precomputeThreads",
+		       Runtime.getRuntime().availableProcessors()).intValue();
+
+  // how BATCH_OUT reads the floor files: PARSER_STAX streams each file
+  // one space at a time (FloorFileReader), PARSER_DOM builds a document
+  // of the whole file first
+  public static final String PARSER_STAX = "STAX";
+  public static final String PARSER_DOM  = "DOM";
+  private String XML_PARSER =
+    System.getProperty("locationserver.parser", PARSER_STAX);
+
+  // worker threads reading floor files in BATCH_OUT; the files are
+  // merged in list order, so the maps are the same for any setting
+  private int READ_THREADS =
+    Integer.getInteger("locationserver.readThreads",
+		       Runtime.getRuntime().availableProcessors()).intValue();
+
+  // QUICK_START reads the triangles, portal distances and graphs of a
+  // building from the snapshot only when a query first needs them (see
+  // Snapshot.Part); the campus graph then links the graphs read so
+  // far, and is built again when a query has read another building
+  private boolean LAZY_LOAD =
+    Boolean.valueOf(System.getProperty("locationserver.lazyLoad", "true")).booleanValue();
+
+  // routes kept by the route cache when MEMOIZE is on (see RouteCache)
+  private int ROUTE_CACHE_SIZE =
+    Integer.getInteger("locationserver.routeCacheSize", 4096).intValue();
+
+  // keep the cached routes in a log next to the snapshot as well, and
+  // warm the route cache from it at startup (see RouteLog)
+  private boolean ROUTE_LOG =
+    Boolean.valueOf(System.getProperty("locationserver.routeLog", "true")).booleanValue();
+
+  // in-space paths between pairs of portals kept by the path cache
+  // (see PortalPathCache); 0 turns it off
+  private int PATH_CACHE_SIZE =
+    Integer.getInteger("locationserver.pathCacheSize", 8192).intValue();
+
+  // BATCH_OUT and BATCH_UPDATE write the paths of this many of the
+  // portal pairs crossed most often by the logged routes into the
+  // snapshot, for QUICK_START to put in the path cache (see findHotPaths)
+  private int SNAPSHOT_PATHS =
+    Integer.getInteger("locationserver.snapshotPaths", 0).intValue();
+
+  // perf counters, see getPerfCounters()
+  private PerfStats perf = new PerfStats();
+
+  // paths found by setRoute, see PATH_CACHE_SIZE
+  private PortalPathCache pathCache = new PortalPathCache(this.PATH_CACHE_SIZE, this.perf);
+
   /** since this class is serializable, we need an empty constructor */
   public JavaLocationServer() throws RemoteException {
     super();
@@ -54,22 +142,48 @@ public class JavaLocationServer extends UnicastRemoteObject
    * if:
    * args[0] = QUICK_START
    *  then args[1] will be a serialized file to load of everything
+   *  (each building's space graphs only when first needed, unless
+   *  -Dlocationserver.lazyLoad=false)
    * if:
    * args[0] = BATCH_OUT
    *  then args[1] = file to output
-   *  args[2 ... n] = buildings to load
+   *  args[2] = directory of the floor files
+   *  args[3] = list of buildings and floors to load
+   *  A manifest of the floor files read is written next to the output
+   *  (see FloorManifest).
+   * if:
+   * args[0] = BATCH_UPDATE
+   *  same arguments as BATCH_OUT, where args[1] was written by an earlier
+   *  BATCH_OUT or BATCH_UPDATE. Only the floor files that changed since
+   *  are read again, and only the spaces they affect are precomputed;
+   *  everything else is carried over from args[1]. Without a manifest
+   *  listing the same files, everything is rebuilt as for BATCH_OUT.
    */
   public JavaLocationServer(String[] filenames) throws RemoteException {
     super();
     
     if (filenames[0].equals("QUICK_START")) {
-      this.loadSerializedData(filenames[1]);
+      this.loadSerializedData(filenames[1], this.LAZY_LOAD);
+      this.numberSpaces();
+      this.numberPortals();
+      this.warmPathCache();
+      this.linkIncomingPortals();
+      this.bindHierarchies();
+      this.bindLandmarks();
+      if (!this.lazySpaces) {
+	this.buildCampusGraph();
+      }
+      this.buildSpaceIndex();
+      this.openRouteLog(filenames[1]);
       System.out.println(this.portalHashMap.values().size());
-    } else if (filenames[0].equals("BATCH_OUT")) {
+    } else if (filenames[0].equals("BATCH_OUT") || filenames[0].equals("BATCH_UPDATE")) {
       this.roomHashMap = new HashMap();
       this.portalHashMap = new HashMap();
-      this.routeCache = new HashMap();
+      this.routeCache = new RouteCache(this.ROUTE_CACHE_SIZE, this.perf);
       this.buildingHashMap = new HashMap();
+      this.hierarchies = new HashMap();
+      this.landmarks = new HashMap();
+      this.manifest = new FloorManifest();
       // make sure we have a set of maps to load
       if (filenames == null) {
 	throw new NullPointerException();
@@ -79,10 +193,235 @@ public class JavaLocationServer extends UnicastRemoteObject
       // have 500 spaces per file. Portals are listed as elements of source space.
       System.out.println("*READING SPACES & PORTALS*");
       String directory = filenames[2];
+      long readStart = System.currentTimeMillis();
+      resetPeakHeap();
+      Vector floorFiles = readFloorList(directory, filenames[3]);
+
+      // spaces to precompute; null for all of them
+      Vector changed = null;
+      if (filenames[0].equals("BATCH_UPDATE")) {
+	  FloorManifest previous = FloorManifest.read(filenames[1]);
+	  if (previous == null || !previous.getFiles().equals(floorFiles)) {
+	      System.out.println("No manifest of the same floor files for " +
+				 filenames[1] + ", rebuilding everything");
+	  } else {
+	      System.out.println("*UPDATING SPACES & PORTALS FROM " + filenames[1] + "*");
+	      HashMap buildings = this.buildingHashMap;
+	      this.loadSerializedData(filenames[1], false);
+	      this.snapshotPaths = null; // found again by findHotPaths
+	      // transition spaces are found again by relinkPortals
+	      this.buildingHashMap = buildings;
+	      changed = updateFloorFiles(previous, floorFiles);
+	      if (changed == null) {
+		  System.out.println(filenames[1] + " does not match its manifest, rebuilding everything");
+		  this.roomHashMap = new HashMap();
+		  this.portalHashMap = new HashMap();
+		  this.manifest = new FloorManifest();
+	      }
+	  }
+      }
+      if (changed == null) {
+	  readFloorFiles(floorFiles);
+      }
+      this.perf.set("load.read.ms", System.currentTimeMillis() - readStart);
+      this.perf.set("load.read.peakHeap.bytes", getPeakHeap());
+      if (this.PERFDATA) {
+	  System.out.println("  * read " + this.roomHashMap.size() + " spaces with " +
+			     this.XML_PARSER + " on " + Math.max(1, this.READ_THREADS) +
+			     " threads in " + this.perf.get("load.read.ms") +
+			     " ms, peak heap " + this.perf.get("load.read.peakHeap.bytes") +
+			     " bytes");
+      }
+      
+      // CONNECT PORTALS TO SPACES
+      System.out.println("*LINKING PORTALS TO SPACES*");
+      if (changed == null) {
+	  linkPortals();
+      } else {
+	  changed = relinkPortals(changed);
+      }
+      numberSpaces();
+      numberPortals();
+      linkIncomingPortals();
+      
+      // PRE-COMPUTE SPACES
+      if (this.PRECOMPUTE) {
+	System.out.println("*PRECOMPUTING SPACE DATA*");
+	if (changed == null) {
+	    precomputeSpaces();
+	} else {
+	    precomputeSpaces(changed);
+	}
+	buildCampusGraph();
+      }
+
+      // PREPARE CONTRACTION HIERARCHIES
+      System.out.println("*BUILDING CONTRACTION HIERARCHIES*");
+      buildHierarchies();
+
+      // SELECT LANDMARKS
+      System.out.println("*SELECTING LANDMARKS*");
+      buildLandmarks();
+      this.serializeOutput(filenames[1], this.findHotPaths(filenames[1]));
+      try {
+	  this.manifest.write(filenames[1]);
+      } catch (IOException ioe) {
+	  ioe.printStackTrace();
+      }
+      this.buildSpaceIndex();
+      this.openRouteLog(filenames[1]);
+    }
+  }
+
+  /**
+   * Private method that builds the spatial index used by getSpace to
+   * locate points, once the spaces are numbered (see SpaceIndex), the
+   * lists of the spaces of each floor, and the index of the names.
+   */
+  private void buildSpaceIndex() {
+    long start = System.currentTimeMillis();
+    this.spaceIndex = new SpaceIndex(this.roomHashMap.values());
+    this.perf.set("index.spaces.build.ms", System.currentTimeMillis() - start);
+    this.perf.set("index.spaces.partitions", this.spaceIndex.getPartitionCount());
+    this.perf.set("index.spaces.covers", this.spaceIndex.getCoverCount());
+
+    // the spaces of each floor, in id order
+    this.floorIndex = new HashMap();
+    Iterator rooms = this.roomHashMap.values().iterator();
+    while (rooms.hasNext()) {
+      Space s = (Space) rooms.next();
+      HashMap floors = (HashMap) this.floorIndex.get(s.getBuildingName());
+      if (floors == null) {
+	floors = new HashMap();
+	this.floorIndex.put(s.getBuildingName(), floors);
+      }
+      Vector spaces = (Vector) floors.get(s.getFloorName());
+      if (spaces == null) {
+	spaces = new Vector();
+	floors.put(s.getFloorName(), spaces);
+      }
+      spaces.add(s);
+    }
+
+    start = System.currentTimeMillis();
+    this.nameIndex = new NameIndex(this.roomHashMap.values(), this.buildingHashMap.keySet());
+    this.perf.set("index.names.build.ms", System.currentTimeMillis() - start);
+    this.perf.set("index.names.entries", this.nameIndex.size());
+  }
+
+  /**
+   * Private method that finds the paths to keep in a snapshot: those of
+   * the SNAPSHOT_PATHS pairs of portals crossed most often by the routes
+   * in the log of the snapshot about to be replaced, whichever version
+   * of it the log was written for (see RouteLog.readRoutes). The paths
+   * go in the path cache as well. Returns a Vector of
+   * PortalPathCache.Path, empty if SNAPSHOT_PATHS is 0.
+   */
+  private Vector findHotPaths(String snapshot) {
+    Vector answer = new Vector();
+    if (this.SNAPSHOT_PATHS <= 0) {
+      return answer;
+    }
+    final HashMap counts = new HashMap();       // key -> int[] { crossings }
+    LinkedHashMap pairs = new LinkedHashMap();  // key -> Portal[2], first crossed first
+    Vector routes = RouteLog.readRoutes(snapshot);
+    for (int i = 0; i < routes.size(); i++) {
+      Vector names = ((Route) routes.get(i)).getPortals();
+      for (int j = 0; j + 1 < names.size(); j++) {
+	Portal from = (Portal) this.portalHashMap.get(names.get(j));
+	Portal to = (Portal) this.portalHashMap.get(names.get(j + 1));
+	Long key = (from == null || to == null) ? null : PortalPathCache.key(from, to);
+	if (key == null || from.spaces[1] == null || from.spaces[1].getCSR() == null) {
+	  continue;
+	}
+	int[] count = (int[]) counts.get(key);
+	if (count == null) {
+	  count = new int[1];
+	  counts.put(key, count);
+	  pairs.put(key, new Portal[] { from, to });
+	}
+	count[0]++;
+      }
+    }
+
+    // most crossed first; the sort is stable, so ties keep their order
+    Vector keys = new Vector(pairs.keySet());
+    Collections.sort(keys, new Comparator() {
+	public int compare(Object a, Object b) {
+	  return ((int[]) counts.get(b))[0] - ((int[]) counts.get(a))[0];
+	}
+      });
+    for (int i = 0; i < keys.size() && i < this.SNAPSHOT_PATHS; i++) {
+      Portal[] pair = (Portal[]) pairs.get(keys.get(i));
+      double[] points =
+	PortalPathCache.pack(Library.getTautRoute(pair[0].getApproximatePosition(),
+						  pair[1].getApproximatePosition(),
+						  pair[0].spaces[1]));
+      this.pathCache.put(pair[0], pair[1], points);
+      answer.add(new PortalPathCache.Path(pair[0], pair[1], points));
+    }
+    this.perf.set("path.snapshot.paths", answer.size());
+    return answer;
+  }
+
+  /**
+   * Private method that puts the paths read with the snapshot in the
+   * path cache, once the portals are numbered.
+   */
+  private void warmPathCache() {
+    if (this.snapshotPaths == null) {
+      return;
+    }
+    for (int i = 0; i < this.snapshotPaths.size(); i++) {
+      PortalPathCache.Path p = (PortalPathCache.Path) this.snapshotPaths.get(i);
+      this.pathCache.put(p.from, p.to, p.points);
+    }
+    this.perf.set("path.cache.loaded", this.snapshotPaths.size());
+    this.snapshotPaths = null;
+  }
+
+  /**
+   * Private method that opens the route log of a snapshot, putting the
+   * routes logged for it in the route cache. A log written for an
+   * earlier version of the snapshot is emptied (see RouteLog).
+   */
+  private void openRouteLog(String snapshot) {
+    if (!this.MEMOIZE || !this.ROUTE_LOG) {
+      return;
+    }
+    try {
+      this.routeLog = new RouteLog(snapshot, this.routeCache, this.perf);
+      System.out.println("Warmed route cache with " + this.perf.get("route.log.loaded") +
+			 " routes from " + snapshot + RouteLog.SUFFIX);
+    } catch (IOException ioe) {
+      System.out.println("No route log: " + ioe);
+      this.routeLog = null;
+    }
+  }
+
+  /**
+   * Private method that keeps the result of a request (RouteCache.NO_ROUTE
+   * if there is no route) in the route cache and the route log.
+   */
+  private void remember(String key, Route request, Route result) {
+    if (!this.MEMOIZE) {
+      return;
+    }
+    this.routeCache.put(key, result);
+    if (this.routeLog != null) {
+      this.routeLog.append(request, result);
+    }
+  }
 
-      // READ FLOOR FILE NAMES FROM XML DOCUMENT
-      Document document  = readDocument(directory + filenames[3]);
+  /**
+   * Private method that reads the list of buildings and floors, making a
+   * Building for each building listed. Returns the names of the floor
+   * files, in list order.
+   */
+  private Vector readFloorList(String directory, String listfile) {
+      Document document  = readDocument(directory + listfile);
       NodeList buildings = document.getElementsByTagName("building");
+      Vector floorFiles = new Vector();
       for (int i = 0; i < buildings.getLength(); i++) {
 	  Element building = (Element)buildings.item(i);
 	  String bldngname = building.getAttribute("id");
@@ -94,21 +433,10 @@ public class JavaLocationServer extends UnicastRemoteObject
 	  for (int j = 0; j < floors.getLength(); j++) {
 	      Element floor = (Element)floors.item(j);
 	      String floorname = floor.getAttribute("id");
-	      readSpaces(directory + bldngname + "-" + floorname + ".xml", bldngObj);
+	      floorFiles.add(directory + bldngname + "-" + floorname + ".xml");
 	  }
       }
-      
-      // CONNECT PORTALS TO SPACES
-      System.out.println("*LINKING PORTALS TO SPACES*");
-      linkPortals();
-      
-      // PRE-COMPUTE SPACES
-      if (this.PRECOMPUTE) {
-	System.out.println("*PRECOMPUTING SPACE DATA*");
-	precomputeSpaces();
-      }
-      this.serializeOutput(filenames[1]);
-    }
+      return floorFiles;
   }
 
   /**
@@ -117,9 +445,10 @@ public class JavaLocationServer extends UnicastRemoteObject
    * <Bldng>-<Floor><Room> (e.g. 1-078 for Bldng 1, Floor 0, Room 78)
   */
   private String getFullName(Element space, String filename) {
-      String spaceName = space.getAttribute("name");
-      String spaceType = space.getAttribute("type");
-      
+      return getFullName(space.getAttribute("name"), filename);
+  }
+
+  private String getFullName(String spaceName, String filename) {
       // e.g. filename: inputDir/1-1.xml
       int indexStart = filename.lastIndexOf('/');
       int indexEnd   = filename.lastIndexOf(".xml");
@@ -133,6 +462,42 @@ public class JavaLocationServer extends UnicastRemoteObject
       }
   }
 
+  /**
+   * returns the floor id of a floor file, which is named
+   * <Bldng>-<Floor>.xml (e.g. 1M for inputDir/10-1M.xml)
+   */
+  private String getFloorId(String filename) {
+      int indexStart = filename.lastIndexOf('/');
+      int indexEnd   = filename.lastIndexOf(".xml");
+      String bldg_floor = filename.substring(indexStart+1, indexEnd);
+      return bldg_floor.substring(bldg_floor.indexOf('-') + 1);
+  }
+
+  /**
+   * Reset the recorded peak usage of the heap memory pools.
+   */
+  private static void resetPeakHeap() {
+      Iterator i = ManagementFactory.getMemoryPoolMXBeans().iterator();
+      while (i.hasNext()) {
+	  MemoryPoolMXBean pool = (MemoryPoolMXBean) i.next();
+	  if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+      }
+  }
+
+  /**
+   * Sum of the peak usage of the heap memory pools since the last
+   * resetPeakHeap.
+   */
+  private static long getPeakHeap() {
+      long bytes = 0;
+      Iterator i = ManagementFactory.getMemoryPoolMXBeans().iterator();
+      while (i.hasNext()) {
+	  MemoryPoolMXBean pool = (MemoryPoolMXBean) i.next();
+	  if (pool.getType() == MemoryType.HEAP) bytes += pool.getPeakUsage().getUsed();
+      }
+      return bytes;
+  }
+
   /**
    * Private method that takes in a file name, parses the file,
    * and then constructs the xml document.
@@ -161,15 +526,248 @@ public class JavaLocationServer extends UnicastRemoteObject
       return document;
   }
 
+  /**
+   * Private method that reads the floor files in the vector, in order,
+   * into the room and portal hashmaps, and records them in the manifest.
+   * The files are parsed concurrently (parseFloorFiles) and then merged
+   * in file order, so that the hashmaps come out the same as if the
+   * files had been read one after the other (a later space or portal of
+   * the same name replaces an earlier one).
+   */
+  private void readFloorFiles(Vector filenames) {
+      Object[][] files = parseFloorFiles(filenames);
+      for (int i = 0; i < files.length; i++) {
+	  addFloorFile((String) filenames.get(i), files[i]);
+	  files[i] = null;
+      }
+  }
+
+  // merge one result of parseFloorFiles into the hashmaps and manifest
+  private void addFloorFile(String filename, Object[] file) {
+      HashMap rooms = (HashMap) file[0];
+      HashMap portals = (HashMap) file[1];
+      putAllInOrder(this.roomHashMap, rooms);
+      putAllInOrder(this.portalHashMap, portals);
+      this.manifest.add(filename, (String) file[2], rooms.keySet(), portals.keySet());
+  }
+
+  /**
+   * Private method that parses the floor files in the vector on
+   * READ_THREADS workers, each into maps of its own. Returns, for each
+   * file in order, { rooms, portals, hash }: its spaces and portals in
+   * file order, and the FloorManifest hash of its contents.
+   */
+  private Object[][] parseFloorFiles(Vector filenames) {
+      int threads = Math.max(1, this.READ_THREADS);
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      Object[][] files = new Object[filenames.size()][];
+      try {
+	  Vector futures = new Vector();
+	  for (int i = 0; i < filenames.size(); i++) {
+	      final String filename = (String) filenames.get(i);
+	      futures.add(pool.submit(new Callable() {
+		      public Object call() {
+			  HashMap rooms = new LinkedHashMap();
+			  HashMap portals = new LinkedHashMap();
+			  String hash = FloorManifest.hash(filename);
+			  readSpaces(filename, rooms, portals);
+			  return new Object[] { rooms, portals, hash };
+		      }
+		  }));
+	  }
+	  for (int i = 0; i < futures.size(); i++) {
+	      try {
+		  files[i] = (Object[]) ((Future) futures.get(i)).get();
+	      } catch (ExecutionException ee) {
+		  Throwable cause = ee.getCause();
+		  if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+		  throw new RuntimeException("Reading " + filenames.get(i) + " failed", cause);
+	      } catch (InterruptedException ie) {
+		  throw new RuntimeException("Reading " + filenames.get(i) + " interrupted", ie);
+	      }
+	      futures.set(i, null);
+	      if (this.PERFDATA && (i + 1) * 10 / futures.size() > i * 10 / futures.size()) {
+		  System.out.println("  * " + (i + 1) + "/" + futures.size() + " floor files read");
+	      }
+	  }
+      } finally {
+	  pool.shutdown();
+      }
+      this.perf.set("load.read.threads", threads);
+      return files;
+  }
+
+  // put one entry at a time, in the source's order (HashMap.putAll may
+  // presize the table, which changes the iteration order)
+  private static void putAllInOrder(HashMap dest, HashMap src) {
+      Iterator i = src.entrySet().iterator();
+      while (i.hasNext()) {
+	  Map.Entry e = (Map.Entry) i.next();
+	  dest.put(e.getKey(), e.getValue());
+      }
+  }
+
   /**
    * Private method that takes in a file name for a set of spaces for
    * a given building, parses the file, and then constructs the Space
    * objects for each listed space. Roughly, spaces correspond to
    * rooms in a building. This method reads in a file name, constructs
-   * the spaces, and updates an adjacency structure with the portals
-   * associated with the space
+   * the spaces, and adds them and the portals associated with them to
+   * the given maps. The file is read with XML_PARSER.
    */ 
-    private void readSpaces(String filename, Building building) {
+  private void readSpaces(String filename, HashMap rooms, HashMap portals) {
+      if (this.XML_PARSER.equals(PARSER_DOM)) {
+	  readSpacesDOM(filename, rooms, portals);
+      } else {
+	  readSpacesStreaming(filename, rooms, portals);
+      }
+  }
+
+  /**
+   * Private method that reads the spaces of a file in one pass with a
+   * FloorFileReader, building the Space, Polyline and Portal objects as
+   * each space element ends. The result is the same as readSpacesDOM.
+   */
+  private void readSpacesStreaming(String filename, HashMap rooms, HashMap portals) {
+      FloorFileReader reader = null;
+      try {
+	  reader = new FloorFileReader(filename);
+	  while (reader.nextSpace()) {
+	      String roomName = getFullName(reader.getName(), filename);
+	      String roomType = Space.determineType(reader.getType());
+
+	      /* set up the bounding box calculation */
+	      double[] boundingBox = new double[4];
+	      boundingBox[0] = Double.MAX_VALUE; // xmin
+	      boundingBox[1] = Double.MAX_VALUE; // ymin
+	      boundingBox[2] = Double.MIN_VALUE; // xmax
+	      boundingBox[3] = Double.MIN_VALUE; // ymax
+
+	      /* now, construct the Polyline */
+	      Polyline polyline = new Polyline();
+	      for (int j = 0; j < reader.getNumPoints(); j++) {
+		  double x = reader.getX(j);
+		  double y = reader.getY(j);
+		  double z = 0.0;
+
+		  /* sieve - figure out bounding box */
+		  if (x < boundingBox[0]) { boundingBox[0] = x; }
+		  if (y < boundingBox[1]) { boundingBox[1] = y; }
+		  if (x > boundingBox[2]) { boundingBox[2] = x; }
+		  if (y > boundingBox[3]) { boundingBox[3] = y; }
+
+		  /* finished - add point to polyline */
+		  polyline.addPoint(new Position(x, y, z));
+	      }
+
+	      // triangle vertices index the contour points
+	      double[] triangles2D = new double[reader.getNumTriangles() * 6];
+	      for (int j = 0; j < reader.getNumTriangles(); j++) {
+		  for (int k = 0; k < 3; k++) {
+		      int v = reader.getVertex(j, k);
+		      triangles2D[6*j + 2*k]   = reader.getX(v);
+		      triangles2D[6*j + 2*k+1] = reader.getY(v);
+		  }
+	      }
+
+	      // make the space
+	      Space spaceObj = new Space(roomName, roomType, polyline, boundingBox, triangles2D, 12.0f);
+	      spaceObj.setFloor(getFloorId(filename));
+	      rooms.put(roomName, spaceObj);
+	      readPortals(reader, roomName, rooms, portals);
+	  }
+      } catch (XMLStreamException xse) {
+	  // Error generated during parsing
+	  xse.printStackTrace();
+      } catch (IOException ioe) {
+	  // I/O error
+	  ioe.printStackTrace();
+      } finally {
+	  if (reader != null) reader.close();
+      }
+  }
+
+  /**
+   * Streaming counterpart of readPortals(Element, String): constructs
+   * the portals of the space the reader is at.
+   */
+  private int readPortals(FloorFileReader reader, String spaceName0,
+			  HashMap rooms, HashMap portalMap) {
+      Vector portals = reader.getPortals();
+
+      for (int i = 0; i < portals.size(); i++) {
+	  FloorFileReader.PortalElement portal = (FloorFileReader.PortalElement)portals.get(i);
+	  Polyline contour = new Polyline();
+
+	  // get the name of the spaces the portal connects
+	  String spaceName1 = portal.target;
+	  Space space0 = null;
+	  if (spaceName0 != "0") { space0 = (Space) rooms.get(spaceName0); } // get space1 later
+
+	  // get the portal type (e.g. stair, elevator, door)
+	  String portalType = Portal.determineType(portal.type, portal.pclass, portal.direction);
+
+	  // get the unique portal name
+	  String portalName = portalType + Integer.toString(i);
+	  portalName = portalName + spaceName0 + spaceName1;
+
+	  // make sure that the portal actually connects two buildings!
+	  if (space0 != null && spaceName1 != null) {
+
+	      // PORTAL LOCATION -- campus coordinates
+	      if(portal.pclass.equalsIgnoreCase("HORIZONTAL")) {
+		  // horizontal portals are incident to a single edge of the space contour
+		  double t1, t2;
+		  if(!portal.hasEdge) {
+		      System.out.println("Missing an edge: " + reader.getName() +
+					 "->" + portal.target);
+		      throw new NullPointerException();
+		  }
+		  int edgeIndex = (Integer.parseInt(portal.index)) %
+		      (reader.getNumPoints()-1);
+
+		  if(portal.hasMinparam) {
+		      t1 = edgeParam(portal.minparam);
+		      t2 = edgeParam(portal.maxparam);
+		  } else {
+		      double tmid = edgeParam(portal.param);
+		      t1 = tmid - 0.1;
+		      t2 = tmid + 0.1;
+		  }
+		  // 2D -- all spaces on same floor have same height
+		  double x1 = reader.getX(edgeIndex),   y1 = reader.getY(edgeIndex);
+		  double x2 = reader.getX(edgeIndex+1), y2 = reader.getY(edgeIndex+1);
+
+		  // end points determined by interpolating along incident contour edge
+		  contour.addPoint(new Position(x1 + t1*(x2-x1), y1 + t1*(y2-y1), 0));
+		  contour.addPoint(new Position(x1 + t2*(x2-x1), y1 + t2*(y2-y1), 0));
+	      }
+	      else if(portal.pclass.equalsIgnoreCase("VERTICAL")) {
+		  // vertical portals have same contour as their source space
+		  contour = space0.getBoundaries();
+	      }
+	      // instantiate our portal, and add it to an internal map
+	      Portal nextPortal = new Portal(portalName, portalType, space0, spaceName1, contour);
+	      portalMap.put(portalName, nextPortal);
+	  } else {
+	      System.out.println("** Portal " + portalName + " has bogus entries!");
+	  }
+      }
+      return portals.size();
+  }
+
+  // edge parameter attribute; "false" is a bug in the xml output
+  private static double edgeParam(String value) {
+      if (value.equalsIgnoreCase("false"))
+	  return 0.0;
+      return Double.parseDouble(value);
+  }
+
+  /**
+   * Private method that reads the spaces of a file from a DOM of the
+   * whole file (the original loader, kept for comparison).
+   */
+  private void readSpacesDOM(String filename, HashMap rooms, HashMap portals) {
 
       // get list of all spaces in this xml document
       Document document = readDocument(filename);
@@ -183,8 +781,6 @@ public class JavaLocationServer extends UnicastRemoteObject
 	      String roomName = getFullName(space, filename);
 	      String roomType = Space.determineType(space.getAttribute("type"));
 
-	      System.out.println(space.getAttribute("name"));
-	      
 	      /* set up the bounding box calculation */
 	      double[] boundingBox = new double[4];
 	      boundingBox[0] = Double.MAX_VALUE; // xmin
@@ -250,8 +846,9 @@ public class JavaLocationServer extends UnicastRemoteObject
 
 	      // make the space
 	      Space spaceObj = new Space(roomName, roomType, polyline, boundingBox, triangles2D, 12.0f);
-	      roomHashMap.put(roomName, spaceObj);
-	      readPortals(space, roomName);
+	      spaceObj.setFloor(getFloorId(filename));
+	      rooms.put(roomName, spaceObj);
+	      readPortals(space, roomName, rooms, portals);
 	  
 	  } /** end do rooms */
       }
@@ -263,7 +860,8 @@ public class JavaLocationServer extends UnicastRemoteObject
    * and constructs the portals (roughly, a door or similar connector between
    * two spaces), giving each portal a reference to its named spaces.
    */ 
-  private int readPortals(Element space, String spaceName0) {
+  private int readPortals(Element space, String spaceName0,
+			  HashMap rooms, HashMap portalMap) {
       NodeList portals = space.getElementsByTagName("portal");
     
       for (int i = 0; i < portals.getLength(); i++) {
@@ -273,7 +871,7 @@ public class JavaLocationServer extends UnicastRemoteObject
 	  // get the name of the spaces the portal connects
 	  String spaceName1 = portal.getAttribute("target");
 	  Space space0 = null;
-	  if (spaceName0 != "0") { space0 = this.getSpaceByName(spaceName0); } // get space1 later
+	  if (spaceName0 != "0") { space0 = (Space) rooms.get(spaceName0); } // get space1 later
 
 	  // get the portal type (e.g. stair, elevator, door)
 	  String portalType = Portal.determineType(portal);
@@ -342,7 +940,7 @@ public class JavaLocationServer extends UnicastRemoteObject
 	      }
 	      // instantiate our portal, and add it to an internal map
 	      Portal nextPortal = new Portal(portalName, portalType, space0, spaceName1, contour);
-	      portalHashMap.put(portalName, nextPortal);
+	      portalMap.put(portalName, nextPortal);
 	  } else {
 	      System.out.println("** Portal " + portalName + " has bogus entries!");
 	  }
@@ -402,67 +1000,744 @@ public class JavaLocationServer extends UnicastRemoteObject
   }
 
   /**
-   * Private method that iterates through all spaces stored in the roomhashmap.
-   * For each space, precomputes the internal graph, and the portal pair giving the
-   * shortest route through the space.
+   * Private method for BATCH_UPDATE, run on the spaces and portals
+   * loaded from the previous snapshot. Reads again the floor files whose
+   * contents differ from the previous manifest, along with any other file
+   * defining a space or portal of the same name as one of them (the last
+   * definition of a name wins, so all of them are needed). The room and
+   * portal hashmaps are then made again in file order, from the new
+   * objects for the files read and from the loaded ones for the rest, so
+   * that they come out as readFloorFiles would make them. Returns the
+   * spaces read, or null if the snapshot lacks spaces or portals its
+   * manifest lists.
    */
-  private void precomputeSpaces() {
-      Iterator rooms = this.roomHashMap.values().iterator();
-      int precomp = 0;
-      System.out.println("JavaLocationServer::precomputeSpaces");
-      while (rooms.hasNext()) {
-	  precomp++;
-	  if (this.PERFDATA && precomp % 100 == 0) {
-	      System.out.println("  * "+precomp+" Spaces Precomputed");
+  private Vector updateFloorFiles(FloorManifest previous, Vector floorFiles) {
+      HashMap oldRooms = this.roomHashMap;
+      HashMap oldPortals = this.portalHashMap;
+
+      // files defining each space and portal name
+      HashMap spaceFiles = new HashMap();
+      HashMap portalFiles = new HashMap();
+      for (int i = 0; i < floorFiles.size(); i++) {
+	  String filename = (String) floorFiles.get(i);
+	  addDefinitions(spaceFiles, previous.getSpaces(filename), filename);
+	  addDefinitions(portalFiles, previous.getPortals(filename), filename);
+      }
+
+      HashSet dirty = new HashSet();
+      for (int i = 0; i < floorFiles.size(); i++) {
+	  String filename = (String) floorFiles.get(i);
+	  if (!FloorManifest.hash(filename).equals(previous.getHash(filename))) {
+	      dirty.add(filename);
 	  }
-	  Space s = (Space) rooms.next();
-	  // build graph of space triangulation that connects all adjacent portals
-	  System.out.println("Space: " + s.getName() + " -- build graph");
-	  s.buildGraph();
-	  s.computeBestPortalsForSpaces();
       }
-  }
+      int changedFiles = dirty.size();
 
-  public String getSpaceName(Location location) {
-    return this.getSpace(location).getName();
+      // read the dirty files, until no file shares a name with one read
+      HashMap parsed = new HashMap(); // file name -> parseFloorFiles result
+      while (parsed.size() < dirty.size()) {
+	  Vector toRead = new Vector();
+	  for (int i = 0; i < floorFiles.size(); i++) {
+	      String filename = (String) floorFiles.get(i);
+	      if (dirty.contains(filename) && !parsed.containsKey(filename)) {
+		  toRead.add(filename);
+	      }
+	  }
+	  Object[][] files = parseFloorFiles(toRead);
+	  for (int i = 0; i < files.length; i++) {
+	      String filename = (String) toRead.get(i);
+	      parsed.put(filename, files[i]);
+	      addDefinedBy(dirty, spaceFiles, previous.getSpaces(filename));
+	      addDefinedBy(dirty, spaceFiles, ((HashMap) files[i][0]).keySet());
+	      addDefinedBy(dirty, portalFiles, previous.getPortals(filename));
+	      addDefinedBy(dirty, portalFiles, ((HashMap) files[i][1]).keySet());
+	  }
+      }
+
+      this.roomHashMap = new HashMap();
+      this.portalHashMap = new HashMap();
+      Vector changed = new Vector();
+      for (int i = 0; i < floorFiles.size(); i++) {
+	  String filename = (String) floorFiles.get(i);
+	  Object[] file = (Object[]) parsed.get(filename);
+	  if (file == null) {
+	      // carried over: the loaded objects, under the names the file defined
+	      file = new Object[] { carriedOver(oldRooms, previous.getSpaces(filename)),
+				    carriedOver(oldPortals, previous.getPortals(filename)),
+				    previous.getHash(filename) };
+	      if (file[0] == null || file[1] == null) {
+		  return null;
+	      }
+	  } else {
+	      changed.addAll(((HashMap) file[0]).values());
+	  }
+	  addFloorFile(filename, file);
+      }
+
+      this.perf.set("update.files.changed", changedFiles);
+      this.perf.set("update.files.read", parsed.size());
+      System.out.println("  * " + changedFiles + " of " + floorFiles.size() +
+			 " floor files changed, " + parsed.size() + " read again");
+      return changed;
   }
 
-  /* use the polyline algorithm to figure out if a Location is inside
-     a Space.
-     if location == null, return any Space
-  */
-  
-  public Space getSpace(Location location) {
-    Iterator i = this.roomHashMap.values().iterator();
-    for (;i.hasNext();) {
-      Space nextSpace = (Space) i.next();
-      if (location == null)
-	return nextSpace;
-      if (nextSpace.isInside2D(location.getPosition()))
-	return nextSpace;
-    }
-    return null;
+  // add filename to the files defining each of the names
+  private static void addDefinitions(HashMap files, Collection names, String filename) {
+      Iterator i = names.iterator();
+      while (i.hasNext()) {
+	  Object name = i.next();
+	  Vector v = (Vector) files.get(name);
+	  if (v == null) {
+	      v = new Vector();
+	      files.put(name, v);
+	  }
+	  v.add(filename);
+      }
+  }
+
+  // add to dirty the files defining any of the names
+  private static void addDefinedBy(HashSet dirty, HashMap files, Collection names) {
+      Iterator i = names.iterator();
+      while (i.hasNext()) {
+	  Vector v = (Vector) files.get(i.next());
+	  if (v != null) {
+	      dirty.addAll(v);
+	  }
+      }
+  }
+
+  // the objects of the given names in the loaded map, in order; null if one is missing
+  private static HashMap carriedOver(HashMap loaded, Vector names) {
+      HashMap map = new LinkedHashMap();
+      for (int i = 0; i < names.size(); i++) {
+	  Object o = loaded.get(names.get(i));
+	  if (o == null) {
+	      return null;
+	  }
+	  map.put(names.get(i), o);
+      }
+      return map;
+  }
+
+  /**
+   * Private method for BATCH_UPDATE, in place of linkPortals once
+   * updateFloorFiles has made the hashmaps. Every portal is pointed at
+   * the space linkPortals would give it, which only changes portals
+   * that were read again or whose destination was. A space whose
+   * portals then differ from those linkPortals would have added has
+   * them linked again. Takes the spaces that were read again and
+   * returns the spaces of the roomhashmap to precompute: those, the
+   * spaces whose portals changed, and the sources of the portals whose
+   * destination changed (their neighbors did).
+   */
+  private Vector relinkPortals(Vector changed) {
+      HashSet affected = new HashSet(changed);
+      HashMap expected = new HashMap(); // space -> portals, in linkPortals order
+      int relinked = 0;
+      int reallyLinked = 0;
+      Iterator portals = this.portalHashMap.values().iterator();
+      while (portals.hasNext()) {
+	  Portal p = (Portal) portals.next();
+	  Space src  = p.spaces[0];
+	  Space dest = null;
+	  if (p.spacenames[1].indexOf("FLOORCONTOUR") < 0) {
+	      dest = this.getSpaceByName(p.spacenames[1]);
+	  }
+	  if (p.spaces[1] != dest) {
+	      p.setDestSpace(dest);
+	      relinked++;
+	      if (src != null) {
+		  affected.add(src);
+	      }
+	  }
+
+	  if (src != null && dest != null) {
+	      Vector v = (Vector) expected.get(src);
+	      if (v == null) {
+		  v = new Vector();
+		  expected.put(src, v);
+	      }
+	      v.add(p);
+	      reallyLinked++;
+
+	      // buildings are not serialized, so their transition spaces are found again
+	      if (p.type.equals(Portal.TYPE_TRANSITION)) {
+		  String bname = src.getBuildingName();
+		  Building b = this.getBuilding(bname);
+		  b.addTransitionSpace(src);
+	      }
+	  }
+      }
+
+      // spaces that are sources now, and spaces that may have lost all their portals
+      HashSet spaces = new HashSet(expected.keySet());
+      spaces.addAll(this.roomHashMap.values());
+      Iterator i = spaces.iterator();
+      while (i.hasNext()) {
+	  Space s = (Space) i.next();
+	  Vector v = (Vector) expected.get(s);
+	  if (v == null) {
+	      v = new Vector();
+	  }
+	  if (!s.getPortals().equals(v)) {
+	      s.clearPortals();
+	      for (int j = 0; j < v.size(); j++) {
+		  s.addPortal((Portal) v.get(j));
+	      }
+	      affected.add(s);
+	  }
+      }
+
+      Vector precompute = new Vector();
+      i = affected.iterator();
+      while (i.hasNext()) {
+	  Space s = (Space) i.next();
+	  if (this.roomHashMap.get(s.getName()) == s) {
+	      s.setNeighbors(null);
+	      precompute.add(s);
+	  }
+      }
+      System.out.println("Total Portals: "+this.portalHashMap.values().size());
+      System.out.println("Total Portals Linked: "+reallyLinked);
+      System.out.println("  * " + relinked + " portals linked again, " +
+			 precompute.size() + " spaces to precompute");
+      return precompute;
+  }
+
+  /**
+   * Private function giving every space a dense integer id for the search
+   * engines. Spaces in the roomhashmap are numbered first; spaces that were
+   * shadowed by a later space of the same name but are still referenced by
+   * a portal get ids after them. Ids left from an earlier numbering are
+   * cleared first.
+   */
+  private void numberSpaces() {
+      Iterator portals = this.portalHashMap.values().iterator();
+      while (portals.hasNext()) {
+	  Portal p = (Portal) portals.next();
+	  for (int i = 0; i < p.spaces.length; i++) {
+	      if (p.spaces[i] != null) {
+		  p.spaces[i].setId(-1);
+	      }
+	  }
+      }
+      int next = 0;
+      Iterator rooms = this.roomHashMap.values().iterator();
+      while (rooms.hasNext()) {
+	  ((Space) rooms.next()).setId(next++);
+      }
+      portals = this.portalHashMap.values().iterator();
+      while (portals.hasNext()) {
+	  Portal p = (Portal) portals.next();
+	  for (int i = 0; i < p.spaces.length; i++) {
+	      if (p.spaces[i] != null && p.spaces[i].getId() < 0) {
+		  p.spaces[i].setId(next++);
+	      }
+	  }
+      }
+  }
+
+  /**
+   * Private function giving every portal a dense integer id for the
+   * portal search (Route.SEARCH_EXACT).
+   */
+  private void numberPortals() {
+      int next = 0;
+      Iterator portals = this.portalHashMap.values().iterator();
+      while (portals.hasNext()) {
+	  ((Portal) portals.next()).setId(next++);
+      }
+  }
+
+  /**
+   * Private function building the reverse adjacency of the space graph:
+   * every linked portal A->B is registered as an incoming portal of B.
+   * Incoming portals are not serialized, so this runs after loading too.
+   */
+  private void linkIncomingPortals() {
+      Iterator portals = this.portalHashMap.values().iterator();
+      while (portals.hasNext()) {
+	  Portal p = (Portal) portals.next();
+	  if (p.spaces[0] != null && p.spaces[1] != null) {
+	      p.spaces[1].addIncomingPortal(p);
+	  }
+      }
+  }
+
+  /**
+   * Private method that iterates through all spaces stored in the roomhashmap.
+   * For each space, precomputes the internal graph, and the portal pair giving the
+   * shortest route through the space. Once all graphs exist, the distances
+   * between each space's portals are computed for the exact portal search.
+   * Both stages run on PRECOMPUTE_THREADS fork/join workers, over the
+   * spaces in name order.
+   */
+  private void precomputeSpaces() {
+      precomputeSpaces(this.roomHashMap.values(), this.roomHashMap.values());
+  }
+
+  /**
+   * Private method that precomputes only the given spaces (BATCH_UPDATE):
+   * their graphs, and the portal distances of them and of the spaces
+   * with portals into them, which are measured on their graphs.
+   */
+  private void precomputeSpaces(Collection changed) {
+      HashSet distances = new HashSet(changed);
+      Iterator i = changed.iterator();
+      while (i.hasNext()) {
+	  Iterator in = ((Space) i.next()).getIncomingPortals().iterator();
+	  while (in.hasNext()) {
+	      Space src = ((Portal) in.next()).spaces[0];
+	      if (this.roomHashMap.get(src.getName()) == src) {
+		  distances.add(src);
+	      }
+	  }
+      }
+      this.perf.set("update.spaces.graphs", changed.size());
+      this.perf.set("update.spaces.portalDistances", distances.size());
+      precomputeSpaces(changed, distances);
+  }
+
+  // the graphs stage runs on graphSpaces, the portal distances stage on distanceSpaces
+  private void precomputeSpaces(Collection graphSpaces, Collection distanceSpaces) {
+      int threads = Math.max(1, this.PRECOMPUTE_THREADS);
+      System.out.println("JavaLocationServer::precomputeSpaces (" + threads + " threads)");
+      Space[] graphs = sortByName(graphSpaces);
+      Space[] spaces = sortByName(distanceSpaces);
+
+      ForkJoinPool pool = new ForkJoinPool(threads);
+      try {
+	  // build graph of space triangulation that connects all adjacent
+	  // portals; its array form is made in the same stage, since the
+	  // next one reads the graphs of neighbouring spaces
+	  this.runPrecomputeStage(pool, graphs, SpaceStage.GRAPHS);
+	  // graphs carried over have no array form yet; make it before
+	  // the workers read it
+	  for (int i = 0; i < spaces.length; i++) {
+	      Iterator portals = spaces[i].getPortals().iterator();
+	      while (portals.hasNext()) {
+		  Space dest = ((Portal) portals.next()).spaces[1];
+		  if (dest != null) {
+		      dest.getCSR();
+		  }
+	      }
+	  }
+	  this.runPrecomputeStage(pool, spaces, SpaceStage.PORTAL_DISTANCES);
+      } finally {
+	  pool.shutdown();
+      }
+      this.perf.set("precompute.threads", threads);
+
+      long entries = 0;
+      Iterator i = this.roomHashMap.values().iterator();
+      while (i.hasNext()) {
+	  entries += ((Space) i.next()).getPortalDistances().length;
+      }
+      this.perf.set("spaces.portalDistances.bytes", 4 * entries);
+      if (this.PERFDATA) {
+	  System.out.println("  * portal distance matrices: " + (4 * entries) + " bytes");
+      }
+  }
+
+  private static Space[] sortByName(Collection c) {
+      Space[] spaces = (Space[]) c.toArray(new Space[0]);
+      Arrays.sort(spaces, new Comparator() {
+	      public int compare(Object a, Object b) {
+		  return ((Space) a).getName().compareTo(((Space) b).getName());
+	      }
+	  });
+      return spaces;
+  }
+
+  /**
+   * Private method that runs one stage of precomputeSpaces over the
+   * given spaces on the pool, reporting progress every tenth of the way and
+   * the stage time (perf counter precompute.<stage>.ms).
+   */
+  private void runPrecomputeStage(ForkJoinPool pool, Space[] spaces, String stage) {
+      long start = System.currentTimeMillis();
+      AtomicInteger done = new AtomicInteger();
+      if (spaces.length > 0) {
+	  pool.invoke(new SpaceStage(stage, spaces, 0, spaces.length, done, this.PERFDATA));
+      }
+      long ms = System.currentTimeMillis() - start;
+      this.perf.set("precompute." + stage + ".ms", ms);
+      if (this.PERFDATA) {
+	  System.out.println("  * " + stage + ": " + spaces.length + " spaces, " + ms + " ms");
+      }
+  }
+
+  /**
+   * Fork/join task running one precompute stage over a range of
+   * spaces, split in halves down to GRAIN spaces.
+   */
+  private static class SpaceStage extends RecursiveAction {
+      static final String GRAPHS = "graphs";
+      static final String PORTAL_DISTANCES = "portalDistances";
+      static final int GRAIN = 64;
+
+      private String stage;
+      private Space[] spaces;
+      private int lo, hi;
+      private AtomicInteger done;
+      private boolean report;
+
+      SpaceStage(String stage, Space[] spaces, int lo, int hi,
+		 AtomicInteger done, boolean report) {
+	  this.stage = stage;
+	  this.spaces = spaces;
+	  this.lo = lo;
+	  this.hi = hi;
+	  this.done = done;
+	  this.report = report;
+      }
+
+      protected void compute() {
+	  if (hi - lo > GRAIN) {
+	      int mid = (lo + hi) >>> 1;
+	      invokeAll(new SpaceStage(stage, spaces, lo, mid, done, report),
+			new SpaceStage(stage, spaces, mid, hi, done, report));
+	      return;
+	  }
+	  for (int i = lo; i < hi; i++) {
+	      Space s = spaces[i];
+	      if (stage == GRAPHS) {
+		  s.buildGraph();
+		  s.getCSR();
+		  s.computeBestPortalsForSpaces();
+	      } else {
+		  s.computePortalDistances();
+	      }
+	  }
+	  int total = spaces.length;
+	  int after = done.addAndGet(hi - lo);
+	  int before = after - (hi - lo);
+	  if (report && (long) after * 10 / total > (long) before * 10 / total) {
+	      System.out.println("  * " + stage + ": " + after + "/" + total +
+				 " spaces (" + ((long) after * 100 / total) + "%)");
+	  }
+      }
+  }
+
+  /**
+   * Private method that prepares a contraction hierarchy of the space
+   * graph for each route type in HIERARCHY_TYPES.
+   */
+  private void buildHierarchies() {
+      for (int i = 0; i < this.HIERARCHY_TYPES.length; i++) {
+	  long start = System.currentTimeMillis();
+	  Route r = new Route(null, null, this.HIERARCHY_TYPES[i]);
+	  ContractionHierarchy ch =
+	      ContractionHierarchy.build(this.roomHashMap.values(), r);
+	  this.hierarchies.put(r.getType(), ch);
+	  if (this.PERFDATA) {
+	      System.out.println("  * " + r.getType() + ": " + ch.getNumNodes() +
+				 " spaces, " + ch.getNumShortcuts() + " shortcuts, " +
+				 ch.memoryBytes() + " bytes, " +
+				 (System.currentTimeMillis() - start) + " ms");
+	  }
+      }
+  }
+
+  /**
+   * Private method that attaches loaded hierarchies to the loaded spaces.
+   */
+  private void bindHierarchies() {
+      Iterator i = this.hierarchies.values().iterator();
+      while (i.hasNext()) {
+	  ContractionHierarchy ch = (ContractionHierarchy) i.next();
+	  int missing = ch.bind(this.roomHashMap);
+	  System.out.println("Loaded hierarchy for " + ch.getRouteType() +
+			     " (" + missing + " spaces missing)");
+      }
+  }
+
+  /**
+   * Return the contraction hierarchy prepared for a route type, or null.
+   */
+  public ContractionHierarchy getHierarchy(String routeType) {
+    return (ContractionHierarchy) this.hierarchies.get(routeType);
+  }
+
+  /**
+   * Private method that selects landmarks and computes their distance
+   * tables for each route type in HIERARCHY_TYPES. The one-to-all
+   * searches are spread over all processors. Table sizes go to the perf
+   * counters as landmarks.<type>.<space>.bytes.
+   */
+  private void buildLandmarks() {
+      int threads = Runtime.getRuntime().availableProcessors();
+      for (int i = 0; i < this.HIERARCHY_TYPES.length; i++) {
+	  long start = System.currentTimeMillis();
+	  Route r = new Route(null, null, this.HIERARCHY_TYPES[i]);
+	  Landmarks lm = Landmarks.build(this.roomHashMap.values(), r,
+					 this.NUM_LANDMARKS,
+					 this.LANDMARK_SELECTION, threads);
+	  this.landmarks.put(r.getType(), lm);
+	  this.recordLandmarkTables(lm);
+	  if (this.PERFDATA) {
+	      System.out.println("  * " + r.getType() + ": " + lm.getNumLandmarks() +
+				 " landmarks (" + this.LANDMARK_SELECTION + "), " +
+				 this.perf.get("landmarks." + r.getType() + ".bytes") +
+				 " bytes, " + (System.currentTimeMillis() - start) + " ms");
+	      this.sampleLandmarkSpeedup(lm, r, 50);
+	  }
+      }
+  }
+
+  /**
+   * Private method that attaches loaded landmark tables to the loaded
+   * spaces.
+   */
+  private void bindLandmarks() {
+      Iterator i = this.landmarks.values().iterator();
+      while (i.hasNext()) {
+	  Landmarks lm = (Landmarks) i.next();
+	  int missing = lm.bind(this.roomHashMap);
+	  this.recordLandmarkTables(lm);
+	  System.out.println("Loaded " + lm.getNumLandmarks() + " landmarks for " +
+			     lm.getRouteType() + " (" + missing + " spaces missing)");
+      }
+  }
+
+  private void recordLandmarkTables(Landmarks lm) {
+      String[] names = lm.getLandmarkNames();
+      long total = 0;
+      for (int i = 0; i < names.length; i++) {
+	  long bytes = lm.getTableBytes(i);
+	  this.perf.set("landmarks." + lm.getRouteType() + "." + names[i] + ".bytes", bytes);
+	  total += bytes;
+      }
+      this.perf.set("landmarks." + lm.getRouteType() + ".bytes", total);
+  }
+
+  /**
+   * Private method that runs a fixed sample of connected room-to-room
+   * queries with and without the landmark bounds, and records the
+   * spaces expanded by each under landmarks.<type>.sample.* (their
+   * ratio is the speedup). Unconnected pairs are skipped, since both
+   * searches exhaust the same component for them.
+   */
+  private void sampleLandmarkSpeedup(Landmarks lm, Route r, int queries) {
+      Space[] spaces = (Space[]) this.roomHashMap.values().toArray(new Space[0]);
+      Arrays.sort(spaces, new Comparator() {
+	  public int compare(Object a, Object b) {
+	    return ((Space) a).getName().compareTo(((Space) b).getName());
+	  }
+	});
+      Random random = new Random(queries);
+      long plain = 0, guided = 0;
+      int found = 0;
+      for (int i = 0; i < 10 * queries && found < queries; i++) {
+	  Space src = spaces[random.nextInt(spaces.length)];
+	  Space dst = spaces[random.nextInt(spaces.length)];
+	  Vector targets = new Vector();
+	  targets.add(dst);
+
+	  Dijkstra d = new DijkstraRoom();
+	  d.addSource(src, dst);
+	  if (d.findRouteBreadthFirst(dst, r) == null) {
+	      continue;
+	  }
+	  plain += d.getExpandedCount();
+	  found++;
+
+	  d = new DijkstraRoom();
+	  d.setPotential(lm.potentialTo(targets));
+	  d.addSource(src, dst);
+	  d.findRouteBreadthFirst(dst, r);
+	  guided += d.getExpandedCount();
+      }
+      String prefix = "landmarks." + r.getType() + ".sample.";
+      this.perf.set(prefix + "queries", found);
+      this.perf.set(prefix + "dijkstra.expanded", plain);
+      this.perf.set(prefix + "alt.expanded", guided);
+      System.out.println("  * sample of " + found + " queries: " + plain +
+			 " spaces expanded by Dijkstra, " + guided + " with landmarks");
+  }
+
+  /**
+   * Private method that links the graphs of all spaces into the campus
+   * graph used for node path searches. Spaces need their graphs, so this
+   * runs after precomputeSpaces or after loading.
+   */
+  private void buildCampusGraph() {
+      buildCampusGraph(this.roomHashMap.values());
+  }
+
+  // the campus graph of the given spaces, with their graphs
+  private void buildCampusGraph(Collection spaces) {
+      long start = System.currentTimeMillis();
+      this.campus = new CampusGraph(spaces);
+      this.perf.set("campus.nodes", this.campus.getNumNodes());
+      this.perf.set("campus.arcs", this.campus.getNumArcs());
+      this.perf.set("campus.bytes", this.campus.memoryBytes());
+      this.perf.increment("campus.builds");
+      long spaceGraphs = 0;
+      Iterator rooms = spaces.iterator();
+      while (rooms.hasNext()) {
+	  CSRGraph g = ((Space) rooms.next()).getCSR();
+	  if (g != null) spaceGraphs += g.memoryBytes();
+      }
+      this.perf.set("spaces.csr.bytes", spaceGraphs);
+      if (this.PERFDATA) {
+	  System.out.println("  * campus graph: " + this.campus.getNumNodes() +
+			     " nodes, " + this.campus.getNumArcs() + " arcs, " +
+			     (System.currentTimeMillis() - start) + " ms");
+      }
+  }
+
+  /**
+   * Return the campus graph, or null if the spaces have no graphs.
+   */
+  public CampusGraph getCampusGraph() {
+    return this.campus;
+  }
+
+  /**
+   * Return the campus graph for a node search through the given spaces.
+   * While the space graphs are read lazily, the spaces' buildings are
+   * read first, and the graph holds the spaces of every building read
+   * so far: it is built again only after a query has read another one
+   * (counted as campus.builds), and is kept once all are read. Null if
+   * the spaces have no graphs.
+   */
+  public CampusGraph getCampusGraph(Collection spaces) {
+    if (!this.lazySpaces) {
+      return this.campus;
+    }
+    Iterator i = spaces.iterator();
+    while (i.hasNext()) {
+      ((Space) i.next()).getCSR();
+    }
+    synchronized (this.lazySnapshot) {
+      int parts = this.lazySnapshot.getNumPartsLoaded();
+      if (this.campus == null || parts != this.campusParts) {
+	Vector read = new Vector();
+	Iterator rooms = this.roomHashMap.values().iterator();
+	while (rooms.hasNext()) {
+	  Space s = (Space) rooms.next();
+	  if (s.isMaterialized()) {
+	    read.add(s);
+	  }
+	}
+	this.buildCampusGraph(read);
+	this.campusParts = parts;
+	this.lazySpaces = (parts < this.lazySnapshot.getNumParts());
+      }
+      return this.campus;
+    }
+  }
+
+  /**
+   * Return the landmark tables prepared for a route type, or null.
+   */
+  public Landmarks getLandmarks(String routeType) {
+    return (Landmarks) this.landmarks.get(routeType);
+  }
+
+  public String getSpaceName(Location location) {
+    return this.getSpace(location).getName();
+  }
+
+  /* use the polyline algorithm to figure out if a Location is inside
+     a Space, on the spaces the spatial index finds near it.
+     if location == null, return any Space
+  */
+  
+  public Space getSpace(Location location) {
+    if (location == null) {
+      Iterator i = this.roomHashMap.values().iterator();
+      return i.hasNext() ? (Space) i.next() : null;
+    }
+    return this.spaceIndex.locate(location.getPosition());
   }
   
   /**
    * Return a space given a location in 3d space, a building name, and
-   * a floor
+   * a floor (as numbered by Space.getFloorNumber)
    */ 
   public Space getSpace(Location location, String buildingName,
 			int floor) {
-    Iterator i = this.roomHashMap.values().iterator();
-    for (;i.hasNext();) {
-      Space nextSpace = (Space) i.next();
-      if (location == null)
-	return nextSpace;
-      if (nextSpace.isInside2D(location.getPosition()) &&
-	  nextSpace.getBuildingName().equals(buildingName) &&
-	  nextSpace.getFloorNumber() == floor)
-	return nextSpace;
+    if (location == null) {
+      Iterator i = this.roomHashMap.values().iterator();
+      return i.hasNext() ? (Space) i.next() : null;
     }
-    return null;
+    return this.spaceIndex.locate(location.getPosition(), buildingName, floor);
   }
   
+  /**
+   * Locate a batch of points in one call, e.g. a stream of position
+   * fixes, as getSpace(Location) would one at a time. coords holds the
+   * x, y and z of each point in turn. If buildings is not null, a point
+   * with a building gets getSpace(Location, buildings[i], floors[i])
+   * instead. Each point is tried first against the space of the point
+   * before it and that space's neighbors, since consecutive fixes seldom
+   * move far. The points and the points answered that way are counted as
+   * locate.batch.points and locate.batch.near.
+   *
+   * Returns the id of each point's space (an index into getSpaceNames()),
+   * or -1 where no space holds it.
+   */
+  public int[] locateSpaces(double[] coords, String[] buildings, int[] floors) {
+    int n = coords.length / 3;
+    if (coords.length % 3 != 0) {
+      throw new IllegalArgumentException("coords must hold x, y and z of each point");
+    }
+    if (buildings != null && (buildings.length != n || floors == null || floors.length != n)) {
+      throw new IllegalArgumentException("need a building and floor for each point");
+    }
+    int[] ids = new int[n];
+    Space previous = null;
+    int near = 0;
+    for (int i = 0; i < n; i++) {
+      Position p = new Position(coords[3 * i], coords[3 * i + 1], coords[3 * i + 2]);
+      String building = (buildings == null) ? null : buildings[i];
+      int floor = (building == null) ? 0 : floors[i];
+      Space s = (previous == null) ? null :
+	this.spaceIndex.locateAround(p, previous, building, floor);
+      if (s != null) {
+	near++;
+      } else if (building == null) {
+	s = this.spaceIndex.locate(p);
+      } else {
+	s = this.spaceIndex.locate(p, building, floor);
+      }
+      ids[i] = (s == null) ? -1 : s.getId();
+      if (s != null) {
+	previous = s;
+      }
+    }
+    this.perf.add("locate.batch.points", n);
+    this.perf.add("locate.batch.near", near);
+    return ids;
+  }
+
+  /**
+   * The names of the spaces by id, for the ids returned by locateSpaces.
+   */
+  public String[] getSpaceNames() {
+    String[] names = new String[this.roomHashMap.size()];
+    Iterator rooms = this.roomHashMap.values().iterator();
+    while (rooms.hasNext()) {
+      Space s = (Space) rooms.next();
+      names[s.getId()] = s.getName();
+    }
+    return names;
+  }
+
+  /**
+   * Complete a space or building name as it is typed: return (a Vector
+   * of NameMatch) at most max names that start with text, or that do
+   * after at most maxEdits (up to NameIndex.MAX_EDITS) typing errors,
+   * fewest errors first. Case is ignored. Queries are counted as
+   * names.queries.
+   */
+  public Vector completeSpaceName(String text, int max, int maxEdits) {
+    this.perf.increment("names.queries");
+    return this.nameIndex.complete(text, max, maxEdits);
+  }
+
   /**
    * getSpace returns the named space, if it is in the collection of
    * spaces held by this server. Is the named space is not held, the
@@ -479,6 +1754,21 @@ public class JavaLocationServer extends UnicastRemoteObject
     return s;
   }
 
+  /**
+   * Return all spaces that belong to the named building.
+   */
+  public Vector getSpacesInBuilding(String name) {
+    Vector returnVector = new Vector();
+    Iterator rooms = this.roomHashMap.values().iterator();
+    while (rooms.hasNext()) {
+      Space s = (Space) rooms.next();
+      if (s.getBuildingName().equals(name)) {
+	returnVector.add(s);
+      }
+    }
+    return returnVector;
+  }
+
   public Building getBuilding(String name) {
       Building b = (Building) this.buildingHashMap.get(name);
       return b;
@@ -522,27 +1812,110 @@ public class JavaLocationServer extends UnicastRemoteObject
    * polyline no longer uses best portal pairs. NOTE: temporarily took out
    * return of memoized route.
    *
+   * The space search algorithm is taken from request.getSearchMode(),
+   * falling back to the contraction hierarchy for the route type if one
+   * was prepared, and then to the server default (-Dlocationserver.search).
+   *
+   * Requests that arrive while an identical one (same source,
+   * destination, route type and search mode) is being searched wait
+   * for its result rather than searching again. They are counted as
+   * route.requests.coalesced, and the searches run as
+   * route.requests.searched.
    */
   public Route getRoute(Route request) {
 
-    Vector spaces;
     String type = Route.ROUTE_PAVED;  // ignores client type request
     // String type = request.getType();
     // make a copy of the route to avoid memory cycles
     Route r = new Route(request.getSource(), request.getDest(), type);
+    if (request.getSearchMode() != null) {
+      r.setSearchMode(request.getSearchMode());
+    } else if (this.getHierarchy(type) != null) {
+      r.setSearchMode(Route.SEARCH_HIERARCHY);
+    } else {
+      r.setSearchMode(this.SEARCH_MODE);
+    }
 
     System.out.println("Calling getRoute() on: " + r);
+    String key = RouteCache.key(r);
+    if (this.MEMOIZE) {
+      Route cached = this.routeCache.get(key);
+      if (cached == RouteCache.NO_ROUTE) {
+	System.out.println("No route (cached)");
+	return null;
+      } else if (cached != null) {
+	System.out.println("Returning cached route: " + cached);
+	return cached;
+      }
+    }
+
+    final Route fRequest = request;
+    final Route fRoute = r;
+    final String fKey = key;
+    FutureTask task = new FutureTask(new Callable() {
+	public Object call() {
+	  return findRoute(fRequest, fRoute, fKey);
+	}
+      });
+    FutureTask running = (FutureTask) this.routesInFlight.putIfAbsent(key, task);
+    if (running == null) {
+      this.perf.increment("route.requests.searched");
+      try {
+	task.run();
+      } finally {
+	this.routesInFlight.remove(key, task);
+      }
+      running = task;
+    } else {
+      this.perf.increment("route.requests.coalesced");
+      System.out.println("Waiting for the search already running for: " + r);
+    }
+    try {
+      return (Route) running.get();
+    } catch (ExecutionException ee) {
+      Throwable cause = ee.getCause();
+      if (cause instanceof RuntimeException) {
+	throw (RuntimeException) cause;
+      }
+      throw (Error) cause;
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  /**
+   * Private method that runs the searches for a request of getRoute.
+   * r is the copy of the request with the route type and search mode
+   * to use, and key its RouteCache key. Returns r with its route filled
+   * in, or null if there is no route.
+   */
+  private Route findRoute(Route request, Route r, String key) {
+    Vector spaces;
+    if (r.getSearchMode().equals(Route.SEARCH_EXACT)) {
+      // single search over portals, no space sequence needed
+      Vector portals = Library.findRouteExact(request, this, r);
+      if (portals == null) {
+	System.err.println("Portals null: no route found");
+	this.remember(key, r, RouteCache.NO_ROUTE);
+	return null;
+      }
+      r = this.setRoute(r, portals);
+      this.remember(key, r, r);    // cache the route
+      System.out.println("Returning new route: " + r);
+      return r;
+    }
     spaces = Library.findRouteDijkstra(request, this, r);
 
     // FIND EXACT NODE PATH THROUGH SPACES
     if (spaces != null) {
 	System.err.println("Space sequence found: searching for node path");
-	Vector nodes = Library.findNodesThroughSpaces((Space)spaces.firstElement(),
-						      (Space)spaces.lastElement(),
-						      r, spaces);
-	if (nodes != null) {
-	    r = this.setRoute(r, nodes);
-	    this.routeCache.put(r.toString(), r);    // cache the route
+	Vector portals = Library.findPortalsThroughSpaces((Space)spaces.firstElement(),
+							  (Space)spaces.lastElement(),
+							  r, spaces, this);
+	if (portals != null) {
+	    r = this.setRoute(r, portals);
+	    this.remember(key, r, r);    // cache the route
 
 	    // print spaces returned
 	    System.out.println("Returning new route: " + r);
@@ -557,32 +1930,28 @@ public class JavaLocationServer extends UnicastRemoteObject
     } else {
  	System.err.println("Spaces null: no route found");
     }
+    this.remember(key, r, RouteCache.NO_ROUTE);
     return null;
   }
 
   /**
    * Populate route object with traversed path points, portal names, and
-   * space names.
+   * space names, given the portals crossed in order.
    */
-  private Route setRoute(Route r, Vector nodes) {
+  private Route setRoute(Route r, Vector portals) {
       // we want to return a vector of space NAMES
       Vector names = new Vector();
       names.add(r.getSource());
 	    
-      // extract polyline and traversed portals from vector of graph nodes
+      // extract polyline and space names from the traversed portals
       Polyline path = new Polyline();
       Vector portalNames = new Vector();
-      Vector portals = new Vector();
-      for (int i = 0; i < nodes.size(); i++) {
-	  Graph.Node node = (Graph.Node)nodes.get(i);
-	  if(node.isPortal()) {
-	      portals.add(node.getPortal());
-	      portalNames.add(node.getPortal().name);
-	      names.add(node.getPortal().getDestName());
-	      i++; // portals come in pairs
-	  }
+      for (int i = 0; i < portals.size(); i++) {
+	  Portal portal = (Portal)portals.get(i);
+	  portalNames.add(portal.name);
+	  names.add(portal.getDestName());
       }
-      path = Library.shortenedPoly(portals);
+      path = Library.shortenedPoly(portals, this.pathCache);
       
       System.out.println("Returning route with " + path.numPoints() + " points");
       r.setRoute(names);
@@ -593,19 +1962,31 @@ public class JavaLocationServer extends UnicastRemoteObject
 
   /**
    * This method returns a vector of spaces that fit the constraints
-   * of being in in a named building on a named floor.
+   * of being in in a named building on a named floor: the spaces read
+   * from the floor file <blg>-<flr>.xml, in id order. The lists are
+   * kept by floor, so this does not look at any other space.
    */ 
   public Vector getSpacesWithConstraints(String blg, String flr) {
-    Vector returnVector = new Vector();
-    Iterator rooms = this.roomHashMap.values().iterator();
-    while (rooms.hasNext()) {
-      Space s = (Space) rooms.next();
-      if (s.getBuildingName().equals(blg) 
-	  && s.getFloorNumber() == Integer.parseInt(flr)) {
-	returnVector.add(s);
-      }
+    HashMap floors = (HashMap) this.floorIndex.get(blg);
+    Vector spaces = (floors == null) ? null : (Vector) floors.get(flr);
+    return (spaces == null) ? new Vector() : new Vector(spaces);
+  }
+
+  /**
+   * Perf counters collected since startup (String -> Long), e.g.
+   * search.SEARCH_ASTAR.expanded / search.SEARCH_ASTAR.queries for the
+   * average number of spaces expanded per A* query.
+   */
+  public TreeMap getPerfCounters() {
+    if (this.routeCache != null) {
+      this.perf.set("route.cache.size", this.routeCache.size());
     }
-    return returnVector;
+    this.perf.set("path.cache.size", this.pathCache.size());
+    return this.perf.snapshot();
+  }
+
+  PerfStats getPerfStats() {
+    return this.perf;
   }
 
   /**
@@ -618,7 +1999,15 @@ public class JavaLocationServer extends UnicastRemoteObject
     return name;
   }
 
+  /**
+   * Return the landmark spaces of the default route type, or 200 random
+   * spaces if no landmarks were prepared.
+   */
   public String[] getSuperNodes() {
+    Landmarks lm = this.getLandmarks(Route.ROUTE_PAVED);
+    if (lm != null) {
+      return lm.getLandmarkNames();
+    }
     String[] nodes = new String[200];
     for (int i = 0; i < nodes.length; i++) {
       nodes[i] = this.getRandomSpace();
@@ -626,26 +2015,120 @@ public class JavaLocationServer extends UnicastRemoteObject
     return nodes;
   }
 
+  /**
+   * Return the spaces (at most 1000, in id order) whose bounding boxes,
+   * cut to ints, intersect r. The candidates come from the spatial index.
+   */
   public Vector getSpacesThatClip(Rectangle r) {
     Vector v = new Vector();
-    Iterator spaces = this.roomHashMap.values().iterator();
-    while (spaces.hasNext()) {
-      Space s = (Space) spaces.next();
+    // the boxes cut to ints lie within 2 of the real ones
+    int[] ids = this.spaceIndex.clip(r.x - 2, r.y - 2, r.x + r.width + 2,
+				     r.y + r.height + 2, null, SpacePage.ANY_FLOOR,
+				     0, Integer.MAX_VALUE - 1);
+    for (int i = 0; i < ids.length && v.size() < 1000; i++) {
+      Space s = this.spaceIndex.getSpace(ids[i]);
       double[] sbox = s.getBoundingBox();
       Rectangle r1 = new Rectangle((int) sbox[0], (int) sbox[1],
 				   (int) (sbox[2] - sbox[0]),
 				   (int) (sbox[3] - sbox[1]));
-      if (r.intersects(r1) && v.size() < 1000) {
+      if (r.intersects(r1)) {
 	v.add(s);
       }
     }
     return v;
   }
 
-  private void loadSerializedData(String filename) {
+  /**
+   * Return a page of the spaces in a map view: those whose bounding
+   * boxes overlap the box (minX, minY) - (maxX, maxY), at most pageSize
+   * of them, in id order from cursor on (0 for the first page, then
+   * SpacePage.getNextCursor()). If building is not null, only its spaces
+   * on the given floor (or SpacePage.ANY_FLOOR) are taken; floors are
+   * numbered as by Space.getFloorNumber. Queries and the spaces returned
+   * are counted as view.queries and view.spaces.
+   */
+  public SpacePage getSpacesInView(double minX, double minY, double maxX, double maxY,
+				   String building, int floor, int cursor, int pageSize) {
+    if (pageSize <= 0) {
+      throw new IllegalArgumentException("pageSize must be positive");
+    }
+    int[] ids = this.spaceIndex.clip(minX, minY, maxX, maxY, building, floor,
+				     Math.max(cursor, 0), pageSize);
+    int n = Math.min(ids.length, pageSize);
+    Space[] spaces = new Space[n];
+    int[] pageIds = new int[n];
+    for (int i = 0; i < n; i++) {
+      pageIds[i] = ids[i];
+      spaces[i] = this.spaceIndex.getSpace(ids[i]);
+    }
+    SpacePage page = new SpacePage(minX, minY, spaces, pageIds);
+    if (ids.length > pageSize) {
+      page.setNextCursor(ids[pageSize]);
+    }
+    this.perf.increment("view.queries");
+    this.perf.add("view.spaces", n);
+    return page;
+  }
+
+  /**
+   * Private method that loads the spaces, portals, buildings, hierarchies
+   * and landmarks of a snapshot written by serializeOutput. Snapshots
+   * written by older versions with Java serialization are still read
+   * (loadLegacySnapshot). If lazy, the triangles, portal distances and
+   * graphs are left in the snapshot until needed (see Snapshot.Part).
+   * The load time and file size are reported as snapshot.load.ms and
+   * snapshot.bytes.
+   */
+  private void loadSerializedData(String filename, boolean lazy) {
+    long start = System.currentTimeMillis();
+    this.lazySpaces = false;
+    if (Snapshot.isSnapshot(filename)) {
+      System.out.println("Loading snapshot " + filename);
+      this.routeCache = new RouteCache(this.ROUTE_CACHE_SIZE, this.perf);
+      try {
+	Snapshot snapshot = Snapshot.read(filename, lazy, this.perf);
+	this.lazySpaces = snapshot.isLazy();
+	this.lazySnapshot = this.lazySpaces ? snapshot : null;
+	this.roomHashMap = snapshot.getRooms();
+	this.portalHashMap = snapshot.getPortals();
+	this.buildingHashMap = snapshot.getBuildings();
+	this.hierarchies = snapshot.getHierarchies();
+	this.landmarks = snapshot.getLandmarks();
+	this.snapshotPaths = snapshot.getPaths();
+      } catch (IOException ioe) {
+	ioe.printStackTrace();
+	this.roomHashMap = new HashMap();
+	this.portalHashMap = new HashMap();
+	this.buildingHashMap = new HashMap();
+	this.hierarchies = new HashMap();
+	this.landmarks = new HashMap();
+      }
+    } else {
+      loadLegacySnapshot(filename);
+    }
+    this.perf.set("snapshot.load.ms", System.currentTimeMillis() - start);
+    this.perf.set("snapshot.bytes", new File(filename).length());
+    if (this.PERFDATA) {
+      System.out.println("  * loaded " + this.roomHashMap.size() + " spaces and " +
+			 this.portalHashMap.size() + " portals in " +
+			 this.perf.get("snapshot.load.ms") + " ms");
+    }
+  }
+
+  /**
+   * Private method that loads a snapshot written with Java serialization.
+   * These do not hold the buildings, so the buildings of the spaces and
+   * their transition spaces are found again from the portals, as
+   * linkPortals finds them. Nor do they hold the portal distances, which
+   * are computed from the graphs they do hold, as BATCH_OUT computes them.
+   */
+  private void loadLegacySnapshot(String filename) {
     this.roomHashMap = new HashMap();
     this.portalHashMap = new HashMap();
-    this.routeCache = new HashMap();
+    this.routeCache = new RouteCache(this.ROUTE_CACHE_SIZE, this.perf);
+    this.buildingHashMap = new HashMap();
+    this.hierarchies = new HashMap();
+    this.landmarks = new HashMap();
 
     try {
       System.out.println("Loading from file!");
@@ -665,43 +2148,53 @@ public class JavaLocationServer extends UnicastRemoteObject
 	  p.spaces = (Space[]) ois.readObject();
 	  this.portalHashMap.put(p.name, p);
 	}
+	if (o instanceof ContractionHierarchy) {
+	  ContractionHierarchy ch = (ContractionHierarchy) o;
+	  this.hierarchies.put(ch.getRouteType(), ch);
+	}
+	if (o instanceof Landmarks) {
+	  Landmarks lm = (Landmarks) o;
+	  this.landmarks.put(lm.getRouteType(), lm);
+	}
 	o = ois.readObject();
       }
     } catch (Exception e) {
       e.printStackTrace();      
     }
+
+    Iterator spaces = this.roomHashMap.values().iterator();
+    while (spaces.hasNext()) {
+      String bname = ((Space) spaces.next()).getBuildingName();
+      if (this.getBuilding(bname) == null) {
+	this.buildingHashMap.put(bname, new Building(bname));
+      }
+    }
+    Iterator portals = this.portalHashMap.values().iterator();
+    while (portals.hasNext()) {
+      Portal p = (Portal) portals.next();
+      Space src = p.spaces[0];
+      if (src != null && p.spaces[1] != null && p.type.equals(Portal.TYPE_TRANSITION)) {
+	this.getBuilding(src.getBuildingName()).addTransitionSpace(src);
+      }
+    }
+
+    precomputeSpaces(new Vector(), this.roomHashMap.values());
   }
 
-  private void serializeOutput(String filename) {
+  /**
+   * Private method that writes the spaces, portals, buildings, hierarchies,
+   * landmarks and the given paths (PortalPathCache.Path) to a snapshot
+   * file (see Snapshot), reporting the time and size as
+   * snapshot.write.ms and snapshot.bytes.
+   */
+  private void serializeOutput(String filename, Vector paths) {
     try {
       System.out.println("Serializing to: " + filename);
-      FileOutputStream fos = new FileOutputStream(filename);
-      ObjectOutputStream oos = new ObjectOutputStream(fos);
-      Space space;
-      Portal portal;
-
-      // first, write all spaces
-      Iterator spaces = this.roomHashMap.values().iterator();
-      while (spaces.hasNext()) {
-	space = (Space) spaces.next();
-	// write the space
-	oos.writeObject(space);
-	// write the space key
-	// write the space's transient fields
-	oos.writeObject(space.getPortalPaths());
-	oos.writeObject(space.getBestPortals());
-	oos.writeObject(space.getNeighbors());
-      }
-
-      Iterator portals = this.portalHashMap.values().iterator();
-      while (portals.hasNext()) {
-	portal = (Portal) portals.next();
-	// write the portal
-	oos.writeObject(portal);
-	// write the portal's transient fields
-	oos.writeObject(portal.spaces);
-      }
-      oos.close();
+      long start = System.currentTimeMillis();
+      Snapshot.write(filename, this.roomHashMap, this.portalHashMap,
+		     this.buildingHashMap, this.hierarchies, this.landmarks, paths);
+      this.perf.set("snapshot.write.ms", System.currentTimeMillis() - start);
+      this.perf.set("snapshot.bytes", new File(filename).length());
     } catch (Exception e) {
       e.printStackTrace();
     }
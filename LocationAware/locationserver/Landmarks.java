@@ -0,0 +1,445 @@
+package locationserver;
+
+import java.util.*;
+import java.io.*;
+import java.util.concurrent.*;
+
+/**
+ * Landmark distance tables over the space adjacency graph for one route
+ * type, used for goal-directed (ALT) search. For each landmark L the
+ * table holds d(L, v) and d(v, L) for every space v. By the triangle
+ * inequality
+ *
+ *   d(v, t) >= d(v, L) - d(t, L)   and   d(v, t) >= d(L, t) - d(L, v)
+ *
+ * so the largest of these over all landmarks is a lower bound on the
+ * remaining distance that A* can use (see Potential).
+ *
+ * The graph is the same as ContractionHierarchy's: spaces, legal
+ * portals, weights as in Dijkstra.getWeight. Landmarks are picked by
+ * farthest-point selection or by the "avoid" method (grow a shortest
+ * path tree from a random space and descend into the subtree where the
+ * current bounds are worst). Distances are stored as floats rounded
+ * down; where a bound subtracts one, it takes the next float up
+ * instead, so the bounds stay admissible.
+ *
+ * Like the hierarchy, nodes are stored by space name and bound to the
+ * running server with bind().
+ */
+public class Landmarks implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  public static String SELECT_FARTHEST = "FARTHEST";
+  public static String SELECT_AVOID    = "AVOID";
+
+  private static final long SEED = 6031769L; // fixed, so builds repeat
+
+  private String routeType;
+  private String[] names;        // node -> space name
+  private int[] landmarks;       // landmark -> node
+  private float[][] fromTable;   // landmark -> node -> d(L, node)
+  private float[][] toTable;     // landmark -> node -> d(node, L)
+
+  // bound to the running server, see bind()
+  private transient Space[] spaceOf;     // node -> space
+  private transient int[] nodeOfSpace;   // space id -> node, -1 if absent
+
+  /** No-args constructor for serialized version */
+  public Landmarks() { }
+
+  public String getRouteType() {
+    return this.routeType;
+  }
+
+  public int getNumLandmarks() {
+    return this.landmarks.length;
+  }
+
+  /** Space names of the landmarks, in selection order. */
+  public String[] getLandmarkNames() {
+    String[] answer = new String[this.landmarks.length];
+    for (int i = 0; i < answer.length; i++) {
+      answer[i] = this.names[this.landmarks[i]];
+    }
+    return answer;
+  }
+
+  /** Bytes taken by the forward and backward tables of one landmark. */
+  public long getTableBytes(int landmark) {
+    return 4L * (this.fromTable[landmark].length + this.toTable[landmark].length);
+  }
+
+  /**
+   * Select landmarks and compute their tables for the spaces in the
+   * collection (which must have ids) and the type of the given route.
+   * The one-to-all searches run on a pool of the given number of
+   * threads.
+   */
+  public static Landmarks build(Collection spaces, Route r, int count,
+				String selection, int threads) {
+    Landmarks lm = new Landmarks();
+    lm.routeType = r.getType();
+    final Arcs arcs = new Arcs(spaces, r);
+    lm.names = arcs.names;
+    lm.spaceOf = arcs.nodes;
+    lm.nodeOfSpace = arcs.nodeOfSpace;
+    int n = arcs.names.length;
+    count = Math.min(count, n);
+
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+    try {
+      Random random = new Random(SEED);
+      Vector chosen = new Vector();     // Integer nodes
+      Vector from = new Vector();       // float[] per chosen landmark
+      Vector to = new Vector();
+
+      if (selection.equals(SELECT_AVOID)) {
+	// each choice depends on the bounds of the previous landmarks,
+	// so landmarks are added one at a time, with the forward and
+	// backward search of each running side by side
+	// (a root whose reachable spaces are all covered already, e.g.
+	// a closet, yields nothing; try another, a bounded number of times)
+	int attempts = 0;
+	while (chosen.size() < count && attempts++ < 20 * count) {
+	  int root = random.nextInt(n);
+	  int next = avoid(arcs, root, chosen, from, to);
+	  if (next < 0 || chosen.contains(Integer.valueOf(next))) continue;
+	  float[][] tables = computeTables(pool, arcs, new int[] { next });
+	  chosen.add(Integer.valueOf(next));
+	  from.add(tables[0]);
+	  to.add(tables[1]);
+	}
+      } else {
+	// farthest point: each landmark is the space farthest from the
+	// ones chosen so far
+	double[] nearest = new double[n];
+	Arrays.fill(nearest, Double.POSITIVE_INFINITY);
+	int next = farthest(arcs.forwardDistances(random.nextInt(n)), null);
+	while (next >= 0 && chosen.size() < count) {
+	  chosen.add(Integer.valueOf(next));
+	  double[] d = arcs.forwardDistances(next);
+	  for (int v = 0; v < n; v++) nearest[v] = Math.min(nearest[v], d[v]);
+	  next = farthest(nearest, chosen);
+	}
+	int[] nodes = new int[chosen.size()];
+	for (int i = 0; i < nodes.length; i++) {
+	  nodes[i] = ((Integer) chosen.get(i)).intValue();
+	}
+	float[][] tables = computeTables(pool, arcs, nodes);
+	for (int i = 0; i < nodes.length; i++) {
+	  from.add(tables[2*i]);
+	  to.add(tables[2*i+1]);
+	}
+      }
+
+      lm.landmarks = new int[chosen.size()];
+      lm.fromTable = new float[chosen.size()][];
+      lm.toTable = new float[chosen.size()][];
+      for (int i = 0; i < lm.landmarks.length; i++) {
+	lm.landmarks[i] = ((Integer) chosen.get(i)).intValue();
+	lm.fromTable[i] = (float[]) from.get(i);
+	lm.toTable[i] = (float[]) to.get(i);
+      }
+    } finally {
+      pool.shutdown();
+    }
+    return lm;
+  }
+
+  /**
+   * Run the forward and backward one-to-all searches of each landmark
+   * on the pool. Returns {from_0, to_0, from_1, to_1, ...}.
+   */
+  private static float[][] computeTables(ExecutorService pool, final Arcs arcs,
+					 int[] nodes) {
+    Vector futures = new Vector();
+    for (int i = 0; i < nodes.length; i++) {
+      final int node = nodes[i];
+      futures.add(pool.submit(new Callable() {
+	  public Object call() { return roundDown(arcs.forwardDistances(node)); }
+	}));
+      futures.add(pool.submit(new Callable() {
+	  public Object call() { return roundDown(arcs.backwardDistances(node)); }
+	}));
+    }
+    float[][] tables = new float[futures.size()][];
+    try {
+      for (int i = 0; i < tables.length; i++) {
+	tables[i] = (float[]) ((Future) futures.get(i)).get();
+      }
+    } catch (Exception e) {
+      throw new RuntimeException("Landmark search failed", e);
+    }
+    return tables;
+  }
+
+  /** node with the largest finite distance, skipping excluded nodes */
+  private static int farthest(double[] dist, Vector exclude) {
+    int answer = -1;
+    for (int v = 0; v < dist.length; v++) {
+      if (dist[v] == Double.POSITIVE_INFINITY) continue;
+      if (exclude != null && exclude.contains(Integer.valueOf(v))) continue;
+      if (answer < 0 || dist[v] > dist[answer]) answer = v;
+    }
+    return answer;
+  }
+
+  /**
+   * One round of avoid selection: grow the shortest path tree from
+   * root, weigh each node by how far its current lower bound falls
+   * short of its distance, and walk down from the root into the
+   * heaviest subtree that has no landmark yet. Returns the leaf reached.
+   */
+  private static int avoid(Arcs arcs, int root, Vector chosen, Vector from, Vector to) {
+    int n = arcs.names.length;
+    int[] parent = new int[n];
+    double[] dist = arcs.search(root, true, parent);
+
+    double[] size = new double[n];
+    boolean[] covered = new boolean[n];
+    for (int i = 0; i < chosen.size(); i++) {
+      covered[((Integer) chosen.get(i)).intValue()] = true;
+    }
+
+    // visit nodes leaves-first: children are farther than their parents
+    Integer[] order = new Integer[n];
+    int reached = 0;
+    for (int v = 0; v < n; v++) {
+      if (dist[v] != Double.POSITIVE_INFINITY) order[reached++] = Integer.valueOf(v);
+    }
+    final double[] d = dist;
+    Arrays.sort(order, 0, reached, new Comparator() {
+	public int compare(Object a, Object b) {
+	  return Double.compare(d[((Integer) b).intValue()], d[((Integer) a).intValue()]);
+	}
+      });
+    for (int i = 0; i < reached; i++) {
+      int v = order[i].intValue();
+      if (covered[v]) {
+	size[v] = 0.0;
+      } else {
+	size[v] += dist[v] - bound(root, v, from, to);
+      }
+      int p = parent[v];
+      if (p >= 0) {
+	size[p] += size[v];
+	covered[p] |= covered[v];
+      }
+    }
+
+    // children lists of the tree
+    int[] first = new int[n+1];
+    for (int v = 0; v < n; v++) if (dist[v] != Double.POSITIVE_INFINITY && parent[v] >= 0) first[parent[v]+1]++;
+    for (int v = 0; v < n; v++) first[v+1] += first[v];
+    int[] child = new int[first[n]];
+    int[] fill = new int[n];
+    for (int v = 0; v < n; v++) {
+      if (dist[v] != Double.POSITIVE_INFINITY && parent[v] >= 0) {
+	child[first[parent[v]] + fill[parent[v]]++] = v;
+      }
+    }
+
+    if (size[root] <= 0.0) {
+      return -1;
+    }
+    int v = root;
+    while (true) {
+      int best = -1;
+      for (int c = first[v]; c < first[v+1]; c++) {
+	int x = child[c];
+	if (!covered[x] && size[x] > 0.0 && (best < 0 || size[x] > size[best])) best = x;
+      }
+      if (best < 0) return v;
+      v = best;
+    }
+  }
+
+  /** landmark lower bound on d(s, t) from the tables chosen so far */
+  private static double bound(int s, int t, Vector from, Vector to) {
+    double answer = 0.0;
+    for (int i = 0; i < from.size(); i++) {
+      float[] f = (float[]) from.get(i);
+      float[] b = (float[]) to.get(i);
+      if (b[t] != Float.POSITIVE_INFINITY) answer = Math.max(answer, b[s] - b[t]);
+      if (f[s] != Float.POSITIVE_INFINITY) answer = Math.max(answer, f[t] - f[s]);
+    }
+    return (answer == Double.POSITIVE_INFINITY) ? 0.0 : answer;
+  }
+
+  // the tables hold each distance rounded down; Potential rounds the
+  // ones it subtracts back up
+  private static float[] roundDown(double[] dist) {
+    float[] answer = new float[dist.length];
+    for (int i = 0; i < dist.length; i++) {
+      answer[i] = CSRGraph.roundDown(dist[i]);
+    }
+    return answer;
+  }
+
+  /** Write the landmarks and their tables to a snapshot (see Snapshot). */
+  void write(Snapshot.Out out) throws IOException {
+    out.writeString(this.routeType);
+    out.writeStrings(this.names);
+    out.writeInts(this.landmarks);
+    for (int i = 0; i < this.landmarks.length; i++) {
+      out.writeFloats(this.fromTable[i]);
+      out.writeFloats(this.toTable[i]);
+    }
+  }
+
+  /** Read landmarks written by write(); bind() them before use. */
+  static Landmarks read(Snapshot.In in) {
+    Landmarks lm = new Landmarks();
+    lm.routeType = in.readString();
+    lm.names = in.readStrings();
+    lm.landmarks = in.readInts();
+    lm.fromTable = new float[lm.landmarks.length][];
+    lm.toTable = new float[lm.landmarks.length][];
+    for (int i = 0; i < lm.landmarks.length; i++) {
+      lm.fromTable[i] = in.readFloats();
+      lm.toTable[i] = in.readFloats();
+    }
+    return lm;
+  }
+
+  /**
+   * Attach the tables to the spaces of a running server, by name.
+   * Returns the number of nodes that could not be found.
+   */
+  public int bind(Map roomHashMap) {
+    this.spaceOf = new Space[this.names.length];
+    int maxId = -1;
+    int missing = 0;
+    for (int i = 0; i < this.names.length; i++) {
+      this.spaceOf[i] = (Space) roomHashMap.get(this.names[i]);
+      if (this.spaceOf[i] == null) {
+	missing++;
+      } else {
+	maxId = Math.max(maxId, this.spaceOf[i].getId());
+      }
+    }
+    this.nodeOfSpace = new int[maxId + 1];
+    Arrays.fill(this.nodeOfSpace, -1);
+    for (int i = 0; i < this.names.length; i++) {
+      if (this.spaceOf[i] != null) {
+	this.nodeOfSpace[this.spaceOf[i].getId()] = i;
+      }
+    }
+    return missing;
+  }
+
+  private int nodeOf(Space s) {
+    if (s == null) return -1;
+    int id = s.getId();
+    if (id < 0 || id >= this.nodeOfSpace.length) return -1;
+    int node = this.nodeOfSpace[id];
+    if (node < 0 || this.spaceOf[node] != s) return -1;
+    return node;
+  }
+
+  /**
+   * Return the lower-bound function for searches towards the given
+   * target spaces (one room, or all spaces of a building).
+   */
+  public Potential potentialTo(Collection targets) {
+    return new Potential(targets);
+  }
+
+  /**
+   * Lower bound on the distance from a space to the nearest of a set of
+   * targets T. For each landmark L,
+   *   d(v, T) >= d(v, L) - max_t d(t, L)  and  d(v, T) >= min_t d(L, t) - d(L, v).
+   * The subtracted terms are rounded up (Math.nextUp of the table
+   * entries), the others are left rounded down.
+   */
+  public class Potential {
+    private float[] maxTo;     // landmark -> max over targets of d(t, L), rounded up
+    private float[] minFrom;   // landmark -> min over targets of d(L, t)
+
+    Potential(Collection targets) {
+      int k = landmarks.length;
+      this.maxTo = new float[k];
+      this.minFrom = new float[k];
+      Arrays.fill(this.maxTo, Float.NEGATIVE_INFINITY);
+      Arrays.fill(this.minFrom, Float.POSITIVE_INFINITY);
+      for (Iterator i = targets.iterator(); i.hasNext();) {
+	int t = nodeOf((Space) i.next());
+	if (t < 0) {
+	  // unknown target: no usable bound
+	  Arrays.fill(this.maxTo, Float.POSITIVE_INFINITY);
+	  Arrays.fill(this.minFrom, Float.NEGATIVE_INFINITY);
+	  return;
+	}
+	for (int l = 0; l < k; l++) {
+	  this.maxTo[l] = Math.max(this.maxTo[l], Math.nextUp(toTable[l][t]));
+	  this.minFrom[l] = Math.min(this.minFrom[l], fromTable[l][t]);
+	}
+      }
+    }
+
+    public double lowerBound(Space s) {
+      int v = nodeOf(s);
+      if (v < 0) return 0.0;
+      double answer = 0.0;
+      for (int l = 0; l < this.maxTo.length; l++) {
+	float vTo = toTable[l][v];
+	float vFrom = Math.nextUp(fromTable[l][v]);
+	if (this.maxTo[l] != Float.POSITIVE_INFINITY) {
+	  // if v cannot reach L but every target can, v reaches no target
+	  answer = Math.max(answer, (double) vTo - this.maxTo[l]);
+	}
+	if (vFrom != Float.POSITIVE_INFINITY) {
+	  answer = Math.max(answer, (double) this.minFrom[l] - vFrom);
+	}
+      }
+      return answer;
+    }
+  }
+
+  /**
+   * The space graph (CSRGraph.fromSpaces) and its reverse, numbered by
+   * space name.
+   */
+  private static class Arcs {
+    String[] names;
+    Space[] nodes;
+    int[] nodeOfSpace;
+    CSRGraph forward, backward;
+
+    Arcs(Collection spaces, Route r) {
+      nodes = (Space[]) spaces.toArray(new Space[spaces.size()]);
+      Arrays.sort(nodes, new Comparator() {
+	  public int compare(Object a, Object b) {
+	    return ((Space) a).getName().compareTo(((Space) b).getName());
+	  }
+	});
+      int n = nodes.length;
+      int maxId = 0;
+      for (int i = 0; i < n; i++) maxId = Math.max(maxId, nodes[i].getId());
+      nodeOfSpace = new int[maxId + 1];
+      Arrays.fill(nodeOfSpace, -1);
+      names = new String[n];
+      for (int i = 0; i < n; i++) {
+	names[i] = nodes[i].getName();
+	nodeOfSpace[nodes[i].getId()] = i;
+      }
+
+      forward = CSRGraph.fromSpaces(nodes, nodeOfSpace, r);
+      backward = forward.reverse();
+    }
+
+    double[] forwardDistances(int source) {
+      return search(source, true, null);
+    }
+
+    double[] backwardDistances(int target) {
+      return search(target, false, null);
+    }
+
+    /** one-to-all Dijkstra, over reversed arcs if not forward */
+    double[] search(int source, boolean forward, int[] parent) {
+      return (forward ? this.forward : this.backward).distancesFrom(source, parent);
+    }
+  }
+}
@@ -19,56 +19,202 @@ import java.awt.geom.*;
 public class Library {
 
   /**
-   * Dijkstra's algorithm
+   * Dijkstra's algorithm. If the route asks for SEARCH_ASTAR and the
+   * destination is a single space, the search is guided by the
+   * centroid distance to the destination (see DijkstraRoom). With
+   * SEARCH_BIDIRECTIONAL, searches run from both ends and meet in the
+   * middle (see BidirectionalDijkstra). SEARCH_HIERARCHY queries the
+   * contraction hierarchy prepared for the route type, and SEARCH_ALT
+   * guides the search with the landmark bounds prepared for it (see
+   * Landmarks); both fall back to plain Dijkstra if there is none. The number of spaces expanded is
+   * added to the server's perf counters under search.<mode>.expanded.
    */ 
     public static Vector findRouteDijkstra(Route request, JavaLocationServer jls,
 					   Route r) {
 	System.out.println("Calling Djikstra");
 
 	Vector spaces;
-	Space s1 = null;
+	Vector sources;
 	Space s2 = null;
-	PriorityQueue priorityQueue = new PriorityQueue();
+	String mode = r.getSearchMode();
+	if (mode == null) {
+	    mode = Route.SEARCH_DIJKSTRA;
+	}
 
 	// INITIALIZE SOURCE
-	if (request.getSource().indexOf("-") == -1) {
-	    
-	    // source is a building -- first piece of the path
-	    // can be any space that leads out of the building
-	    System.out.println("Building source");
-	    Building srcBldng = jls.getBuilding(request.getSource());
-	    Vector srcSpaces  = srcBldng.getTransitionSpaces();
-	    for (int i = 0; i < srcSpaces.size(); i++) {
-		Vector firstRoute = new Vector();
-		firstRoute.add((Space)srcSpaces.get(i));
-		priorityQueue.add(0.0f, firstRoute);
-	    }
-	    //System.out.println("building routes invalid"); return null;
-	} else {
-	    // otherwise source is a single room
-	    s1 = jls.getSpace(request.getSource());
-	    Vector firstRoute = new Vector();
-	    firstRoute.add(s1);
-	    priorityQueue.add(0.0f, firstRoute);
-	}
+	sources = getSourceSpaces(request, jls);
 
 	// INITIALIZE DESTINATION
 	if (request.getDest().indexOf("-") == -1) {
 	    // destination is a building
 	    System.out.println("Building destination");
-
-	    Dijkstra test = new DijkstraBuilding();
-	    spaces = test.findRouteBreadthFirst(priorityQueue, request.getDest(), r);
 	} else {
 	    // otherwise destination is a single room
 	    s2 = jls.getSpace(request.getDest());
-	    Dijkstra test = new DijkstraRoom();
-	    spaces = test.findRouteBreadthFirst(priorityQueue, s2, r);
 	}
+
+	Vector targets = null;
+	if (mode.equals(Route.SEARCH_BIDIRECTIONAL) ||
+	    mode.equals(Route.SEARCH_HIERARCHY) ||
+	    mode.equals(Route.SEARCH_ALT)) {
+	    targets = getTargetSpaces(request, jls, s2);
+	}
+
+	if (mode.equals(Route.SEARCH_HIERARCHY)) {
+	    ContractionHierarchy ch = jls.getHierarchy(r.getType());
+	    if (ch == null || !ch.covers(sources) || !ch.covers(targets)) {
+		System.out.println("No hierarchy for this query, using Dijkstra");
+		mode = Route.SEARCH_DIJKSTRA;
+	    }
+	}
+	if (mode.equals(Route.SEARCH_ALT) && jls.getLandmarks(r.getType()) == null) {
+	    System.out.println("No landmarks for this query, using Dijkstra");
+	    mode = Route.SEARCH_DIJKSTRA;
+	}
+
+	int expanded;
+	if (mode.equals(Route.SEARCH_HIERARCHY)) {
+	    int[] settled = new int[1];
+	    spaces = jls.getHierarchy(r.getType()).findRoute(sources, targets, settled);
+	    expanded = settled[0];
+	    if (spaces == null) {
+		System.out.println("no path found!");
+	    }
+	} else if (mode.equals(Route.SEARCH_BIDIRECTIONAL)) {
+	    BidirectionalDijkstra test = new BidirectionalDijkstra();
+	    for (int i = 0; i < sources.size(); i++) {
+		test.addSource((Space)sources.get(i));
+	    }
+	    for (int i = 0; i < targets.size(); i++) {
+		test.addTarget((Space)targets.get(i));
+	    }
+	    spaces = test.findRoute(r);
+	    expanded = test.getExpandedCount();
+	} else {
+	    Dijkstra test;
+	    if (s2 == null) {
+		test = new DijkstraBuilding();
+	    } else {
+		test = new DijkstraRoom(mode.equals(Route.SEARCH_ASTAR));
+	    }
+	    if (mode.equals(Route.SEARCH_ALT)) {
+		test.setPotential(jls.getLandmarks(r.getType()).potentialTo(targets));
+	    }
+	    for (int i = 0; i < sources.size(); i++) {
+		test.addSource((Space)sources.get(i), s2);
+	    }
+	    if (s2 == null) {
+		spaces = test.findRouteBreadthFirst(request.getDest(), r);
+	    } else {
+		spaces = test.findRouteBreadthFirst(s2, r);
+	    }
+	    expanded = test.getExpandedCount();
+	}
+
+	PerfStats perf = jls.getPerfStats();
+	perf.increment("search." + mode + ".queries");
+	perf.add("search." + mode + ".expanded", expanded);
+	System.out.println("Spaces expanded (" + mode + "): " + expanded);
 	return spaces;
     }
   
 
+  /**
+   * The spaces a route may start in: the transition spaces of a source
+   * building, or the source room.
+   */
+  private static Vector getSourceSpaces(Route request, JavaLocationServer jls) {
+      Vector sources;
+      if (request.getSource().indexOf("-") == -1) {
+	  // source is a building -- first piece of the path
+	  // can be any space that leads out of the building
+	  System.out.println("Building source");
+	  Building srcBldng = jls.getBuilding(request.getSource());
+	  sources = srcBldng.getTransitionSpaces();
+	  //System.out.println("building routes invalid"); return null;
+      } else {
+	  // otherwise source is a single room
+	  sources = new Vector();
+	  sources.add(jls.getSpace(request.getSource()));
+      }
+      return sources;
+  }
+
+  /**
+   * The spaces a route may end in: all spaces of a destination
+   * building, or the destination room s2.
+   */
+  private static Vector getTargetSpaces(Route request, JavaLocationServer jls,
+					Space s2) {
+      Vector targets;
+      if (s2 == null) {
+	  targets = jls.getSpacesInBuilding(request.getDest());
+      } else {
+	  targets = new Vector();
+	  targets.add(s2);
+      }
+      return targets;
+  }
+
+  /**
+   * Exact single-level search (Route.SEARCH_EXACT): finds the shortest
+   * sequence of portals from a source space to a destination space,
+   * using the portal-to-portal distance matrices of the spaces in
+   * between (see DijkstraPortal). Unlike findRouteDijkstra followed by
+   * findNodesThroughSpaces, path lengths are actual walking distances
+   * through the space graphs rather than centroid estimates, and all
+   * spaces are considered, not only those of a space sequence.
+   *
+   * Returns the portals crossed in order, or null if there is no route.
+   */
+  public static Vector findRouteExact(Route request, JavaLocationServer jls,
+				      Route r) {
+      Vector sources = getSourceSpaces(request, jls);
+      Space s2 = null;
+      if (request.getDest().indexOf("-") != -1) {
+	  s2 = jls.getSpace(request.getDest());
+      } else {
+	  System.out.println("Building destination");
+      }
+      Vector targets = getTargetSpaces(request, jls, s2);
+
+      Dijkstra test = new DijkstraPortal(r, targets);
+      for (int i = 0; i < sources.size(); i++) {
+	  Space s = (Space)sources.get(i);
+	  if (s.getPortals() == null) continue;
+	  s.getPortalDistances(); // links the portals to their destinations
+	  for (Iterator j = s.getPortals().iterator(); j.hasNext();) {
+	      Portal p = (Portal)j.next();
+	      if (p.getId() >= 0) test.addSource(p);
+	  }
+      }
+      Vector portals = test.findRouteBreadthFirst(null, r);
+
+      PerfStats perf = jls.getPerfStats();
+      perf.increment("search." + Route.SEARCH_EXACT + ".queries");
+      perf.add("search." + Route.SEARCH_EXACT + ".expanded", test.getExpandedCount());
+      System.out.println("Portals expanded (" + Route.SEARCH_EXACT + "): " +
+			 test.getExpandedCount());
+      return portals;
+  }
+
+  /**
+   * Return the portals crossed by a node path from
+   * findNodesThroughSpaces. Portal nodes come in pairs, one on each
+   * side of the doorway; the first of each pair is the portal crossed.
+   */
+  public static Vector getPortalsOnNodePath(Vector nodes) {
+      Vector portals = new Vector();
+      for (int i = 0; i < nodes.size(); i++) {
+	  Graph.Node node = (Graph.Node)nodes.get(i);
+	  if(node.isPortal()) {
+	      portals.add(node.getPortal());
+	      i++; // portals come in pairs
+	  }
+      }
+      return portals;
+  }
+
   /**
    * Implemented by Emily Whiting (Feb.20.06)
    * It is assumed the vector contains a sequence of spaces connnecting the source
@@ -92,6 +238,32 @@ public class Library {
       return routeGraph;
   }
   
+  /**
+   * Finds the exact node path (triangle to triangle) from the start
+   * space to the end space through the given spaces, and returns the
+   * portals it crosses, in order, or null if there is none.
+   *
+   * The search runs on the server's campus graph restricted to the given
+   * spaces (see CampusGraph), or on a graph of the given spaces while
+   * they are loaded lazily; the graphs are only combined per request,
+   * with findNodesThroughSpaces, if there is no campus graph.
+   */
+  public static Vector findPortalsThroughSpaces(Space start, Space end,
+						Route r, Vector spaces,
+						JavaLocationServer jls) {
+      CampusGraph campus = jls.getCampusGraph(spaces);
+      if (campus == null) {
+	  Vector nodes = findNodesThroughSpaces(start, end, r, spaces);
+	  return (nodes == null) ? null : getPortalsOnNodePath(nodes);
+      }
+      int[] expanded = new int[1];
+      Vector portals = campus.findPath(spaces, start, end, expanded);
+      PerfStats perf = jls.getPerfStats();
+      perf.increment("search.nodes.queries");
+      perf.add("search.nodes.expanded", expanded[0]);
+      return portals;
+  }
+
   /**
    * findNodesThroughSpaces finds the exact node path (triangle to triangle)
    * from the start space to end space. It returns a vector of positions
@@ -102,21 +274,17 @@ public class Library {
 
       Graph routeGraph = combineGraphs(spaces);
       System.out.println("Space graphs combined: running Dijkstra search");
-      PriorityQueue priorityQueue = new PriorityQueue();
-      Vector returnVector = null;
+      Dijkstra test = new DijkstraNode();
 
       // find possible portals connected to start space for the route origin
       Vector portals = (Vector)start.getPortals();
       for (int i = 0; i < portals.size(); i++) {
 	  Graph.Node StartNode = routeGraph.getPortalNode((Portal)portals.get(i));
 	  if(StartNode != null) {
-	      Vector firstRoute = new Vector();
-	      firstRoute.add(StartNode);
-	      priorityQueue.add(0.0f, firstRoute);
+	      test.addSource(StartNode);
 	  }
       }
-      Dijkstra test = new DijkstraNode();
-      return test.findRouteBreadthFirst(priorityQueue, end, r);
+      return test.findRouteBreadthFirst(end, r);
   }
   
   /** 
@@ -210,79 +378,85 @@ public class Library {
    * don't cross space boundaries.
    *
    * Heavily edited by Emily Whiting (18.02.06) to search a graph
-   * representation of the space (see Graph.java).
+   * representation of the space (see Graph.java), now in its array
+   * form (see Space.getCSR).
   */
   public static Collection getShortestRoute(Position start, 
 					    Position finish, 
 					    Space space) {
 
-    // figure out which node to start with
-    Position startPosition = start;
-    Position finishPosition = finish;
-
-    Graph spacegraph = space.getGraph();
-    Graph.Node StartNode = spacegraph.getPortalNode(start);
-    Graph.Node FinishNode = spacegraph.getPortalNode(finish);
-    if(StartNode == null) System.err.println("Start Node not found");
-    if(FinishNode == null) System.err.println("Finish Node not found");
+    CSRGraph spacegraph = space.getCSR();
+    int[] returnVector = getShortestNodes(start, finish, spacegraph);
 
-    // now, do djikstra's algo to find shortest route
-    PriorityQueue priorityQueue = new PriorityQueue();
-    Vector firstRoute = new Vector();
-    firstRoute.add(StartNode);
-    priorityQueue.add(0.0f, firstRoute);
-    Vector returnVector = getShortestNodePath(priorityQueue, FinishNode);
-
-    // We have a list of Graph nodes. Now extract a list of positions.
+    // We have a list of graph nodes. Now extract a list of positions.
     Vector returnVal = new Vector();
     if (returnVector == null) {
-	returnVal.add(startPosition);
-	returnVal.add(finishPosition);
+	returnVal.add(start);
+	returnVal.add(finish);
 	return returnVal;
     } else {
-	for (Iterator i = returnVector.iterator(); i.hasNext();) {
-	    returnVal.add(((Graph.Node)i.next()).pos());  //add node position
+	for (int i = 0; i < returnVector.length; i++) {
+	    returnVal.add(spacegraph.getPosition(returnVector[i]));  //add node position
 	}
     }
     return returnVal;
   }
 
-  // priorityQueue initialized with possible start nodes for path
-  public static Vector getShortestNodePath(PriorityQueue priorityQueue, Graph.Node end) {
-
-      Vector returnVector = null;
-
-      while (!priorityQueue.isEmpty()) {
-	  Object[] nextObject = priorityQueue.removeShortestPath();
-	  if(nextObject == null) break;
-
-	  Double shortestPathLength = (Double) nextObject[0];
-	  Vector shortestPath = (Vector) nextObject[1];
-	  Graph.Node head = (Graph.Node)shortestPath.lastElement();
-
-	  // stopping condition: the head of the search path queue is
-	  // close to the triangle nearest the path destination
-	  if (head.equals(end)) {
-	      returnVector = shortestPath;
-	      break;
-	  }
+  /**
+   * returns the shortest route from start to finish through space, like
+   * getShortestRoute, pulled taut through the triangles the node path
+   * crosses (see Funnel): it bends only at corners of the space. If the
+   * node path is no channel of triangles, its positions are shortened
+   * by iterativelyShorten instead.
+   */
+  public static Collection getTautRoute(Position start, 
+					Position finish, 
+					Space space) {
+    CSRGraph spacegraph = space.getCSR();
+    int[] nodes = getShortestNodes(start, finish, spacegraph);
+    Vector returnVal = new Vector();
+    if (nodes == null) {
+	returnVal.add(start);
+	returnVal.add(finish);
+	return returnVal;
+    }
+    Vector taut = Funnel.pull(space, spacegraph, nodes);
+    if (taut != null) {
+	return taut;
+    }
+    for (int i = 0; i < nodes.length; i++) {
+	returnVal.add(spacegraph.getPosition(nodes[i]));
+    }
+    return iterativelyShorten(returnVal, space);
+  }
 
-	  // find the triangles adjacent to this one
-	  Vector nextNodes = head.getAdjNodesWithWeights();
+  // the nodes of spacegraph on the shortest path between the portal
+  // nodes closest to start and finish, or null if there is none
+  private static int[] getShortestNodes(Position start, 
+					Position finish, 
+					CSRGraph spacegraph) {
+    // figure out which node to start with
+    int StartNode = spacegraph.getPortalNode(start);
+    int FinishNode = spacegraph.getPortalNode(finish);
+    if(StartNode < 0) System.err.println("Start Node not found");
+    if(FinishNode < 0) System.err.println("Finish Node not found");
 
-	  for (int i = 0; i < nextNodes.size(); i++) {
-	      Object[] nextNodeObj = (Object[])nextNodes.get(i);
-	      Graph.Node nextNode = (Graph.Node)nextNodeObj[1];
+    // now, do djikstra's algo to find shortest route
+    if (StartNode >= 0 && FinishNode >= 0) {
+	return spacegraph.shortestPath(StartNode, FinishNode);
+    }
+    return null;
+  }
 
-	      if (!shortestPath.contains(nextNode)) {
-		  Double nextWeight = (Double)nextNodeObj[0];
-		  Vector extendPath = (Vector) shortestPath.clone();
-		  extendPath.add(nextNode);
-		  double newWeight = shortestPathLength.doubleValue() + nextWeight.doubleValue();
-		  priorityQueue.add(newWeight, extendPath);
-	      }
-	  }
-      }  return returnVector;
+  // shortest path between two nodes of the same graph, or null if
+  // either node is missing or there is no path
+  public static Vector getShortestNodePath(Graph.Node start, Graph.Node end) {
+      if (start == null || end == null) {
+	  return null;
+      }
+      Dijkstra search = new DijkstraNodeTarget();
+      search.addSource(start);
+      return search.findRouteBreadthFirst(end, null);
   }
   /**
    * Method that returns the length of route.  Input collection is
@@ -309,18 +483,32 @@ public class Library {
   }
   
   public static Polyline shortenedPoly(Vector portals) {
+      return shortenedPoly(portals, null);
+  }
+
+  /**
+   * the path of a route crossing the given portals: the taut route
+   * (see getTautRoute) through each space, from the portal it is
+   * entered by to the one it is left by. The path of each pair of
+   * portals is taken from cache if it is there, and put there if not;
+   * cache may be null.
+   */
+  public static Polyline shortenedPoly(Vector portals, PortalPathCache cache) {
       Polyline answer = new Polyline();
       for(int i = 0; i < portals.size()-1; i++) {
-	  Space currSpace = ((Portal)portals.get(i)).spaces[1];
-
-	  Vector initpositions =
-	      (Vector)getShortestRoute(((Portal)portals.get(i)).getApproximatePosition(),
-				       ((Portal)portals.get(i+1)).getApproximatePosition(),
-				       currSpace);
-	      
-	  Collection positions = iterativelyShorten(initpositions, currSpace);
-	  for(Iterator j = positions.iterator(); j.hasNext();) {
-	      answer.addPoint((Position)j.next());
+	  Portal from = (Portal)portals.get(i);
+	  Portal to = (Portal)portals.get(i+1);
+	  double[] points = (cache == null) ? null : cache.get(from, to);
+	  if (points == null) {
+	      points = PortalPathCache.pack(getTautRoute(from.getApproximatePosition(),
+							 to.getApproximatePosition(),
+							 from.spaces[1]));
+	      if (cache != null) {
+		  cache.put(from, to, points);
+	      }
+	  }
+	  for(int j = 0; j < points.length; j += 3) {
+	      answer.addPoint(new Position(points[j], points[j+1], points[j+2]));
 	  }
       } return answer;
   }
@@ -454,6 +642,35 @@ public class Library {
     }
   }
 
+  /**
+   * Same as getSpacesExcludingWithWeights, but without an exclusion
+   * list: returns Object[2]'s of {Double portal weight, Space} for each
+   * legal portal leading out of 'space'. The search engines keep their
+   * own record of settled spaces. If no legal portals are found,
+   * returns null.
+   */
+  public static Collection getLegalSpacesWithWeights(Space space, Route r) {
+    Vector returnVector = new Vector();
+
+    Collection portals = space.getPortals();
+    for (Iterator i = portals.iterator(); i.hasNext();) {
+      Portal nextPortal = (Portal) i.next();
+
+      if (r.isLegal(nextPortal) && nextPortal.spaces[1] != null) {
+	Object[] addArray = new Object[2];
+	addArray[0] = Double.valueOf(nextPortal.getWeight(r));
+	addArray[1] = nextPortal.spaces[1];
+	returnVector.add(addArray);
+      }
+    }
+
+    if (returnVector.size() > 0) {
+      return returnVector;
+    } else {
+      return null;
+    }
+  }
+
   /** 
    * returns a Collection of Spaces adjacent to the argument 'space'.
    * Constraints are implemented using the route r, by a call
@@ -529,91 +746,3 @@ public class Library {
 	    portal.type.equals(Portal.TYPE_STAIRS_UP)   );
   }
 }
-
-/** 
- * helper class - Priority Queue.  Should be general enough to use
- * with any object type.  always returns (and deletes) the shortest
- * path in the queue.  Insertions only succeed if they are the
- * shortest path with a particular head.
- */
-
-class PriorityQueue {
-  private SortedMap sortedMap;
-
-  /* keyed on Object, members are Object[2], where Object[0] is
-   * Double, Object[1] is Vector */
-    private Vector heads;
-
-  public PriorityQueue() {
-    this.sortedMap = new TreeMap();
-    //this.heads = new HashMap();
-    this.heads = new Vector();
-  }
-
-  /**
-   * Try to add a new path to the priority queue, with specified
-   * length and path. Path is a vector, with the head (end) of the
-   * path as the last element of the vector.
-   */
-  public void add(double length, Vector path) {
-    // first, check to see if the new path is shorter than the
-    // shortest path with the same head
-    //
-    // NOTE: "heads" stores all graph nodes that have their shortest
-    // path determined.
-    Object head = path.lastElement();
-    if (!this.heads.contains(head)) {
-    
-	// put the new path in the queue.
-	Double doubleKey = new Double(length);
-	if (sortedMap.containsKey(doubleKey)) {
-	    Vector getVector = (Vector) sortedMap.get(doubleKey);
-	    getVector.add(path);
-	}
-	else {
-	    Vector newVector = new Vector();
-	    newVector.add(path);
-	    sortedMap.put(doubleKey, newVector);
-	}
-    }
-  }
-  
-  /** 
-   * removes one of the lowest paths in the Queue.  The first element
-   * of the returned Object[2] is a Double representing length, the
-   * second element is a Vector of the Path
-  */
-  public Object[] removeShortestPath() {
-
-    Vector returnPath = null;
-    Object[] returnObject = new Object[2];
-
-    do {
-	if (sortedMap.isEmpty()) {
-	    return null;
-	}
-	Double lowestLength = (Double) sortedMap.firstKey();
-	Vector lowestPaths = (Vector) sortedMap.remove(lowestLength);
-	//just get one of the lowest paths:
-	returnPath = (Vector) lowestPaths.remove(0);
-	if (!lowestPaths.isEmpty()) {
-	    //put it back into the map, minus the path we're removing
-	    sortedMap.put(lowestLength, lowestPaths);
-	}
-	returnObject[0] = lowestLength;
-	returnObject[1] = returnPath;
-    } while(this.heads.contains(returnPath.lastElement()));
-
-    // put this shortest path in the heads list
-    Object head = returnPath.lastElement();
-    this.heads.add(head);
-
-    return returnObject;
-  }
-  public boolean isEmpty() {
-    return this.sortedMap.isEmpty();
-  }
-  public int size() {
-    return this.sortedMap.size();
-  }
-}
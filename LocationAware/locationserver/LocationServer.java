@@ -15,6 +15,11 @@ public interface LocationServer extends Remote {
 
   public Space getSpace(Location loc) throws RemoteException;
   public Space getSpace(String spaceName) throws RemoteException;
+  public Vector completeSpaceName(String text, int max, int maxEdits)
+    throws RemoteException;
+  public int[] locateSpaces(double[] coords, String[] buildings, int[] floors)
+    throws RemoteException;
+  public String[] getSpaceNames() throws RemoteException;
   public Portal getPortal(String portalName) throws RemoteException;
   public Route getRoute(Route r) throws RemoteException;
   public Vector getSpacesWithConstraints(String blg, String flr) 
@@ -22,5 +27,9 @@ public interface LocationServer extends Remote {
   public String getRandomSpace() throws RemoteException;
   public String[] getSuperNodes() throws RemoteException;
   public Vector getSpacesThatClip(Rectangle r) throws RemoteException;
+  public SpacePage getSpacesInView(double minX, double minY, double maxX, double maxY,
+				   String building, int floor, int cursor, int pageSize)
+    throws RemoteException;
+  public TreeMap getPerfCounters() throws RemoteException;
 
 }
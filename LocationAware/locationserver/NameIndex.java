@@ -0,0 +1,193 @@
+package locationserver;
+
+import java.util.*;
+
+/**
+ * Index of the names of the spaces and buildings for autocomplete
+ * (JavaLocationServer.completeSpaceName). The names, upper cased, are
+ * kept in one sorted array that serves as a trie: the names under a
+ * node, those starting with its prefix, are a range of the array, and
+ * the ranges of its children are found by binary search, so the trie
+ * takes no memory of its own.
+ *
+ * A name matches typed text with d edits if some prefix of it is d
+ * edits (insertions, deletions or substitutions) from the text; names
+ * starting with the text match with 0. The search walks the trie with
+ * a row of the edit distance table for each depth and stops where no
+ * name below can match with fewer edits than found above it. Matches
+ * come with the fewest edits first, and in name order within the same
+ * number of edits, so a building comes before its spaces.
+ */
+public class NameIndex {
+
+  /** Most edits a search allows. */
+  public static final int MAX_EDITS = 2;
+
+  private String[] keys;        // upper cased names, sorted
+  private NameMatch[] entries;  // the name of each key
+  private int maxLength;        // of the keys
+
+  /**
+   * Index the names of the given spaces and buildings (Strings).
+   */
+  public NameIndex(Collection spaces, Collection buildings) {
+    final String[] names = new String[spaces.size() + buildings.size()];
+    NameMatch[] matches = new NameMatch[names.length];
+    int n = 0;
+    Iterator i = buildings.iterator();
+    while (i.hasNext()) {
+      String b = (String) i.next();
+      matches[n] = new NameMatch(b);
+      names[n++] = b.toUpperCase();
+    }
+    i = spaces.iterator();
+    while (i.hasNext()) {
+      Space s = (Space) i.next();
+      matches[n] = new NameMatch(s);
+      names[n++] = s.getName().toUpperCase();
+    }
+
+    // sort by name; a building before a space of the same name
+    Integer[] order = new Integer[n];
+    for (int j = 0; j < n; j++) {
+      order[j] = Integer.valueOf(j);
+    }
+    Arrays.sort(order, new Comparator() {
+	public int compare(Object a, Object b) {
+	  int c = names[((Integer) a).intValue()].compareTo(names[((Integer) b).intValue()]);
+	  return (c != 0) ? c : ((Integer) a).compareTo((Integer) b);
+	}
+      });
+    this.keys = new String[n];
+    this.entries = new NameMatch[n];
+    for (int j = 0; j < n; j++) {
+      this.keys[j] = names[order[j].intValue()];
+      this.entries[j] = matches[order[j].intValue()];
+      this.maxLength = Math.max(this.maxLength, this.keys[j].length());
+    }
+  }
+
+  /** Number of names indexed. */
+  public int size() {
+    return this.keys.length;
+  }
+
+  /**
+   * Return (a Vector of NameMatch) at most max names matching text with
+   * at most maxEdits edits (no more than MAX_EDITS), fewest edits first.
+   * More edits are allowed only while there are fewer than max matches,
+   * so that typical queries, answered by prefix, stay cheap.
+   */
+  public Vector complete(String text, int max, int maxEdits) {
+    String t = text.toUpperCase();
+    maxEdits = Math.max(0, Math.min(maxEdits, MAX_EDITS));
+    int[][] rows = new int[this.maxLength + 2][t.length() + 1];
+    Vector result = null;
+    for (int edits = 0; edits <= maxEdits; edits++) {
+      result = this.complete(t, max, edits, rows);
+      if (result.size() >= max) {
+	break;
+      }
+    }
+    return result;
+  }
+
+  private Vector complete(String t, int max, int maxEdits, int[][] rows) {
+    for (int j = 0; j <= t.length(); j++) {
+      rows[0][j] = j;
+    }
+    Vector[] ranges = new Vector[maxEdits + 1]; // edits -> int[] { lo, hi }, in key order
+    for (int d = 0; d <= maxEdits; d++) {
+      ranges[d] = new Vector();
+    }
+    this.search(t, 0, 0, this.keys.length, rows, maxEdits + 1, ranges);
+
+    // the ranges found with d edits hold those found with fewer
+    Vector result = new Vector();
+    for (int d = 0; d <= maxEdits && result.size() < max; d++) {
+      for (int r = 0; r < ranges[d].size() && result.size() < max; r++) {
+	int[] range = (int[]) ranges[d].get(r);
+	int i = range[0];
+	while (i < range[1] && result.size() < max) {
+	  int skip = coveredUntil(ranges, d, i);
+	  if (skip > i) {
+	    i = skip;
+	  } else {
+	    result.add(new NameMatch(this.entries[i], d));
+	    i++;
+	  }
+	}
+      }
+    }
+    return result;
+  }
+
+  // the end of the range found with fewer than d edits that holds key i,
+  // or -1
+  private static int coveredUntil(Vector[] ranges, int d, int i) {
+    for (int e = 0; e < d; e++) {
+      for (int r = 0; r < ranges[e].size(); r++) {
+	int[] range = (int[]) ranges[e].get(r);
+	if (range[0] <= i && i < range[1]) {
+	  return range[1];
+	}
+      }
+    }
+    return -1;
+  }
+
+  /*
+   * The keys lo .. hi-1 share their first depth characters, whose row of
+   * the edit distance table against t is rows[depth]. Add the range to
+   * ranges if its prefix is fewer than best edits from t, and look below
+   * for ranges with fewer edits still.
+   */
+  private void search(String t, int depth, int lo, int hi, int[][] rows,
+		      int best, Vector[] ranges) {
+    int m = t.length();
+    int[] row = rows[depth];
+    if (row[m] < best) {
+      best = row[m];
+      ranges[best].add(new int[] { lo, hi });
+    }
+    int min = row[0];
+    for (int j = 1; j <= m; j++) {
+      min = Math.min(min, row[j]);
+    }
+    if (min >= best) {
+      return; // the rows only grow from here
+    }
+
+    // keys that end here come first
+    int i = lo;
+    while (i < hi && this.keys[i].length() == depth) {
+      i++;
+    }
+    int[] next = rows[depth + 1];
+    while (i < hi) {
+      char c = this.keys[i].charAt(depth);
+      int end = this.groupEnd(i, hi, depth, c);
+      next[0] = row[0] + 1;
+      for (int j = 1; j <= m; j++) {
+	next[j] = Math.min(Math.min(row[j] + 1, next[j - 1] + 1),
+			   row[j - 1] + ((t.charAt(j - 1) == c) ? 0 : 1));
+      }
+      this.search(t, depth + 1, i, end, rows, best, ranges);
+      i = end;
+    }
+  }
+
+  // the first key from lo on, before hi, whose character at depth is
+  // after c; the keys from lo on all have one
+  private int groupEnd(int lo, int hi, int depth, char c) {
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (this.keys[mid].charAt(depth) <= c) {
+	lo = mid + 1;
+      } else {
+	hi = mid;
+      }
+    }
+    return lo;
+  }
+}
@@ -0,0 +1,75 @@
+package locationserver;
+
+import java.io.*;
+
+/**
+ * A space or building name found by LocationServer.completeSpaceName,
+ * with what a client needs to rank and show it: whether it names a
+ * building, the building, floor id and type of a space, and the number
+ * of edits (0 for a prefix match) that turn the typed text into the
+ * start of the name.
+ */
+public class NameMatch implements Serializable {
+
+  private String name;
+  private boolean building;  // true for a building, false for a space
+  private String buildingName;
+  private String floor;      // floor id of a space (see Space.getFloorName), null for a building
+  private String type;       // type of a space, null for a building
+  private int edits;
+
+  /** A match for a space. */
+  public NameMatch(Space s) {
+    this.name = s.getName();
+    this.building = false;
+    this.buildingName = s.getBuildingName();
+    this.floor = s.getFloorName();
+    this.type = s.getType();
+  }
+
+  /** A match for a building. */
+  public NameMatch(String buildingName) {
+    this.name = buildingName;
+    this.building = true;
+    this.buildingName = buildingName;
+  }
+
+  /** The same name, found with the given number of edits. */
+  public NameMatch(NameMatch m, int edits) {
+    this.name = m.name;
+    this.building = m.building;
+    this.buildingName = m.buildingName;
+    this.floor = m.floor;
+    this.type = m.type;
+    this.edits = edits;
+  }
+
+  public String getName() {
+    return this.name;
+  }
+
+  public boolean isBuilding() {
+    return this.building;
+  }
+
+  public String getBuildingName() {
+    return this.buildingName;
+  }
+
+  public String getFloorName() {
+    return this.floor;
+  }
+
+  public String getType() {
+    return this.type;
+  }
+
+  public int getEdits() {
+    return this.edits;
+  }
+
+  public String toString() {
+    return this.name + " (" + (this.building ? "building" : this.type + ", floor " + this.floor) +
+      ", " + this.edits + " edits)";
+  }
+}
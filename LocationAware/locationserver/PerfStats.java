@@ -0,0 +1,76 @@
+package locationserver;
+
+import java.util.*;
+import java.io.*;
+
+/**
+ * A set of named counters used for perf testing the server: search
+ * expansions, cache hits, load times and the like. Counters are
+ * created on first use and are safe to update from several RMI
+ * threads at once.
+ */
+public class PerfStats implements Serializable {
+
+  private HashMap counters; // String -> long[1]
+
+  public PerfStats() {
+    this.counters = new HashMap();
+  }
+
+  /**
+   * Add delta to the named counter.
+   */
+  public synchronized void add(String name, long delta) {
+    long[] c = (long[]) this.counters.get(name);
+    if (c == null) {
+      c = new long[1];
+      this.counters.put(name, c);
+    }
+    c[0] += delta;
+  }
+
+  public void increment(String name) {
+    this.add(name, 1);
+  }
+
+  /**
+   * Set the named counter, for gauges such as table sizes.
+   */
+  public synchronized void set(String name, long value) {
+    long[] c = (long[]) this.counters.get(name);
+    if (c == null) {
+      c = new long[1];
+      this.counters.put(name, c);
+    }
+    c[0] = value;
+  }
+
+  public synchronized long get(String name) {
+    long[] c = (long[]) this.counters.get(name);
+    return (c == null) ? 0 : c[0];
+  }
+
+  /**
+   * Return a copy of all counters, as a map of String -> Long sorted
+   * by name.
+   */
+  public synchronized TreeMap snapshot() {
+    TreeMap copy = new TreeMap();
+    Iterator i = this.counters.entrySet().iterator();
+    while (i.hasNext()) {
+      Map.Entry e = (Map.Entry) i.next();
+      copy.put(e.getKey(), Long.valueOf(((long[]) e.getValue())[0]));
+    }
+    return copy;
+  }
+
+  public String toString() {
+    StringBuffer sb = new StringBuffer();
+    Iterator i = this.snapshot().entrySet().iterator();
+    while (i.hasNext()) {
+      Map.Entry e = (Map.Entry) i.next();
+      sb.append("  * " + e.getKey() + " = " + e.getValue() + "\n");
+    }
+    return sb.toString();
+  }
+}
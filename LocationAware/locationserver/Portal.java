@@ -11,6 +11,19 @@ public class Portal implements Serializable {
   public String type;
   public String name;
   public String toString;
+
+  // position of this portal in its source space's portals, and of the
+  // portal node it arrives at in the destination space, with the
+  // distance between the two (see Space.computePortalDistances)
+  public int srcIndex = -1;
+  public int destIndex = -1;
+  public float crossLength;
+  private int id = -1; // dense index used by the search engines
+
+  // fixed at the UID of the version before srcIndex, destIndex,
+  // crossLength and id, so that snapshots written with Java
+  // serialization by that version stay readable
+  private static final long serialVersionUID = 3136706286117136399L;
   
   // some static portal types
   public static String TYPE_OUTDOOR     = "OUTDOOR";  
@@ -32,6 +45,23 @@ public class Portal implements Serializable {
   
   public Portal() { }
 
+  /*
+   * type is always one of the TYPE_ strings; share those again after
+   * loading, as a portal read from a floor file does. The id is given
+   * again by the server; srcIndex and destIndex stay unlinked if the
+   * stream is older than they are.
+   */
+  private void readObject(ObjectInputStream in)
+    throws IOException, ClassNotFoundException {
+    this.srcIndex = -1;
+    this.destIndex = -1;
+    in.defaultReadObject();
+    this.id = -1;
+    if (this.type != null) {
+      this.type = this.type.intern();
+    }
+  }
+
   /**
    * Constructor takes a type, two spaces to connect, and coordinates
    * for the portal's physical location. Upon creation, the portal
@@ -113,6 +143,14 @@ public class Portal implements Serializable {
 	return 1.0;
   }
 
+  public int getId() {
+    return this.id;
+  }
+
+  public void setId(int id) {
+    this.id = id;
+  }
+
   public String getSourceName() {
       return spacenames[0];
   }
@@ -126,12 +164,17 @@ public class Portal implements Serializable {
   }
 
   static public String determineType(Element portal) {
-      String ptype  = portal.getAttribute("type");
-      String pclass = portal.getAttribute("class");
-      
-      if (pclass.equalsIgnoreCase("VERTICAL")) {
-	  String dir = portal.getAttribute("direction");
+      return determineType(portal.getAttribute("type"),
+			   portal.getAttribute("class"),
+			   portal.getAttribute("direction"));
+  }
 
+  /**
+   * Portal type from the type, class and direction attributes of a
+   * portal element ("" where missing).
+   */
+  static public String determineType(String ptype, String pclass, String dir) {
+      if (pclass.equalsIgnoreCase("VERTICAL")) {
 	  if (dir.equalsIgnoreCase("DOWN")) {
 	      if (ptype.equalsIgnoreCase("ELEV"))
 		  return TYPE_ELEV_DOWN;
@@ -0,0 +1,89 @@
+package locationserver;
+
+import java.util.*;
+
+/**
+ * Bounded cache of the paths Library.shortenedPoly draws through a space
+ * from the portal a route enters it by to the portal it leaves by,
+ * keyed by the ids of the two portals (Portal.getId). Routes through
+ * the main corridors cross the same portal pairs over and over, and
+ * each path otherwise takes a search of the space's graph and a pass of
+ * Funnel. A path is kept as one array of x, y, z per point rather than
+ * as Positions.
+ *
+ * Like RouteCache, the cache is a SegmentedCache, whose full segments
+ * drop their least recently used paths. Lookups and
+ * evictions are counted in the server's perf counters as
+ * path.cache.hits, path.cache.misses and path.cache.evictions. Cached
+ * arrays are shared by every caller and must not be modified.
+ *
+ * The paths of the busiest portal pairs may be written to the snapshot
+ * (see JavaLocationServer.findHotPaths and Snapshot), so that a server
+ * starts with them.
+ */
+public class PortalPathCache {
+
+  private SegmentedCache cache;
+
+  /** A cached path: the portals it runs between, and its points. */
+  public static class Path {
+    public final Portal from;
+    public final Portal to;
+    public final double[] points; // x, y, z of each point
+
+    public Path(Portal from, Portal to, double[] points) {
+      this.from = from;
+      this.to = to;
+      this.points = points;
+    }
+  }
+
+  /**
+   * Make a cache holding at most about capacity paths (rounded up to a
+   * multiple of the number of segments); 0 caches nothing.
+   */
+  public PortalPathCache(int capacity, PerfStats perf) {
+    this.cache = new SegmentedCache(capacity, perf, "path.cache");
+  }
+
+  /**
+   * The key of a pair of portals, or null if either has no id (it is
+   * not in the server's portal table).
+   */
+  public static Long key(Portal from, Portal to) {
+    if (from.getId() < 0 || to.getId() < 0) {
+      return null;
+    }
+    return Long.valueOf(((long) from.getId() << 32) | (to.getId() & 0xffffffffL));
+  }
+
+  /** Return the points of the cached path between two portals, or null. */
+  public double[] get(Portal from, Portal to) {
+    Path p = (Path) this.cache.get(key(from, to));
+    return (p == null) ? null : p.points;
+  }
+
+  /** Cache the points of the path between two portals. */
+  public void put(Portal from, Portal to, double[] points) {
+    this.cache.put(key(from, to), new Path(from, to, points));
+  }
+
+  /** Number of paths cached. */
+  public int size() {
+    return this.cache.size();
+  }
+
+  /** The points of a route (a Collection of Positions) as x, y, z in turn. */
+  public static double[] pack(Collection route) {
+    double[] points = new double[3 * route.size()];
+    int j = 0;
+    Iterator i = route.iterator();
+    while (i.hasNext()) {
+      Position p = (Position) i.next();
+      points[j++] = p.x;
+      points[j++] = p.y;
+      points[j++] = p.z;
+    }
+    return points;
+  }
+}
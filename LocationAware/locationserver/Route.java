@@ -21,6 +21,11 @@ public class Route implements Serializable {
   private Polyline path = null; // polyline of positions in world space
   private Vector route  = null; // vector of space names
   private Vector portals = null; // vector of portals on route
+  private String searchMode = null; // null -> server default
+
+  // fixed at the UID of the version before searchMode, so that clients
+  // built against it can still ask for routes (searchMode reads as null)
+  private static final long serialVersionUID = -8104636311460806484L;
   
   // static strings to represent routes
   public static String ROUTE_ROLLING = "ROUTE_ROLLING";
@@ -29,6 +34,14 @@ public class Route implements Serializable {
   public static String ROUTE_AVOID_INDOOR  = "ROUTE_AVOID_INDOOR";
   public static String ROUTE_AVOID_OUTDOOR = "ROUTE_AVOID_OUTDOOR";
   public static String ROUTE_ALWAYS_LEGAL  = "ROUTE_ALWAYS_LEGAL";
+
+  // static strings to select the space search algorithm
+  public static String SEARCH_DIJKSTRA = "SEARCH_DIJKSTRA";
+  public static String SEARCH_ASTAR    = "SEARCH_ASTAR"; // centroid heuristic
+  public static String SEARCH_BIDIRECTIONAL = "SEARCH_BIDIRECTIONAL";
+  public static String SEARCH_HIERARCHY = "SEARCH_HIERARCHY"; // see ContractionHierarchy
+  public static String SEARCH_ALT = "SEARCH_ALT"; // landmark heuristic, see Landmarks
+  public static String SEARCH_EXACT = "SEARCH_EXACT"; // portal search, see DijkstraPortal
   
   public Route(String source, String dest, String type) {
     this.source = source;
@@ -60,6 +73,18 @@ public class Route implements Serializable {
     return this.portals;
   }
 
+  /**
+   * Return the search algorithm requested for this route, or null to
+   * use the server's default.
+   */
+  public String getSearchMode() {
+    return this.searchMode;
+  }
+
+  public void setSearchMode(String mode) {
+    this.searchMode = mode;
+  }
+
   public void setRoute(Vector v) {
     this.route = v;
   }
@@ -0,0 +1,61 @@
+package locationserver;
+
+import java.util.*;
+
+/**
+ * Bounded cache of the routes found by JavaLocationServer.getRoute,
+ * keyed by source, destination, route type and search mode: a
+ * SegmentedCache, so RMI threads asking for different routes seldom
+ * wait for each other, and a full segment drops its least recently
+ * used route.
+ *
+ * Requests with no route are cached too, as NO_ROUTE, since finding
+ * that out takes the longest searches of all.
+ *
+ * Lookups and evictions are counted in the server's perf counters as
+ * route.cache.hits, route.cache.misses and route.cache.evictions.
+ * Cached routes are handed to every caller that asks for them, so they
+ * must not be modified.
+ */
+public class RouteCache {
+
+  /** Cached for a request that has no route. */
+  public static final Route NO_ROUTE = new Route(null, null, null);
+
+  private SegmentedCache cache;
+
+  /**
+   * Make a cache holding at most about capacity routes (rounded up to a
+   * multiple of the number of segments); 0 caches nothing.
+   */
+  public RouteCache(int capacity, PerfStats perf) {
+    this.cache = new SegmentedCache(capacity, perf, "route.cache");
+  }
+
+  /**
+   * The key of a request, once its route type and search mode are those
+   * the server will use.
+   */
+  public static String key(Route r) {
+    return r.getSource() + "\n" + r.getDest() + "\n" + r.getType() + "\n" +
+      r.getSearchMode();
+  }
+
+  /** Return the cached route for a key (maybe NO_ROUTE), or null. */
+  public Route get(String key) {
+    return (Route) this.cache.get(key);
+  }
+
+  public void put(String key, Route r) {
+    this.cache.put(key, r);
+  }
+
+  /** Number of routes cached. */
+  public int size() {
+    return this.cache.size();
+  }
+
+  public void clear() {
+    this.cache.clear();
+  }
+}
@@ -0,0 +1,219 @@
+package locationserver;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Append-only log of the routes getRoute has found, kept next to the
+ * snapshot as <snapshot>.routes so that a restarted server starts with
+ * a warm RouteCache. The log begins with a tag naming the snapshot it
+ * was written for (see tagOf); a log of any other snapshot is dropped
+ * when opened, so routes do not outlive a rebuilt full.db.
+ *
+ * Format (DataOutputStream):
+ *   UTF "LOCROUTES", int version, UTF tag
+ *   per route: UTF source, destination, route type and search mode,
+ *   boolean found; if found, int count and UTF space names, int count
+ *   and UTF portal names, int count and x, y, z of each path point
+ * A record cut short, because the server stopped while writing it, ends
+ * the log and is dropped when the log is next opened.
+ */
+public class RouteLog {
+
+  public static final String SUFFIX = ".routes";
+  private static final String MAGIC = "LOCROUTES";
+  private static final int VERSION = 1;
+
+  private File file;
+  private String tag;
+  private DataOutputStream out;
+  private PerfStats perf;
+
+  /**
+   * Open the log of a snapshot file. The routes logged for this
+   * snapshot are put in cache, oldest first, and the log is written
+   * again with only the latest route of each request; the number of
+   * routes read goes to the perf counter route.log.loaded.
+   */
+  public RouteLog(String snapshot, RouteCache cache, PerfStats perf)
+    throws IOException {
+    this.file = new File(snapshot + SUFFIX);
+    this.tag = tagOf(snapshot);
+    this.perf = perf;
+
+    LinkedHashMap routes = new LinkedHashMap(); // key -> Route[] { request, result }
+    if (this.file.exists()) {
+      read(this.file, this.tag, routes);
+    }
+    Iterator i = routes.values().iterator();
+    while (i.hasNext()) {
+      Route[] entry = (Route[]) i.next();
+      cache.put(RouteCache.key(entry[0]), entry[1]);
+    }
+    perf.set("route.log.loaded", routes.size());
+
+    File tmp = new File(snapshot + SUFFIX + ".tmp");
+    this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+    this.out.writeUTF(MAGIC);
+    this.out.writeInt(VERSION);
+    this.out.writeUTF(this.tag);
+    i = routes.values().iterator();
+    while (i.hasNext()) {
+      Route[] entry = (Route[]) i.next();
+      write(this.out, entry[0], entry[1]);
+    }
+    this.out.close();
+    if ((this.file.exists() && !this.file.delete()) || !tmp.renameTo(this.file)) {
+      throw new IOException("Cannot rename " + tmp + " to " + this.file);
+    }
+    this.out = new DataOutputStream(new BufferedOutputStream(
+			new FileOutputStream(this.file, true)));
+  }
+
+  /**
+   * A tag for a snapshot file: its version and checksum, or, for a
+   * snapshot written with Java serialization, its size and time.
+   */
+  public static String tagOf(String snapshot) {
+    String tag = Snapshot.getTag(snapshot);
+    if (tag == null) {
+      File f = new File(snapshot);
+      tag = "serialized " + f.length() + " " + f.lastModified();
+    }
+    return tag;
+  }
+
+  /**
+   * Return (a Vector of Route) the routes found in the log of a snapshot
+   * file, whichever snapshot the log was written for, latest of each
+   * request last; empty if there is no log. BATCH_OUT reads them before
+   * the snapshot is rewritten, to see which portals routes cross most.
+   */
+  public static Vector readRoutes(String snapshot) {
+    File file = new File(snapshot + SUFFIX);
+    LinkedHashMap routes = new LinkedHashMap();
+    if (file.exists()) {
+      read(file, null, routes);
+    }
+    Vector answer = new Vector();
+    Iterator i = routes.values().iterator();
+    while (i.hasNext()) {
+      Route result = ((Route[]) i.next())[1];
+      if (result != RouteCache.NO_ROUTE) {
+	answer.add(result);
+      }
+    }
+    return answer;
+  }
+
+  // read the routes of a log into routes, if it was written for the
+  // snapshot with the given tag (or any, if tag is null); later routes
+  // for a request replace earlier ones
+  private static void read(File file, String tag, LinkedHashMap routes) {
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+			       new FileInputStream(file)));
+      try {
+	if (!in.readUTF().equals(MAGIC) || in.readInt() != VERSION ||
+	    !(in.readUTF().equals(tag) || tag == null)) {
+	  System.out.println("Dropping " + file + ": written for another snapshot");
+	  return;
+	}
+	while (true) {
+	  Route request = new Route(in.readUTF(), in.readUTF(), in.readUTF());
+	  request.setSearchMode(in.readUTF());
+	  Route result = RouteCache.NO_ROUTE;
+	  if (in.readBoolean()) {
+	    result = new Route(request.getSource(), request.getDest(), request.getType());
+	    result.setSearchMode(request.getSearchMode());
+	    result.setRoute(readNames(in));
+	    result.setPortals(readNames(in));
+	    Polyline path = new Polyline();
+	    int points = in.readInt();
+	    for (int j = 0; j < points; j++) {
+	      path.addPoint(new Position(in.readDouble(), in.readDouble(), in.readDouble()));
+	    }
+	    result.setPath(path);
+	  }
+	  String key = RouteCache.key(request);
+	  routes.remove(key);
+	  routes.put(key, new Route[] { request, result });
+	}
+      } finally {
+	in.close();
+      }
+    } catch (EOFException eof) {
+      // end of the log, or a record cut short
+    } catch (IOException ioe) {
+      System.out.println("Cannot read " + file + ": " + ioe);
+    }
+  }
+
+  private static Vector readNames(DataInputStream in) throws IOException {
+    int n = in.readInt();
+    Vector names = new Vector(n);
+    for (int i = 0; i < n; i++) {
+      names.add(in.readUTF());
+    }
+    return names;
+  }
+
+  /**
+   * Add the result of a request (RouteCache.NO_ROUTE if it has none) to
+   * the log. If the log cannot be written, it is closed and nothing
+   * more is logged.
+   */
+  public synchronized void append(Route request, Route result) {
+    if (this.out == null) {
+      return;
+    }
+    try {
+      write(this.out, request, result);
+      this.out.flush();
+      this.perf.increment("route.log.appended");
+    } catch (IOException ioe) {
+      System.out.println("Cannot write " + this.file + ": " + ioe);
+      this.close();
+    }
+  }
+
+  private static void write(DataOutputStream out, Route request, Route result)
+    throws IOException {
+    out.writeUTF(request.getSource());
+    out.writeUTF(request.getDest());
+    out.writeUTF(request.getType());
+    out.writeUTF(request.getSearchMode());
+    out.writeBoolean(result != RouteCache.NO_ROUTE);
+    if (result == RouteCache.NO_ROUTE) {
+      return;
+    }
+    writeNames(out, result.getRoute());
+    writeNames(out, result.getPortals());
+    Position[] points = result.getPath().getPoints();
+    out.writeInt(points.length);
+    for (int i = 0; i < points.length; i++) {
+      out.writeDouble(points[i].x);
+      out.writeDouble(points[i].y);
+      out.writeDouble(points[i].z);
+    }
+  }
+
+  private static void writeNames(DataOutputStream out, Vector names)
+    throws IOException {
+    out.writeInt(names.size());
+    for (int i = 0; i < names.size(); i++) {
+      out.writeUTF((String) names.get(i));
+    }
+  }
+
+  public synchronized void close() {
+    try {
+      if (this.out != null) {
+	this.out.close();
+      }
+    } catch (IOException ioe) {
+      // nothing more to write
+    }
+    this.out = null;
+  }
+}
@@ -0,0 +1,109 @@
+package locationserver;
+
+import java.util.*;
+
+/**
+ * Bounded map shared by RMI threads, behind RouteCache and
+ * PortalPathCache. It is split into segments by the hash of the key,
+ * each a LinkedHashMap in access order under its own lock, so threads
+ * asking for different keys seldom wait for each other. When a segment
+ * is full, its least recently used entry is dropped.
+ *
+ * Lookups and evictions are counted in the server's perf counters
+ * under a prefix given by the owner, as <prefix>.hits, <prefix>.misses
+ * and <prefix>.evictions. A null key is never cached, and looking it up
+ * counts as a miss.
+ */
+public class SegmentedCache {
+
+  private static final int SEGMENTS = 16;
+
+  private Segment[] segments = new Segment[SEGMENTS];
+  private PerfStats perf;
+  private String hits, misses;
+
+  // one lock's worth of the cache: key -> value, least recently used first
+  private static class Segment extends LinkedHashMap {
+    private int capacity;
+    private PerfStats perf;
+    private String evictions;
+
+    Segment(int capacity, PerfStats perf, String evictions) {
+      super(16, 0.75f, true);
+      this.capacity = capacity;
+      this.perf = perf;
+      this.evictions = evictions;
+    }
+
+    protected boolean removeEldestEntry(Map.Entry eldest) {
+      if (this.size() > this.capacity) {
+	this.perf.increment(this.evictions);
+	return true;
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Make a cache holding at most about capacity entries (rounded up to
+   * a multiple of the number of segments); 0 caches nothing. counters
+   * is the prefix of its perf counters, e.g. route.cache.
+   */
+  public SegmentedCache(int capacity, PerfStats perf, String counters) {
+    this.perf = perf;
+    this.hits = counters + ".hits";
+    this.misses = counters + ".misses";
+    int perSegment = (Math.max(0, capacity) + SEGMENTS - 1) / SEGMENTS;
+    for (int i = 0; i < SEGMENTS; i++) {
+      this.segments[i] = new Segment(perSegment, perf, counters + ".evictions");
+    }
+  }
+
+  private Segment segmentFor(Object key) {
+    return this.segments[(key.hashCode() & 0x7fffffff) % SEGMENTS];
+  }
+
+  /** Return the value cached for a key, or null. */
+  public Object get(Object key) {
+    Object value = null;
+    if (key != null) {
+      Segment s = this.segmentFor(key);
+      synchronized (s) {
+	value = s.get(key);
+      }
+    }
+    this.perf.increment((value == null) ? this.misses : this.hits);
+    return value;
+  }
+
+  public void put(Object key, Object value) {
+    if (key == null) {
+      return;
+    }
+    Segment s = this.segmentFor(key);
+    synchronized (s) {
+      if (s.capacity > 0) {
+	s.put(key, value);
+      }
+    }
+  }
+
+  /** Number of entries cached. */
+  public int size() {
+    int size = 0;
+    for (int i = 0; i < SEGMENTS; i++) {
+      synchronized (this.segments[i]) {
+	size += this.segments[i].size();
+      }
+    }
+    return size;
+  }
+
+  public void clear() {
+    for (int i = 0; i < SEGMENTS; i++) {
+      synchronized (this.segments[i]) {
+	this.segments[i].clear();
+      }
+    }
+  }
+}
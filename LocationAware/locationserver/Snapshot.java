@@ -0,0 +1,957 @@
+package locationserver;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Binary snapshot of the location server: the spaces, portals,
+ * buildings, contraction hierarchies and landmarks BATCH_OUT computes,
+ * and the in-space paths of the busiest portal pairs.
+ * It replaces Java serialization of the object graph, which recursed
+ * through every Graph node and rebuilt each object by reflection. Here
+ * objects refer to each other by index, and coordinates, triangles and
+ * graphs are stored as blocks of primitives, so a file is written and
+ * read in one sequential pass with NIO.
+ *
+ * Layout (little-endian):
+ *   header    long magic, int version, int flags (0),
+ *             long offsets of the string table, the parts and the part
+ *             index, long CRC32 of the rest except the parts
+ *   spaces    int count, int rooms (the first rooms are the roomhashmap,
+ *             the rest are shadowed spaces that portals still refer to);
+ *             per space: name, type, tag, floor id, height, convex,
+ *             bounding box, boundary (x, y and z blocks)
+ *   portals   int count, int mapped (the first mapped are the
+ *             portalhashmap); per portal: name, type, destination name,
+ *             source and destination space, contour (or -2 for the
+ *             boundary of its source space), srcIndex, destIndex,
+ *             crossLength
+ *   links     per space: portals, neighbors, neighbor names
+ *   buildings int count; per building: name, transition spaces
+ *   hierarchies and landmarks: int count each, then their own records
+ *   paths     int count; per path: from and to portal, x, y, z of each
+ *             point (see PortalPathCache)
+ *   parts     one per building name of the spaces: per space of the
+ *             building, triangles, portal distances and graph (see
+ *             CSRGraph.write)
+ *   index     int count; per part: building name, long offset, long
+ *             length, long CRC32 of the part, its spaces
+ *   strings   int count; per string: int length, UTF-8 bytes
+ * Strings are written as their index in the string table, spaces and
+ * portals as their index in the file, and null as -1. Arrays are
+ * preceded by their length (-1 for null).
+ *
+ * Everything but the parts is small and read at once. The parts hold
+ * most of the bytes and are needed only by node searches and route
+ * geometry, so a lazy read (QUICK_START) leaves them in the mapped file
+ * and reads a building's part the first time one of its spaces needs
+ * it (see Part). Version 1 files, which kept this data with the spaces
+ * and links, are still read, all at once. Spaces of version 1 and 2
+ * files have no floor id; it is taken from their names
+ * (Space.floorFromName). Files before version 4 have no paths.
+ */
+public class Snapshot {
+
+  public static final long MAGIC = 0x3150414e53434f4cL; // "LOCSNAP1"
+  public static final int VERSION = 4;
+  private static final int HEADER_BYTES = 48;
+  private static final int HEADER_BYTES_V1 = 32;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private HashMap rooms = new HashMap();       // name -> Space
+  private HashMap portals = new HashMap();     // name -> Portal
+  private HashMap buildings = new HashMap();   // name -> Building
+  private HashMap hierarchies = new HashMap(); // route type -> ContractionHierarchy
+  private HashMap landmarks = new HashMap();   // route type -> Landmarks
+  private Vector parts = new Vector();         // Part, in file order
+  private Vector paths = new Vector();         // PortalPathCache.Path
+  private boolean lazy;                        // parts not all read yet
+
+  public HashMap getRooms() { return this.rooms; }
+  public HashMap getPortals() { return this.portals; }
+  public HashMap getBuildings() { return this.buildings; }
+  public HashMap getHierarchies() { return this.hierarchies; }
+  public HashMap getLandmarks() { return this.landmarks; }
+  public Vector getPaths() { return this.paths; }
+
+  /** True if the parts are read as the spaces need them. */
+  public boolean isLazy() { return this.lazy; }
+
+  /** Number of parts (buildings). */
+  public int getNumParts() { return this.parts.size(); }
+
+  /** Number of parts read so far; all of them unless lazy. */
+  public int getNumPartsLoaded() {
+    int n = 0;
+    for (int i = 0; i < this.parts.size(); i++) {
+      if (((Part) this.parts.get(i)).loaded) {
+	n++;
+      }
+    }
+    return n;
+  }
+
+  /** True if the file starts like a snapshot (of any version). */
+  public static boolean isSnapshot(String filename) {
+    try {
+      DataInputStream in = new DataInputStream(new FileInputStream(filename));
+      try {
+	return Long.reverseBytes(in.readLong()) == MAGIC;
+      } finally {
+	in.close();
+      }
+    } catch (IOException ioe) {
+      return false;
+    }
+  }
+
+  /**
+   * The version and checksum of a snapshot file, as a string that
+   * changes whenever the snapshot is written with other contents; null
+   * if the file is not a snapshot.
+   */
+  public static String getTag(String filename) {
+    try {
+      FileChannel channel = new FileInputStream(filename).getChannel();
+      try {
+	ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+	while (header.hasRemaining() && channel.read(header) >= 0) { }
+	header.flip();
+	if (header.remaining() < HEADER_BYTES_V1 || header.getLong() != MAGIC) {
+	  return null;
+	}
+	int version = header.getInt();
+	int checksumAt = (version == 1) ? HEADER_BYTES_V1 - 8 : HEADER_BYTES - 8;
+	if (header.limit() < checksumAt + 8) {
+	  return null;
+	}
+	return "snapshot " + version + " " + Long.toHexString(header.getLong(checksumAt));
+      } finally {
+	channel.close();
+      }
+    } catch (IOException ioe) {
+      return null;
+    }
+  }
+
+  /**
+   * Write a snapshot of the given maps and paths (PortalPathCache.Path,
+   * between portals of the map). The file is written next to filename
+   * and renamed over it once complete.
+   */
+  public static void write(String filename, HashMap rooms, HashMap portals,
+			   HashMap buildings, HashMap hierarchies,
+			   HashMap landmarks, Vector paths) throws IOException {
+    // every space and portal that is referred to gets an index: first
+    // the maps, then whatever the portals and spaces lead to
+    Vector spaceVec = new Vector(rooms.values());
+    Vector portalVec = new Vector(portals.values());
+    Out out = new Out();
+    for (int i = 0; i < spaceVec.size(); i++) {
+      out.spaceIds.put(spaceVec.get(i), Integer.valueOf(i));
+    }
+    for (int i = 0; i < portalVec.size(); i++) {
+      out.portalIds.put(portalVec.get(i), Integer.valueOf(i));
+    }
+    for (int i = 0; i < portalVec.size(); i++) {
+      Portal p = (Portal) portalVec.get(i);
+      for (int j = 0; j < p.spaces.length; j++) {
+	out.addSpace(spaceVec, p.spaces[j]);
+      }
+    }
+    for (int i = 0; i < spaceVec.size(); i++) {
+      Iterator adj = ((Space) spaceVec.get(i)).getPortals().iterator();
+      while (adj.hasNext()) {
+	Portal p = (Portal) adj.next();
+	if (!out.portalIds.containsKey(p)) {
+	  out.portalIds.put(p, Integer.valueOf(portalVec.size()));
+	  portalVec.add(p);
+	  for (int j = 0; j < p.spaces.length; j++) {
+	    out.addSpace(spaceVec, p.spaces[j]);
+	  }
+	}
+      }
+    }
+
+    File file = new File(filename);
+    File tmp = new File(filename + ".tmp");
+    out.open(tmp);
+    try {
+      out.writeInt(spaceVec.size());
+      out.writeInt(rooms.size());
+      for (int i = 0; i < spaceVec.size(); i++) {
+	writeSpace(out, (Space) spaceVec.get(i));
+      }
+      out.writeInt(portalVec.size());
+      out.writeInt(portals.size());
+      for (int i = 0; i < portalVec.size(); i++) {
+	writePortal(out, (Portal) portalVec.get(i));
+      }
+      for (int i = 0; i < spaceVec.size(); i++) {
+	writeLinks(out, (Space) spaceVec.get(i));
+      }
+
+      out.writeInt(buildings.size());
+      Iterator i = buildings.values().iterator();
+      while (i.hasNext()) {
+	Building b = (Building) i.next();
+	out.writeString(b.getName());
+	Vector transitions = b.getTransitionSpaces();
+	out.writeInt(transitions.size());
+	for (int j = 0; j < transitions.size(); j++) {
+	  out.writeSpace((Space) transitions.get(j));
+	}
+      }
+      out.writeInt(hierarchies.size());
+      i = hierarchies.values().iterator();
+      while (i.hasNext()) {
+	((ContractionHierarchy) i.next()).write(out);
+      }
+      out.writeInt(landmarks.size());
+      i = landmarks.values().iterator();
+      while (i.hasNext()) {
+	((Landmarks) i.next()).write(out);
+      }
+      out.writeInt(paths.size());
+      for (int j = 0; j < paths.size(); j++) {
+	PortalPathCache.Path p = (PortalPathCache.Path) paths.get(j);
+	out.writePortal(p.from);
+	out.writePortal(p.to);
+	out.writeDoubles(p.points);
+      }
+
+      // the parts, one per building in order of its first space
+      LinkedHashMap partSpaces = new LinkedHashMap(); // building name -> Vector of Integer
+      for (int j = 0; j < spaceVec.size(); j++) {
+	String bname = ((Space) spaceVec.get(j)).getBuildingName();
+	Vector ids = (Vector) partSpaces.get(bname);
+	if (ids == null) {
+	  ids = new Vector();
+	  partSpaces.put(bname, ids);
+	}
+	ids.add(Integer.valueOf(j));
+      }
+      long partsOffset = out.offset();
+      long[][] ranges = new long[partSpaces.size()][]; // offset, length, CRC32
+      i = partSpaces.values().iterator();
+      for (int j = 0; i.hasNext(); j++) {
+	Vector ids = (Vector) i.next();
+	long offset = out.offset();
+	out.beginPart();
+	for (int k = 0; k < ids.size(); k++) {
+	  writePart(out, (Space) spaceVec.get(((Integer) ids.get(k)).intValue()));
+	}
+	long checksum = out.endPart();
+	ranges[j] = new long[] { offset, out.offset() - offset, checksum };
+      }
+      long indexOffset = out.offset();
+      out.writeInt(partSpaces.size());
+      i = partSpaces.entrySet().iterator();
+      for (int j = 0; i.hasNext(); j++) {
+	Map.Entry e = (Map.Entry) i.next();
+	Vector ids = (Vector) e.getValue();
+	out.writeString((String) e.getKey());
+	out.writeLong(ranges[j][0]);
+	out.writeLong(ranges[j][1]);
+	out.writeLong(ranges[j][2]);
+	int[] a = new int[ids.size()];
+	for (int k = 0; k < a.length; k++) {
+	  a[k] = ((Integer) ids.get(k)).intValue();
+	}
+	out.writeInts(a);
+      }
+      out.finish(partsOffset, indexOffset);
+    } finally {
+      out.close();
+    }
+    if ((file.exists() && !file.delete()) || !tmp.renameTo(file)) {
+      throw new IOException("Cannot rename " + tmp + " to " + file);
+    }
+  }
+
+  private static void writeSpace(Out out, Space s) throws IOException {
+    out.writeString(s.getName());
+    out.writeString(s.getType());
+    out.writeString(s.getTag());
+    out.writeString(s.getFloorName());
+    out.writeDouble(s.getHeight());
+    out.writeBoolean(s.getConvexity());
+    out.writeDoubles(s.getBoundingBox());
+    writePolyline(out, s.getBoundaries());
+  }
+
+  private static void writePart(Out out, Space s) throws IOException {
+    out.writeDoubles(s.getTriangles());
+    out.writeFloats(s.getStoredPortalDistances());
+    CSRGraph.write(out, s.getCSR());
+  }
+
+  private static void writePortal(Out out, Portal p) throws IOException {
+    out.writeString(p.name);
+    out.writeString(p.type);
+    out.writeString(p.spacenames[1]);
+    out.writeSpace(p.spaces[0]);
+    out.writeSpace(p.spaces[1]);
+    if (p.contour != null && p.contour == p.spaces[0].getBoundaries()) {
+      out.writeInt(-2); // vertical portals share their source's boundary
+    } else {
+      writePolyline(out, p.contour);
+    }
+    out.writeInt(p.srcIndex);
+    out.writeInt(p.destIndex);
+    out.writeFloat(p.crossLength);
+  }
+
+  private static void writeLinks(Out out, Space s) throws IOException {
+    Vector adj = new Vector(s.getPortals());
+    out.writeInt(adj.size());
+    for (int i = 0; i < adj.size(); i++) {
+      out.writePortal((Portal) adj.get(i));
+    }
+    Vector neighbors = s.getNeighbors();
+    out.writeInt(neighbors == null ? -1 : neighbors.size());
+    for (int i = 0; neighbors != null && i < neighbors.size(); i++) {
+      out.writeSpace((Space) neighbors.get(i));
+    }
+    Vector names = s.getNeighborNames();
+    out.writeInt(names == null ? -1 : names.size());
+    for (int i = 0; names != null && i < names.size(); i++) {
+      out.writeString((String) names.get(i));
+    }
+  }
+
+  // a polyline as its number of points and x, y and z blocks; -1 for null
+  private static void writePolyline(Out out, Polyline line) throws IOException {
+    if (line == null) {
+      out.writeInt(-1);
+      return;
+    }
+    Position[] points = line.getPoints();
+    double[] x = new double[points.length];
+    double[] y = new double[points.length];
+    double[] z = new double[points.length];
+    for (int i = 0; i < points.length; i++) {
+      x[i] = points[i].x;
+      y[i] = points[i].y;
+      z[i] = points[i].z;
+    }
+    out.writeInt(points.length);
+    out.writeDoubleBlock(x);
+    out.writeDoubleBlock(y);
+    out.writeDoubleBlock(z);
+  }
+
+  /**
+   * Read a snapshot written by write(), all at once. Throws an
+   * IOException if the file is not a snapshot of a known version or
+   * fails its checksum.
+   */
+  public static Snapshot read(String filename) throws IOException {
+    return read(filename, false, null);
+  }
+
+  /**
+   * Read a snapshot written by write(). If lazy, the parts are left in
+   * the mapped file and each is read when one of its spaces first needs
+   * it, counting the loads in perf (if not null; see Part.load).
+   */
+  public static Snapshot read(String filename, boolean lazy, PerfStats perf)
+    throws IOException {
+    In in = new In(filename);
+    Snapshot snapshot = new Snapshot();
+
+    Space[] spaces = new Space[in.readInt()];
+    int roomCount = in.readInt();
+    in.spaces = spaces;
+    for (int i = 0; i < spaces.length; i++) {
+      spaces[i] = readSpace(in);
+      if (i < roomCount) {
+	snapshot.rooms.put(spaces[i].getName(), spaces[i]);
+      }
+    }
+    Portal[] portals = new Portal[in.readInt()];
+    int portalCount = in.readInt();
+    in.portals = portals;
+    for (int i = 0; i < portals.length; i++) {
+      portals[i] = readPortal(in);
+      if (i < portalCount) {
+	snapshot.portals.put(portals[i].name, portals[i]);
+      }
+    }
+    for (int i = 0; i < spaces.length; i++) {
+      readLinks(in, spaces[i]);
+    }
+
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      Building b = new Building(in.readString());
+      int transitions = in.readInt();
+      for (int j = 0; j < transitions; j++) {
+	b.addTransitionSpace(in.readSpace());
+      }
+      snapshot.buildings.put(b.getName(), b);
+    }
+    count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      ContractionHierarchy ch = ContractionHierarchy.read(in);
+      snapshot.hierarchies.put(ch.getRouteType(), ch);
+    }
+    count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      Landmarks lm = Landmarks.read(in);
+      snapshot.landmarks.put(lm.getRouteType(), lm);
+    }
+    count = (in.version > 3) ? in.readInt() : 0;
+    for (int i = 0; i < count; i++) {
+      Portal from = in.readPortal();
+      Portal to = in.readPortal();
+      snapshot.paths.add(new PortalPathCache.Path(from, to, in.readDoubles()));
+    }
+
+    if (in.version > 1) {
+      in.seek(in.indexOffset);
+      count = in.readInt();
+      for (int i = 0; i < count; i++) {
+	String building = in.readString();
+	int offset = (int) in.readLong();
+	int length = (int) in.readLong();
+	long checksum = in.readLong();
+	int[] ids = in.readInts();
+	Space[] partSpaces = new Space[ids.length];
+	for (int j = 0; j < ids.length; j++) {
+	  partSpaces[j] = spaces[ids[j]];
+	}
+	snapshot.parts.add(new Part(in, building, offset, length, checksum,
+				    partSpaces, lazy ? perf : null));
+      }
+      for (int i = 0; i < snapshot.parts.size(); i++) {
+	Part part = (Part) snapshot.parts.get(i);
+	if (lazy) {
+	  part.attach();
+	} else {
+	  part.load();
+	}
+      }
+      snapshot.lazy = lazy && count > 0;
+      if (perf != null) {
+	perf.set("snapshot.parts", count);
+      }
+    }
+    if (!snapshot.lazy) {
+      in.close();
+    }
+    return snapshot;
+  }
+
+  private static Space readSpace(In in) throws IOException {
+    String name = in.readString();
+    String type = in.readString();
+    String tag = in.readString();
+    String floor = (in.version > 2) ? in.readString() : Space.floorFromName(name);
+    double height = in.readDouble();
+    boolean convex = in.readBoolean();
+    double[] boundingBox = in.readDoubles();
+    Polyline boundaries = readPolyline(in);
+    double[] triangles = (in.version == 1) ? in.readDoubles() : null;
+    Space s = new Space(name, type, tag, boundaries, boundingBox, convex,
+			triangles, height);
+    s.setFloor(floor);
+    return s;
+  }
+
+  private static Portal readPortal(In in) throws IOException {
+    String name = in.readString();
+    String type = in.readString();
+    String destName = in.readString();
+    Space src = in.readSpace();
+    Space dest = in.readSpace();
+    int points = in.peekInt();
+    Polyline contour;
+    if (points == -2) {
+      in.readInt();
+      contour = src.getBoundaries();
+    } else {
+      contour = readPolyline(in);
+    }
+    Portal p = new Portal(name, type, src, destName, contour);
+    p.setDestSpace(dest);
+    p.srcIndex = in.readInt();
+    p.destIndex = in.readInt();
+    p.crossLength = in.readFloat();
+    return p;
+  }
+
+  private static void readLinks(In in, Space s) throws IOException {
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      s.addPortal(in.readPortal());
+    }
+    count = in.readInt();
+    if (count >= 0) {
+      Vector neighbors = new Vector(count);
+      for (int i = 0; i < count; i++) {
+	neighbors.add(in.readSpace());
+      }
+      s.setNeighbors(neighbors);
+    }
+    count = in.readInt();
+    if (count >= 0) {
+      Vector names = new Vector(count);
+      for (int i = 0; i < count; i++) {
+	names.add(in.readString());
+      }
+      s.setNeighborNames(names);
+    }
+    if (in.version == 1) {
+      s.setPortalDistances(in.readFloats());
+      s.setCSR(CSRGraph.read(in));
+    }
+  }
+
+  private static void readPart(In in, Space s) {
+    s.setTriangles(in.readDoubles());
+    s.setPortalDistances(in.readFloats());
+    s.setCSR(CSRGraph.read(in));
+  }
+
+  private static Polyline readPolyline(In in) throws IOException {
+    int n = in.readInt();
+    if (n < 0) {
+      return null;
+    }
+    double[] x = in.readDoubleBlock(n);
+    double[] y = in.readDoubleBlock(n);
+    double[] z = in.readDoubleBlock(n);
+    Polyline line = new Polyline();
+    for (int i = 0; i < n; i++) {
+      line.addPoint(new Position(x[i], y[i], z[i]));
+    }
+    return line;
+  }
+
+  /**
+   * The triangles, portal distances and graphs of the spaces of one
+   * building: a byte range of the snapshot with its own CRC32. Once
+   * attached, a space reads its part the first time it needs one of
+   * these (see Space.getCSR), and the part is read into all of its
+   * spaces together.
+   */
+  static class Part {
+    private In in;
+    private String building;
+    private int offset, length;
+    private long checksum;
+    private Space[] spaces;
+    private PerfStats perf;
+    private volatile boolean loaded;
+
+    Part(In in, String building, int offset, int length, long checksum,
+	 Space[] spaces, PerfStats perf) {
+      this.in = in;
+      this.building = building;
+      this.offset = offset;
+      this.length = length;
+      this.checksum = checksum;
+      this.spaces = spaces;
+      this.perf = perf;
+    }
+
+    void attach() {
+      for (int i = 0; i < this.spaces.length; i++) {
+	this.spaces[i].setPart(this);
+      }
+    }
+
+    /**
+     * Read the part into its spaces, if not read yet. The time taken
+     * goes to the perf counters as snapshot.part.<building>.load.us,
+     * with the spaces and bytes read, and is added to the totals
+     * snapshot.parts.loaded, snapshot.parts.loaded.spaces and
+     * snapshot.parts.load.us. Throws an IllegalStateException if the
+     * part fails its checksum.
+     */
+    synchronized void load() {
+      if (this.loaded) {
+	return;
+      }
+      long start = System.nanoTime();
+      In part = new In(this.in, this.offset);
+      CRC32 crc = new CRC32();
+      crc.update(part.bytes(this.length));
+      if (crc.getValue() != this.checksum) {
+	throw new IllegalStateException(this.in.filename + " is damaged (checksum mismatch in " +
+					this.building + ")");
+      }
+      for (int i = 0; i < this.spaces.length; i++) {
+	readPart(part, this.spaces[i]);
+      }
+      for (int i = 0; i < this.spaces.length; i++) {
+	this.spaces[i].setPart(null);
+      }
+      this.loaded = true;
+      this.in = null;
+
+      if (this.perf != null) {
+	long us = (System.nanoTime() - start) / 1000;
+	String prefix = "snapshot.part." + this.building;
+	this.perf.set(prefix + ".load.us", us);
+	this.perf.set(prefix + ".spaces", this.spaces.length);
+	this.perf.set(prefix + ".bytes", this.length);
+	this.perf.increment("snapshot.parts.loaded");
+	this.perf.add("snapshot.parts.loaded.spaces", this.spaces.length);
+	this.perf.add("snapshot.parts.load.us", us);
+      }
+    }
+  }
+
+  /**
+   * Writing end of a snapshot: a buffer over a file channel, with the
+   * string, space and portal indices.
+   */
+  static class Out {
+    private FileChannel channel;
+    private ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+    private CRC32 crc = new CRC32();       // of everything but the parts
+    private CRC32 partCrc;                 // of the part being written
+    private long position = HEADER_BYTES;  // file offset of buf[0]
+    private HashMap stringIds = new HashMap();  // String -> Integer
+    private Vector strings = new Vector();
+    private IdentityHashMap spaceIds = new IdentityHashMap();  // Space -> Integer
+    private IdentityHashMap portalIds = new IdentityHashMap(); // Portal -> Integer
+
+    void open(File file) throws IOException {
+      this.channel = new RandomAccessFile(file, "rw").getChannel();
+      this.channel.truncate(0);
+      this.channel.position(HEADER_BYTES);
+    }
+
+    void addSpace(Vector spaceVec, Space s) {
+      if (s != null && !this.spaceIds.containsKey(s)) {
+	this.spaceIds.put(s, Integer.valueOf(spaceVec.size()));
+	spaceVec.add(s);
+      }
+    }
+
+    private void ensure(int bytes) throws IOException {
+      if (this.buf.remaining() < bytes) {
+	this.flush();
+      }
+    }
+
+    private void flush() throws IOException {
+      this.buf.flip();
+      ((this.partCrc != null) ? this.partCrc : this.crc).update(this.buf.duplicate());
+      this.position += this.buf.remaining();
+      while (this.buf.hasRemaining()) {
+	this.channel.write(this.buf);
+      }
+      this.buf.clear();
+    }
+
+    /** File offset of the next byte written. */
+    long offset() {
+      return this.position + this.buf.position();
+    }
+
+    // a part has a checksum of its own, and is left out of the file's
+    void beginPart() throws IOException {
+      this.flush();
+      this.partCrc = new CRC32();
+    }
+
+    long endPart() throws IOException {
+      this.flush();
+      long checksum = this.partCrc.getValue();
+      this.partCrc = null;
+      return checksum;
+    }
+
+    void writeInt(int v) throws IOException { ensure(4); this.buf.putInt(v); }
+    void writeLong(long v) throws IOException { ensure(8); this.buf.putLong(v); }
+    void writeFloat(float v) throws IOException { ensure(4); this.buf.putFloat(v); }
+    void writeDouble(double v) throws IOException { ensure(8); this.buf.putDouble(v); }
+    void writeBoolean(boolean v) throws IOException { ensure(1); this.buf.put((byte) (v ? 1 : 0)); }
+
+    void writeString(String s) throws IOException {
+      if (s == null) {
+	writeInt(-1);
+	return;
+      }
+      Integer id = (Integer) this.stringIds.get(s);
+      if (id == null) {
+	id = Integer.valueOf(this.strings.size());
+	this.stringIds.put(s, id);
+	this.strings.add(s);
+      }
+      writeInt(id.intValue());
+    }
+
+    void writeStrings(String[] a) throws IOException {
+      writeInt(a == null ? -1 : a.length);
+      for (int i = 0; a != null && i < a.length; i++) {
+	writeString(a[i]);
+      }
+    }
+
+    void writeSpace(Space s) throws IOException {
+      writeInt(s == null ? -1 : indexOf(this.spaceIds, s));
+    }
+
+    void writePortal(Portal p) throws IOException {
+      writeInt(p == null ? -1 : indexOf(this.portalIds, p));
+    }
+
+    private static int indexOf(IdentityHashMap ids, Object o) {
+      Integer id = (Integer) ids.get(o);
+      if (id == null) {
+	throw new IllegalStateException("Not in the snapshot: " + o);
+      }
+      return id.intValue();
+    }
+
+    // arrays with their length in front (-1 for null)
+
+    void writeInts(int[] a) throws IOException {
+      writeInt(a == null ? -1 : a.length);
+      if (a != null) writeIntBlock(a);
+    }
+
+    void writeFloats(float[] a) throws IOException {
+      writeInt(a == null ? -1 : a.length);
+      if (a != null) writeFloatBlock(a);
+    }
+
+    void writeDoubles(double[] a) throws IOException {
+      writeInt(a == null ? -1 : a.length);
+      if (a != null) writeDoubleBlock(a);
+    }
+
+    // arrays whose length is known from elsewhere
+
+    void writeIntBlock(int[] a) throws IOException {
+      for (int off = 0; off < a.length; ) {
+	ensure(4);
+	int n = Math.min(a.length - off, this.buf.remaining() / 4);
+	this.buf.asIntBuffer().put(a, off, n);
+	this.buf.position(this.buf.position() + 4 * n);
+	off += n;
+      }
+    }
+
+    void writeFloatBlock(float[] a) throws IOException {
+      for (int off = 0; off < a.length; ) {
+	ensure(4);
+	int n = Math.min(a.length - off, this.buf.remaining() / 4);
+	this.buf.asFloatBuffer().put(a, off, n);
+	this.buf.position(this.buf.position() + 4 * n);
+	off += n;
+      }
+    }
+
+    void writeDoubleBlock(double[] a) throws IOException {
+      for (int off = 0; off < a.length; ) {
+	ensure(8);
+	int n = Math.min(a.length - off, this.buf.remaining() / 8);
+	this.buf.asDoubleBuffer().put(a, off, n);
+	this.buf.position(this.buf.position() + 8 * n);
+	off += n;
+      }
+    }
+
+    // writes the string table and then the header
+    void finish(long partsOffset, long indexOffset) throws IOException {
+      this.flush();
+      long stringsOffset = this.position;
+      writeInt(this.strings.size());
+      for (int i = 0; i < this.strings.size(); i++) {
+	byte[] bytes = ((String) this.strings.get(i)).getBytes(UTF8);
+	writeInt(bytes.length);
+	for (int off = 0; off < bytes.length; ) {
+	  ensure(1);
+	  int n = Math.min(bytes.length - off, this.buf.remaining());
+	  this.buf.put(bytes, off, n);
+	  off += n;
+	}
+      }
+      this.flush();
+
+      ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      header.putLong(MAGIC);
+      header.putInt(VERSION);
+      header.putInt(0);
+      header.putLong(stringsOffset);
+      header.putLong(partsOffset);
+      header.putLong(indexOffset);
+      header.putLong(this.crc.getValue());
+      header.flip();
+      while (header.hasRemaining()) {
+	this.channel.write(header, header.position());
+      }
+      this.channel.force(false);
+    }
+
+    void close() throws IOException {
+      this.channel.close();
+    }
+  }
+
+  /**
+   * Reading end of a snapshot: the file mapped into memory, with the
+   * string table and the spaces and portals read so far.
+   */
+  static class In {
+    private String filename;
+    private ByteBuffer buf;
+    private String[] strings;
+    int version;
+    long partsOffset, indexOffset;
+    Space[] spaces;
+    Portal[] portals;
+
+    In(String filename) throws IOException {
+      this.filename = filename;
+      FileChannel channel = new FileInputStream(filename).getChannel();
+      try {
+	this.buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      } finally {
+	channel.close();
+      }
+      this.buf.order(ByteOrder.LITTLE_ENDIAN);
+      if (this.buf.remaining() < HEADER_BYTES || this.buf.getLong() != MAGIC) {
+	throw new IOException(filename + " is not a snapshot");
+      }
+      this.version = this.buf.getInt();
+      if (this.version < 1 || this.version > VERSION) {
+	throw new IOException(filename + " is a version " + this.version +
+			      " snapshot, expected " + VERSION);
+      }
+      this.buf.getInt(); // flags
+      long stringsOffset = this.buf.getLong();
+      int headerBytes = HEADER_BYTES_V1;
+      if (this.version > 1) {
+	this.partsOffset = this.buf.getLong();
+	this.indexOffset = this.buf.getLong();
+	headerBytes = HEADER_BYTES;
+      }
+      long checksum = this.buf.getLong();
+      CRC32 crc = new CRC32();
+      ByteBuffer body = this.buf.duplicate();
+      body.position(headerBytes);
+      if (this.version > 1) {
+	body.limit((int) this.partsOffset);
+	crc.update(body);
+	body.limit(body.capacity());
+	body.position((int) this.indexOffset);
+      }
+      crc.update(body);
+      if (crc.getValue() != checksum) {
+	throw new IOException(filename + " is damaged (checksum mismatch)");
+      }
+
+      this.buf.position((int) stringsOffset);
+      this.strings = new String[this.buf.getInt()];
+      for (int i = 0; i < this.strings.length; i++) {
+	byte[] bytes = new byte[this.buf.getInt()];
+	this.buf.get(bytes);
+	this.strings[i] = new String(bytes, UTF8).intern();
+      }
+      this.buf.position(headerBytes);
+    }
+
+    // a reader of the same file at another position, for a Part
+    In(In from, int position) {
+      this.filename = from.filename;
+      this.buf = from.buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+      this.buf.position(position);
+      this.strings = from.strings;
+      this.version = from.version;
+      this.spaces = from.spaces;
+      this.portals = from.portals;
+    }
+
+    void seek(long position) { this.buf.position((int) position); }
+
+    // the next length bytes, without moving past them
+    ByteBuffer bytes(int length) {
+      ByteBuffer b = this.buf.duplicate();
+      b.limit(b.position() + length);
+      return b;
+    }
+
+    int readInt() { return this.buf.getInt(); }
+    int peekInt() { return this.buf.getInt(this.buf.position()); }
+    long readLong() { return this.buf.getLong(); }
+    float readFloat() { return this.buf.getFloat(); }
+    double readDouble() { return this.buf.getDouble(); }
+    boolean readBoolean() { return this.buf.get() != 0; }
+
+    String readString() {
+      int id = readInt();
+      return (id < 0) ? null : this.strings[id];
+    }
+
+    String[] readStrings() {
+      int n = readInt();
+      if (n < 0) return null;
+      String[] a = new String[n];
+      for (int i = 0; i < n; i++) {
+	a[i] = readString();
+      }
+      return a;
+    }
+
+    Space readSpace() {
+      int id = readInt();
+      return (id < 0) ? null : this.spaces[id];
+    }
+
+    Portal readPortal() {
+      int id = readInt();
+      return (id < 0) ? null : this.portals[id];
+    }
+
+    int[] readInts() {
+      int n = readInt();
+      return (n < 0) ? null : readIntBlock(n);
+    }
+
+    float[] readFloats() {
+      int n = readInt();
+      return (n < 0) ? null : readFloatBlock(n);
+    }
+
+    double[] readDoubles() {
+      int n = readInt();
+      return (n < 0) ? null : readDoubleBlock(n);
+    }
+
+    int[] readIntBlock(int n) {
+      int[] a = new int[n];
+      this.buf.asIntBuffer().get(a);
+      this.buf.position(this.buf.position() + 4 * n);
+      return a;
+    }
+
+    float[] readFloatBlock(int n) {
+      float[] a = new float[n];
+      this.buf.asFloatBuffer().get(a);
+      this.buf.position(this.buf.position() + 4 * n);
+      return a;
+    }
+
+    double[] readDoubleBlock(int n) {
+      double[] a = new double[n];
+      this.buf.asDoubleBuffer().get(a);
+      this.buf.position(this.buf.position() + 8 * n);
+      return a;
+    }
+
+    void close() {
+      this.buf = null;
+    }
+  }
+}
@@ -17,12 +17,15 @@ public class Space implements Serializable {
   public int count = 0;
   private String name;           // unique space name
   private String buildingname;   // building name
+  private String floor;          // floor id, from the floor file name (e.g. 1M of 10-1M.xml)
+  private int floorNumber = -1;  // the number in floor, see setFloor
   private String type;
   private Polyline boundaries;   // vector of points of boundary
   private double[] boundingBox;  // bounding box of the space
   private boolean convex;        // true iff convex
   private String tag;            // tag for the space
   private double height;         // height (z)
+  private int id = -1;           // dense index used by the search engines
 
   // note that some member variables are marked transient so that
   // serialization doesn't cause memory loops
@@ -30,8 +33,15 @@ public class Space implements Serializable {
   private transient HashMap bestPortals; // set of Space.Space->portal[2]
   private transient Vector neighbors; // vector of Spaces
   private Graph graph; // stores paths connecting all portal pairs
+  private volatile float[] portalDistances; // portal i -> portal j, see getPortalDistances()
+  private transient CSRGraph csr;  // graph in array form, see getCSR()
   private Vector neighborNames; // vector of Strings
   private Vector adjPortals; // Portals connected to this space
+  private transient Vector inPortals; // Portals leading into this space
+  private transient Position center;  // cached result of getCenter()
+  private transient volatile Snapshot.Part part; // triangles, distances and graph, if not read yet
+  private transient volatile double[] outline; // boundary x, y, z in turn, then its max x; see isInside2D
+  private transient volatile double[] sharedEdges; // see getSharedEdges()
   
   // cache a copy of the space's triangulation when instantiated
   private double[] triangles;      // double[] (convenience)
@@ -86,6 +96,71 @@ public class Space implements Serializable {
    */ 
   public Space() { }
 
+  /*
+   * type is always one of the TYPE_ strings; share those again after
+   * loading, as a space read from a floor file does. The id was given
+   * by the server that wrote the space; this one numbers it again.
+   */
+  private void readObject(ObjectInputStream in)
+    throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    this.id = -1;
+    if (this.type != null) {
+      this.type = this.type.intern();
+    }
+    if (this.floor == null && this.name != null) {
+      this.setFloor(floorFromName(this.name));
+    }
+  }
+
+  // a space sent over RMI goes with all of its fields
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    this.materialize();
+    out.defaultWriteObject();
+  }
+
+  /**
+   * Read the triangles, portal distances and graph of this space (and
+   * the rest of its building) from a lazily read Snapshot, if they have
+   * not been read yet.
+   */
+  private void materialize() {
+    Snapshot.Part p = this.part;
+    if (p != null) {
+      p.load();
+    }
+  }
+
+  // true once the part of a lazily read Snapshot is read into this space
+  boolean isMaterialized() {
+    return this.part == null;
+  }
+
+  void setPart(Snapshot.Part part) {
+    this.part = part;
+  }
+
+  /**
+   * Constructor for Snapshot: a space with the fields it was written
+   * with, and no portals yet.
+   */
+  Space(String name, String type, String tag, Polyline boundaries,
+	double[] boundingBox, boolean convex, double[] triangles,
+	double height) {
+    this.name          = name;
+    this.type          = type;
+    this.tag           = tag;
+    this.boundaries    = boundaries;
+    this.boundingBox   = boundingBox;
+    this.convex        = convex;
+    this.triangles     = triangles;
+    this.adjPortals    = new Vector();
+    this.portalPaths   = new HashMap();
+    this.bestPortals   = new HashMap();
+    this.height        = height;
+    this.buildingname  = this.computeBuildingName();
+  }
+
   public Space(String name,
 	       String type,
 	       Polyline boundaries, 
@@ -115,9 +190,14 @@ public class Space implements Serializable {
    */ 
   public double[] getTriangles() {
       //  public Vector getTriangles() {
+    this.materialize();
     return this.triangles;
   }
 
+  void setTriangles(double[] triangles) {
+    this.triangles = triangles;
+  }
+
   /**
    * Return the triangulated representation as a flat array of doubles
    */ 
@@ -135,6 +215,7 @@ public class Space implements Serializable {
 	  answer[i*6+5] = ((Triangle)this.triangles.get(i)).p3.y;
       }
       return answer; */
+      this.materialize();
       return this.triangles;
   }
 
@@ -145,6 +226,19 @@ public class Space implements Serializable {
     return this.name;
   }
 
+  /**
+   * Return the dense integer id of this space, assigned by the
+   * JavaLocationServer once all spaces are loaded. Used to index the
+   * per-query arrays of the search engines.
+   */
+  public int getId() {
+    return this.id;
+  }
+
+  public void setId(int id) {
+    this.id = id;
+  }
+
   /**
    * Return the building name of this building.
    */ 
@@ -198,26 +292,79 @@ public class Space implements Serializable {
   }
 
   /**
-   * Return the floor number of the space. Buildings follow the
-   * convention: BUILDINGNAME#FLOOR#ROOM#TYPE, so we tokenize.
+   * Forgets the portals (and so the neighbors) of this space, so that
+   * they can be linked again after the floor files changed.
+   */
+  public void clearPortals() {
+    this.adjPortals.clear();
+    this.neighbors = null;
+  }
+
+  /**
+   * Record the floor of the space: the floor id of the floor file it
+   * was read from, e.g. 1M for 10-1M.xml or G9 for 32-G9.xml. Its
+   * number, the first run of digits in it (1 and 9 here), is parsed
+   * once, here; a floor id without digits has number -1.
+   */
+  public void setFloor(String floor) {
+    int number = -1;
+    int start = 0;
+    while (floor != null && start < floor.length() &&
+	   !Character.isDigit(floor.charAt(start))) {
+      start++;
+    }
+    int end = start;
+    while (floor != null && end < floor.length() && end - start < 9 &&
+	   Character.isDigit(floor.charAt(end))) {
+      end++;
+    }
+    if (end > start) {
+      number = Integer.parseInt(floor.substring(start, end));
+    }
+    this.floorNumber = number;
+    this.floor = floor;
+  }
+
+  /**
+   * The floor id of a space read before floors were recorded, from the
+   * naming convention <Bldng>-<Floor><Room> with a two digit room
+   * number: the leading digits of the room part without the last two
+   * (18 for 54-1800CA), or null if it has fewer than three.
+   */
+  public static String floorFromName(String name) {
+    int dash = name.indexOf('-');
+    int end = dash + 1;
+    while (end < name.length() && Character.isDigit(name.charAt(end))) {
+      end++;
+    }
+    if (end - (dash + 1) <= 2) {
+      return null;
+    }
+    return name.substring(dash + 1, end - 2);
+  }
+
+  /**
+   * Return the floor number of the space (see setFloor), or -1 if it
+   * is not known.
    */ 
   public int getFloorNumber() {
-    StringTokenizer st = new StringTokenizer(this.name, "#");
-    st.nextToken();        // discard building name
-    return Integer.parseInt(st.nextToken()); // convert to an int???
+    return this.floorNumber;
   }
 
+  /**
+   * Return the floor id of the space (see setFloor), or null if it is
+   * not known.
+   */
   public String getFloorName() {
-    StringTokenizer st = new StringTokenizer(this.name, "#");
-    st.nextToken();        // discard building name
-    return st.nextToken();
+    return this.floor;
   }
 
+  /**
+   * Return the room part of the space's name, after the building:
+   * 1800CA for 54-1800CA.
+   */
   public String getRoomName() {
-    StringTokenizer st = new StringTokenizer(this.name, "#");
-    st.nextToken();        // discard building name
-    st.nextToken();        // discard floor name
-    return st.nextToken();
+    return this.name.substring(this.name.indexOf('-') + 1);
   }
 
   /**
@@ -242,7 +389,76 @@ public class Space implements Serializable {
    * Ignore z values
    */
   public boolean isInside2D(Position position) {
-      return this.inside(position, this.getBoundaries());
+    double[] o = this.outline;
+    if (o == null) {
+      Position[] points = this.getBoundaries().getPoints();
+      o = new double[3 * points.length + 1];
+      double maxX = -Double.MAX_VALUE;
+      for (int j = 0; j < points.length; j++) {
+	o[3 * j] = points[j].x;
+	o[3 * j + 1] = points[j].y;
+	o[3 * j + 2] = points[j].z;
+	if (points[j].x > maxX)
+	  maxX = points[j].x;
+      }
+      o[3 * points.length] = maxX;
+      this.outline = o;
+    }
+    return inside(position.x, position.y, position.z, o);
+  }
+
+  /**
+   * inside(vertex, wire) over an outline as kept by isInside2D, with the
+   * same arithmetic, so that the answer is the same; point location
+   * (SpaceIndex) runs this for every candidate space, without creating
+   * any Positions.
+   */
+  private static boolean inside(double vx, double vy, double vz, double[] o) {
+    int n = (o.length - 1) / 3;
+    double ox = o[3 * n];  // the outside position is (maxX, 0, 0)
+    int intersectionCount = 0;
+    for (int k = 0; k < n; k++) {
+      int b = 3 * k;
+      int c = 3 * ((k + 1) % n);
+      if (intersect(vx, vy, vz, ox, o[b], o[b + 1], o[b + 2], o[c], o[c + 1], o[c + 2]))
+	intersectionCount++;
+    }
+    return (intersectionCount % 2) == 1;
+  }
+
+  // Position.equals
+  private static boolean same(double x1, double y1, double z1,
+			      double x2, double y2, double z2) {
+    return Math.abs(x1 - x2) < 0.1 && Math.abs(y1 - y2) < 0.1 &&
+      Math.abs(z1 - z2) < 0.1;
+  }
+
+  private static int turn(double x1, double y1, double x2, double y2,
+			  double x3, double y3) {
+    if (x1 * (y2 - y3) + 
+	x2 * (y3 - y1) + 
+	x3 * (y1 - y2)
+	> 0)
+      return 1;
+    else
+      return -1;
+  }
+
+  // intersect(a1, a2, b1, b2) for a1 = (vx, vy, vz) and a2 = (ox, 0, 0)
+  private static boolean intersect(double vx, double vy, double vz, double ox,
+				   double b1x, double b1y, double b1z,
+				   double b2x, double b2y, double b2z) {
+    if (same(vx, vy, vz, b1x, b1y, b1z) || same(vx, vy, vz, b2x, b2y, b2z) ||
+	same(ox, 0.0, 0.0, b1x, b1y, b1z) || same(ox, 0.0, 0.0, b2x, b2y, b2z))
+      return false;
+    else if (vx - ox == 0 && b1x - b2x == 0)
+      return false;
+    else if (vy - 0.0 == 0 && b1y - b2y == 0)
+      return false;
+    else if ((vy - 0.0)/(vx - ox) == (b1y - b2y)/(b1x - b2x))
+      return false;
+    else return (turn(vx, vy, ox, 0.0, b1x, b1y) == -turn(vx, vy, ox, 0.0, b2x, b2y) && 
+		 turn(b1x, b1y, b2x, b2y, vx, vy) == -turn(b1x, b1y, b2x, b2y, ox, 0.0));
   }
 
   /** helper function for intersect and isInside() */
@@ -312,6 +528,23 @@ public class Space implements Serializable {
     return this.adjPortals;
   }
 
+  /**
+   * Return the portals whose destination is this space, i.e. the
+   * reverse adjacency used by backward searches. Portals are only
+   * valid from A to B, so this is built explicitly by the
+   * JavaLocationServer once all portals are linked.
+   */
+  public Collection getIncomingPortals() {
+    if (this.inPortals == null) {
+      this.inPortals = new Vector();
+    }
+    return this.inPortals;
+  }
+
+  public void addIncomingPortal(Portal p) {
+    this.getIncomingPortals().add(p);
+  }
+
   /**
    * Return the Polyline boundary of this space
    */ 
@@ -386,6 +619,9 @@ public class Space implements Serializable {
    * of the space's bounding box.
    */ 
   public Position getCenter() {
+    if (this.center != null) {
+      return this.center;
+    }
     // iterate over the positions in this space, and find a common position
     Position[] pts = this.getBoundaries().getPoints();
     double x = 0; double y = 0; double z = 0; 
@@ -397,8 +633,8 @@ public class Space implements Serializable {
     x = x / pts.length;
     y = y / pts.length;
     z = z / pts.length;
-    Position center = new Position(x, y, z);
-    return center;
+    this.center = new Position(x, y, z);
+    return this.center;
   }
 
   /**
@@ -537,6 +773,10 @@ public class Space implements Serializable {
   public Vector getNeighborNames() {
     return this.neighborNames;
   }
+
+  void setNeighborNames(Vector names) {
+    this.neighborNames = names;
+  }
   
   public double getHeight() {
     return this.height;
@@ -548,12 +788,131 @@ public class Space implements Serializable {
 
   public void buildGraph() {
     this.graph = new Graph(this);
+    this.csr = null;
   }
 
   public Graph getGraph() {
     return this.graph;
   }
 
+  /**
+   * Return the graph of this space in array form (converted from
+   * getGraph() on first use), or null if the space has no graph.
+   */
+  public CSRGraph getCSR() {
+    this.materialize();
+    if (this.csr == null && this.graph != null) {
+      this.csr = this.graph.toCSR();
+    }
+    return this.csr;
+  }
+
+  /**
+   * Return the triangle edges the interior nodes of getCSR() lie on, as
+   * x, y of both ends for each node (see Graph.getSharedEdges), worked
+   * out from the triangles on first use.
+   */
+  public double[] getSharedEdges() {
+    double[] e = this.sharedEdges;
+    if (e == null) {
+      e = Graph.getSharedEdges(this);
+      this.sharedEdges = e;
+    }
+    return e;
+  }
+
+  /** Set the array form of the graph, as read from a Snapshot. */
+  void setCSR(CSRGraph csr) {
+    this.csr = csr;
+  }
+
+  /**
+   * Compute the shortest distance through this space's graph between
+   * every pair of its portals, and link each portal to the portal node
+   * it arrives at in its destination space. Must run after buildGraph()
+   * has been called on all spaces. The matrix and the links are worked
+   * out first and only then set, under the space's lock, so that a
+   * search running at the same time never sees them half done.
+   */
+  public void computePortalDistances() {
+    int k = this.adjPortals.size();
+    float[] distances = new float[k * k];
+    Arrays.fill(distances, Float.POSITIVE_INFINITY);
+    CSRGraph g = this.getCSR();
+    if (g == null) {
+      this.portalDistances = distances;
+      return;
+    }
+    int[] portalNodes = g.getPortalNodes();
+    for (int i = 0; i < k && i < portalNodes.length; i++) {
+      double[] dist = g.distancesFrom(portalNodes[i], null);
+      for (int j = 0; j < k && j < portalNodes.length; j++) {
+	distances[i*k + j] = CSRGraph.roundDown(dist[portalNodes[j]]);
+      }
+    }
+
+    // a portal A->B comes out at the closest B->A portal node of B, the
+    // same node Graph.add links it to
+    int[] destIndex = new int[k];
+    float[] crossLength = new float[k];
+    for (int i = 0; i < k; i++) {
+      Portal p = (Portal) this.adjPortals.get(i);
+      destIndex[i] = -1;
+      crossLength[i] = p.crossLength;
+      Space dest = p.spaces[1];
+      if (dest == null || dest.getCSR() == null) {
+	continue;
+      }
+      CSRGraph destGraph = dest.getCSR();
+      int node = destGraph.getPortalNode(p);
+      if (node >= 0) {
+	destIndex[i] = dest.adjPortals.indexOf(destGraph.getPortal(node));
+	crossLength[i] = (float) p.getApproximatePosition().distance(destGraph.getPosition(node));
+      }
+    }
+
+    synchronized (this) {
+      for (int i = 0; i < k; i++) {
+	Portal p = (Portal) this.adjPortals.get(i);
+	p.srcIndex = i;
+	p.destIndex = destIndex[i];
+	p.crossLength = crossLength[i];
+      }
+      this.portalDistances = distances;
+    }
+  }
+
+  /**
+   * Return the k*k matrix (k = number of portals) of shortest in-space
+   * distances between this space's portals, row i holding the distances
+   * from portal i, in the order of getPortals(). Unconnected pairs are
+   * infinite. Computed lazily if it was not precomputed, once, by
+   * whichever search asks first.
+   */
+  public float[] getPortalDistances() {
+    this.materialize();
+    float[] distances = this.portalDistances;
+    if (distances == null) {
+      synchronized (this) {
+	if (this.portalDistances == null) {
+	  this.computePortalDistances();
+	}
+	distances = this.portalDistances;
+      }
+    }
+    return distances;
+  }
+
+  // the portal distances as they are, for Snapshot (null if not computed)
+  float[] getStoredPortalDistances() {
+    this.materialize();
+    return this.portalDistances;
+  }
+
+  void setPortalDistances(float[] distances) {
+    this.portalDistances = distances;
+  }
+
   static public String determineType(String attribute) {
       if (attribute.equals(TYPE_GRASS)) {
 	  return TYPE_GRASS;
@@ -0,0 +1,431 @@
+package locationserver;
+
+import java.util.*;
+
+/**
+ * Spatial index of the spaces for point location (getSpace(Location)).
+ * The bounding boxes of the spaces are packed into R-trees with
+ * Sort-Tile-Recursive: one over all spaces, and one for each building
+ * and floor. A query descends only into nodes whose box holds the
+ * point, and runs the point in polygon test (Space.isInside2D) only on
+ * the spaces whose box holds it.
+ *
+ * The answer is the same as a linear scan over the spaces in id order
+ * (the order of the server's room table): of several spaces holding the
+ * point, the one with the lowest id.
+ *
+ * Floors are numbered as by Space.getFloorNumber.
+ */
+public class SpaceIndex {
+
+  private static final int FANOUT = 16;
+
+  // Space.isInside2D takes positions within 0.1 of a boundary point to
+  // be that point, so a position that close outside a space's bounding
+  // box can still be inside it; the boxes are grown by as much
+  private static final double TOLERANCE = 0.1;
+
+  private Space[] spaces;        // by id
+  private double[] boxes;        // minX, minY, maxX, maxY of each space, by id
+  private int[] floors;          // floor number of each space, by id
+  private int[] coverStart;      // by id: the spaces of a lower id whose boxes overlap its box
+  private int[] covers;          // are covers[coverStart[id]] .. covers[coverStart[id + 1] - 1]
+  private Tree all;              // every space
+  private HashMap partitions;    // building + "#" + floor -> Tree
+  private HashMap buildings;     // building -> Vector of the Trees of its floors
+
+  /*
+   * An R-tree in arrays. Nodes 0 .. leaves-1 are leaves, whose children
+   * are spaces; the other nodes have nodes as children. The children of
+   * node n are refs[start[n]] .. refs[start[n] + count[n] - 1].
+   */
+  private static class Tree {
+    double[] box;    // minX, minY, maxX, maxY of each node
+    int[] start;
+    int[] count;
+    int[] refs;
+    int leaves;
+    int root = -1;
+
+    // pack the spaces with the given ids, whose boxes are spaceBoxes[4 * id]
+    Tree(double[] spaceBoxes, int[] ids) {
+      int n = ids.length;
+      int nodes = 0;
+      int level = n;
+      do {
+	level = (level + FANOUT - 1) / FANOUT;
+	nodes += level;
+      } while (level > 1);
+      this.box = new double[4 * nodes];
+      this.start = new int[nodes];
+      this.count = new int[nodes];
+      this.refs = new int[n + nodes];
+      if (n == 0) {
+	return;
+      }
+
+      // the level being packed: its entries and their boxes
+      int[] entries = ids.clone();
+      double[] boxes = new double[4 * n];
+      for (int i = 0; i < n; i++) {
+	System.arraycopy(spaceBoxes, 4 * ids[i], boxes, 4 * i, 4);
+      }
+      int next = 0;     // next node
+      int ref = 0;      // next entry of refs
+      boolean leafLevel = true;
+      while (true) {
+	Integer[] order = strOrder(boxes, entries.length);
+	int first = next;
+	for (int g = 0; g < order.length; g += FANOUT) {
+	  int node = next++;
+	  this.start[node] = ref;
+	  this.count[node] = Math.min(FANOUT, order.length - g);
+	  double[] b = { Double.MAX_VALUE, Double.MAX_VALUE,
+			 -Double.MAX_VALUE, -Double.MAX_VALUE };
+	  for (int k = g; k < g + this.count[node]; k++) {
+	    int e = order[k].intValue();
+	    this.refs[ref++] = entries[e];
+	    b[0] = Math.min(b[0], boxes[4 * e]);
+	    b[1] = Math.min(b[1], boxes[4 * e + 1]);
+	    b[2] = Math.max(b[2], boxes[4 * e + 2]);
+	    b[3] = Math.max(b[3], boxes[4 * e + 3]);
+	  }
+	  System.arraycopy(b, 0, this.box, 4 * node, 4);
+	}
+	if (leafLevel) {
+	  this.leaves = next;
+	  leafLevel = false;
+	}
+	if (next - first == 1) {
+	  this.root = first;
+	  return;
+	}
+	// the nodes just made are the entries of the next level up
+	entries = new int[next - first];
+	boxes = new double[4 * entries.length];
+	for (int i = 0; i < entries.length; i++) {
+	  entries[i] = first + i;
+	  System.arraycopy(this.box, 4 * (first + i), boxes, 4 * i, 4);
+	}
+      }
+    }
+
+    boolean holds(int node, double x, double y) {
+      int b = 4 * node;
+      return this.box[b] <= x && x <= this.box[b + 2] &&
+	this.box[b + 1] <= y && y <= this.box[b + 3];
+    }
+  }
+
+  /*
+   * Sort-Tile-Recursive order of n boxes: sorted by the x of their
+   * centers into slices of about sqrt(n / FANOUT) * FANOUT boxes, each
+   * slice sorted by the y of their centers.
+   */
+  private static Integer[] strOrder(final double[] boxes, int n) {
+    Integer[] order = new Integer[n];
+    for (int i = 0; i < n; i++) {
+      order[i] = Integer.valueOf(i);
+    }
+    Arrays.sort(order, new Comparator() {
+	public int compare(Object a, Object b) {
+	  return Double.compare(center(boxes, ((Integer) a).intValue(), 0),
+				center(boxes, ((Integer) b).intValue(), 0));
+	}
+      });
+    int slices = (int) Math.ceil(Math.sqrt((double) n / FANOUT));
+    int perSlice = slices * FANOUT;
+    Comparator byY = new Comparator() {
+	public int compare(Object a, Object b) {
+	  return Double.compare(center(boxes, ((Integer) a).intValue(), 1),
+				center(boxes, ((Integer) b).intValue(), 1));
+	}
+      };
+    for (int s = 0; s < n; s += perSlice) {
+      Arrays.sort(order, s, Math.min(n, s + perSlice), byY);
+    }
+    return order;
+  }
+
+  private static double center(double[] boxes, int i, int axis) {
+    return (boxes[4 * i + axis] + boxes[4 * i + axis + 2]) / 2;
+  }
+
+  /**
+   * Index the given spaces, which must have ids 0 .. spaces.size()-1.
+   */
+  public SpaceIndex(Collection spaceCollection) {
+    this.spaces = new Space[spaceCollection.size()];
+    Iterator i = spaceCollection.iterator();
+    while (i.hasNext()) {
+      Space s = (Space) i.next();
+      this.spaces[s.getId()] = s;
+    }
+
+    this.boxes = new double[4 * this.spaces.length];
+    for (int id = 0; id < this.spaces.length; id++) {
+      Position[] points = this.spaces[id].getBoundaries().getPoints();
+      double[] b = { Double.MAX_VALUE, Double.MAX_VALUE,
+		     -Double.MAX_VALUE, -Double.MAX_VALUE };
+      for (int j = 0; j < points.length; j++) {
+	b[0] = Math.min(b[0], points[j].x);
+	b[1] = Math.min(b[1], points[j].y);
+	b[2] = Math.max(b[2], points[j].x);
+	b[3] = Math.max(b[3], points[j].y);
+      }
+      this.boxes[4 * id] = b[0] - TOLERANCE;
+      this.boxes[4 * id + 1] = b[1] - TOLERANCE;
+      this.boxes[4 * id + 2] = b[2] + TOLERANCE;
+      this.boxes[4 * id + 3] = b[3] + TOLERANCE;
+    }
+
+    int[] ids = new int[this.spaces.length];
+    this.floors = new int[this.spaces.length];
+    HashMap groups = new HashMap(); // partition key -> Vector of Integer ids
+    for (int id = 0; id < this.spaces.length; id++) {
+      ids[id] = id;
+      this.floors[id] = this.spaces[id].getFloorNumber();
+      String key = partitionKey(this.spaces[id].getBuildingName(), this.floors[id]);
+      Vector group = (Vector) groups.get(key);
+      if (group == null) {
+	group = new Vector();
+	groups.put(key, group);
+      }
+      group.add(Integer.valueOf(id));
+    }
+    this.all = new Tree(this.boxes, ids);
+    this.coverStart = new int[this.spaces.length + 1];
+    int[] found = new int[64];
+    for (int id = 0; id < this.spaces.length; id++) {
+      this.coverStart[id + 1] = this.coverStart[id];
+      found = this.overlapsLower(this.all.root, id, found);
+    }
+    this.covers = new int[this.coverStart[this.spaces.length]];
+    System.arraycopy(found, 0, this.covers, 0, this.covers.length);
+
+    this.partitions = new HashMap();
+    this.buildings = new HashMap();
+    i = groups.entrySet().iterator();
+    while (i.hasNext()) {
+      Map.Entry e = (Map.Entry) i.next();
+      Vector group = (Vector) e.getValue();
+      int[] groupIds = new int[group.size()];
+      for (int j = 0; j < groupIds.length; j++) {
+	groupIds[j] = ((Integer) group.get(j)).intValue();
+      }
+      Tree t = new Tree(this.boxes, groupIds);
+      this.partitions.put(e.getKey(), t);
+      String building = this.spaces[groupIds[0]].getBuildingName();
+      Vector trees = (Vector) this.buildings.get(building);
+      if (trees == null) {
+	trees = new Vector();
+	this.buildings.put(building, trees);
+      }
+      trees.add(t);
+    }
+  }
+
+  private static String partitionKey(String building, int floor) {
+    return building + "#" + floor;
+  }
+
+  /** Number of partitions (buildings and floors). */
+  public int getPartitionCount() {
+    return this.partitions.size();
+  }
+
+  /**
+   * Number of pairs of spaces whose boxes overlap (see locateAround).
+   */
+  public int getCoverCount() {
+    return this.covers.length;
+  }
+
+  /** Return the space holding a position, or null. */
+  public Space locate(Position p) {
+    int id = locate(this.all, this.all.root, p, Integer.MAX_VALUE);
+    return (id == Integer.MAX_VALUE) ? null : this.spaces[id];
+  }
+
+  /**
+   * Return the space of the given building and floor holding a position,
+   * or null.
+   */
+  public Space locate(Position p, String building, int floor) {
+    Tree t = (Tree) this.partitions.get(partitionKey(building, floor));
+    if (t == null) {
+      return null;
+    }
+    int id = locate(t, t.root, p, Integer.MAX_VALUE);
+    return (id == Integer.MAX_VALUE) ? null : this.spaces[id];
+  }
+
+  /**
+   * Return the space holding a position, as locate(p) would, if it is
+   * near or one of its neighbors; else null, and the position must be
+   * located with locate. A space holding the position is the answer
+   * when none of the spaces of a lower id whose boxes overlap its box
+   * holds it too. If building is not null, only spaces of that building
+   * and floor are taken, as in locate(p, building, floor).
+   */
+  public Space locateAround(Position p, Space near, String building, int floor) {
+    int id = this.firstHolding(near, p, building, floor);
+    if (id == -1) {
+      Vector neighbors = near.getNeighbors();
+      for (int i = 0; neighbors != null && i < neighbors.size() && id == -1; i++) {
+	id = this.firstHolding((Space) neighbors.get(i), p, building, floor);
+      }
+    }
+    return (id < 0) ? null : this.spaces[id];
+  }
+
+  // the id of s, if it is an indexed space of the building and floor (if
+  // any) holding p; -2 if a space of a lower id might hold p as well;
+  // else -1
+  private int firstHolding(Space s, Position p, String building, int floor) {
+    int id = s.getId();
+    if (id < 0 || id >= this.spaces.length || this.spaces[id] != s ||
+	!this.holds(id, p) || !this.inPartition(id, building, floor) ||
+	!s.isInside2D(p)) {
+      return -1;
+    }
+    for (int i = this.coverStart[id]; i < this.coverStart[id + 1]; i++) {
+      int c = this.covers[i];
+      if (this.holds(c, p) && this.inPartition(c, building, floor) &&
+	  this.spaces[c].isInside2D(p)) {
+	return -2;
+      }
+    }
+    return id;
+  }
+
+  private boolean inPartition(int id, String building, int floor) {
+    return building == null ||
+      (this.floors[id] == floor && this.spaces[id].getBuildingName().equals(building));
+  }
+
+  // add the spaces of an id below id under node whose boxes overlap its
+  // box to found, from coverStart[id + 1] on; returns found, grown if
+  // need be
+  private int[] overlapsLower(int node, int id, int[] found) {
+    if (node < 0) {
+      return found;
+    }
+    double[] box = this.all.box;
+    int a = 4 * node;
+    int b = 4 * id;
+    if (box[a] > this.boxes[b + 2] || this.boxes[b] > box[a + 2] ||
+	box[a + 1] > this.boxes[b + 3] || this.boxes[b + 1] > box[a + 3]) {
+      return found;
+    }
+    int end = this.all.start[node] + this.all.count[node];
+    for (int i = this.all.start[node]; i < end; i++) {
+      int child = this.all.refs[i];
+      if (node >= this.all.leaves) {
+	found = this.overlapsLower(child, id, found);
+      } else if (child < id) {
+	int c = 4 * child;
+	if (this.boxes[c] <= this.boxes[b + 2] && this.boxes[b] <= this.boxes[c + 2] &&
+	    this.boxes[c + 1] <= this.boxes[b + 3] && this.boxes[b + 1] <= this.boxes[c + 3]) {
+	  if (this.coverStart[id + 1] == found.length) {
+	    int[] grown = new int[2 * found.length];
+	    System.arraycopy(found, 0, grown, 0, found.length);
+	    found = grown;
+	  }
+	  found[this.coverStart[id + 1]++] = child;
+	}
+      }
+    }
+    return found;
+  }
+
+  /** The space with the given id. */
+  public Space getSpace(int id) {
+    return this.spaces[id];
+  }
+
+  /**
+   * The ids of the spaces whose bounding boxes (grown by 0.1, see
+   * TOLERANCE) overlap the given box, in id order from id first on, at
+   * most max + 1 of them so that the caller can tell whether there are
+   * more than max. If building is not null, only its spaces are taken,
+   * and of those only the ones on the given floor unless floor is
+   * SpacePage.ANY_FLOOR.
+   */
+  public int[] clip(double minX, double minY, double maxX, double maxY,
+		    String building, int floor, int first, int max) {
+    double[] box = { minX, minY, maxX, maxY };
+    int[] found = new int[64];
+    found[0] = 1; // found[0] is the next free entry
+    if (building == null) {
+      found = this.clip(this.all, this.all.root, box, first, found);
+    } else if (floor != SpacePage.ANY_FLOOR) {
+      Tree t = (Tree) this.partitions.get(partitionKey(building, floor));
+      if (t != null) {
+	found = this.clip(t, t.root, box, first, found);
+      }
+    } else if (this.buildings.get(building) != null) {
+      Vector trees = (Vector) this.buildings.get(building);
+      for (int i = 0; i < trees.size(); i++) {
+	Tree t = (Tree) trees.get(i);
+	found = this.clip(t, t.root, box, first, found);
+      }
+    }
+    Arrays.sort(found, 1, found[0]);
+    int[] ids = new int[Math.min(found[0] - 1, max + 1)];
+    System.arraycopy(found, 1, ids, 0, ids.length);
+    return ids;
+  }
+
+  // add the ids from first on of the spaces under node whose boxes
+  // overlap box to found; returns found, grown if need be
+  private int[] clip(Tree t, int node, double[] box, int first, int[] found) {
+    if (node < 0 || t.box[4 * node] > box[2] || box[0] > t.box[4 * node + 2] ||
+	t.box[4 * node + 1] > box[3] || box[1] > t.box[4 * node + 3]) {
+      return found;
+    }
+    int end = t.start[node] + t.count[node];
+    for (int i = t.start[node]; i < end; i++) {
+      int child = t.refs[i];
+      if (node >= t.leaves) {
+	found = this.clip(t, child, box, first, found);
+      } else if (child >= first) {
+	int c = 4 * child;
+	if (this.boxes[c] <= box[2] && box[0] <= this.boxes[c + 2] &&
+	    this.boxes[c + 1] <= box[3] && box[1] <= this.boxes[c + 3]) {
+	  if (found[0] == found.length) {
+	    int[] grown = new int[2 * found.length];
+	    System.arraycopy(found, 0, grown, 0, found.length);
+	    found = grown;
+	  }
+	  found[found[0]++] = child;
+	}
+      }
+    }
+    return found;
+  }
+
+  private boolean holds(int id, Position p) {
+    int b = 4 * id;
+    return this.boxes[b] <= p.x && p.x <= this.boxes[b + 2] &&
+      this.boxes[b + 1] <= p.y && p.y <= this.boxes[b + 3];
+  }
+
+  // the lowest id below best of the spaces under node holding p, or best
+  private int locate(Tree t, int node, Position p, int best) {
+    if (node < 0 || !t.holds(node, p.x, p.y)) {
+      return best;
+    }
+    int end = t.start[node] + t.count[node];
+    for (int i = t.start[node]; i < end; i++) {
+      int child = t.refs[i];
+      if (node >= t.leaves) {
+	best = locate(t, child, p, best);
+      } else if (child < best && this.holds(child, p) &&
+		 this.spaces[child].isInside2D(p)) {
+	best = child;
+      }
+    }
+    return best;
+  }
+}
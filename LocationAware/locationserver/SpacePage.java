@@ -0,0 +1,107 @@
+package locationserver;
+
+import java.io.*;
+
+/**
+ * One page of the spaces in a map view, as returned by
+ * LocationServer.getSpacesInView. Rather than whole Space objects, with
+ * their triangles and graphs, a page carries only what a map draws: the
+ * id, name and type of each space and the x and y of its boundary.
+ * Coordinates are floats relative to the lower left corner of the view
+ * (getOriginX(), getOriginY()), which keeps them accurate to well under
+ * a unit across any view of the campus.
+ *
+ * Spaces come in id order. If getNextCursor() is not -1, there are more
+ * spaces in the view; pass it as the cursor of the next call for them.
+ */
+public class SpacePage implements Serializable {
+
+  /** Floor filter of getSpacesInView taking every floor. */
+  public static final int ANY_FLOOR = Integer.MIN_VALUE;
+
+  private double originX;
+  private double originY;
+  private int[] ids;
+  private String[] names;
+  private String[] types;
+  private int[] pointStart;  // points of space i are pointStart[i] .. pointStart[i + 1] - 1
+  private float[] coords;    // x, y of each point, relative to the origin
+  private int nextCursor = -1;
+
+  /**
+   * Make a page of the given spaces, with coordinates relative to
+   * (originX, originY).
+   */
+  public SpacePage(double originX, double originY, Space[] spaces, int[] ids) {
+    this.originX = originX;
+    this.originY = originY;
+    this.ids = ids;
+    this.names = new String[spaces.length];
+    this.types = new String[spaces.length];
+    this.pointStart = new int[spaces.length + 1];
+    Position[][] points = new Position[spaces.length][];
+    for (int i = 0; i < spaces.length; i++) {
+      this.names[i] = spaces[i].getName();
+      this.types[i] = spaces[i].getType();
+      points[i] = spaces[i].getBoundaries().getPoints();
+      this.pointStart[i + 1] = this.pointStart[i] + points[i].length;
+    }
+    this.coords = new float[2 * this.pointStart[spaces.length]];
+    for (int i = 0; i < spaces.length; i++) {
+      int c = 2 * this.pointStart[i];
+      for (int j = 0; j < points[i].length; j++) {
+	this.coords[c++] = (float) (points[i][j].x - originX);
+	this.coords[c++] = (float) (points[i][j].y - originY);
+      }
+    }
+  }
+
+  public double getOriginX() {
+    return this.originX;
+  }
+
+  public double getOriginY() {
+    return this.originY;
+  }
+
+  /** Number of spaces in this page. */
+  public int size() {
+    return this.ids.length;
+  }
+
+  /** The id of the i-th space, as used by locateSpaces and getSpaceNames. */
+  public int getId(int i) {
+    return this.ids[i];
+  }
+
+  public String getName(int i) {
+    return this.names[i];
+  }
+
+  public String getType(int i) {
+    return this.types[i];
+  }
+
+  public int getNumPoints(int i) {
+    return this.pointStart[i + 1] - this.pointStart[i];
+  }
+
+  /** The x of the j-th boundary point of the i-th space. */
+  public double getX(int i, int j) {
+    return this.originX + this.coords[2 * (this.pointStart[i] + j)];
+  }
+
+  /** The y of the j-th boundary point of the i-th space. */
+  public double getY(int i, int j) {
+    return this.originY + this.coords[2 * (this.pointStart[i] + j) + 1];
+  }
+
+  /** The cursor for the next page, or -1 if this is the last one. */
+  public int getNextCursor() {
+    return this.nextCursor;
+  }
+
+  public void setNextCursor(int cursor) {
+    this.nextCursor = cursor;
+  }
+}
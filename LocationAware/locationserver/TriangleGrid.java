@@ -0,0 +1,132 @@
+package locationserver;
+
+import java.util.*;
+
+/**
+ * Uniform grid over the triangles of a space, for finding the triangle
+ * whose closest edge is nearest to a point (Triangle.closestEdge). Each
+ * triangle is entered in every cell its bounding box overlaps; a query
+ * scans rings of cells outward from the point until no unscanned
+ * triangle can be closer than the best one found.
+ *
+ * The answer is the same as a linear scan over the triangles in order:
+ * of several equally close triangles, the one with the lowest index.
+ */
+public class TriangleGrid {
+
+    private Triangle[] triangles;
+    private double minX, minY;   // lower left corner of the grid
+    private double cell;         // cell width
+    private int nx, ny;          // number of cells in x and y
+    private int[] first;         // cell -> first entry in entries, length nx*ny+1
+    private int[] entries;       // triangle indices, grouped by cell
+    private int[] seen;          // triangle -> last query that looked at it
+    private int query = 0;
+
+    public TriangleGrid(Vector triangleVec) {
+	int n = triangleVec.size();
+	triangles = new Triangle[n];
+	double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+	minX = Double.MAX_VALUE;
+	minY = Double.MAX_VALUE;
+	for (int i = 0; i < n; i++) {
+	    Triangle t = (Triangle)triangleVec.get(i);
+	    triangles[i] = t;
+	    minX = Math.min(minX, Math.min(t.p1.x, Math.min(t.p2.x, t.p3.x)));
+	    minY = Math.min(minY, Math.min(t.p1.y, Math.min(t.p2.y, t.p3.y)));
+	    maxX = Math.max(maxX, Math.max(t.p1.x, Math.max(t.p2.x, t.p3.x)));
+	    maxY = Math.max(maxY, Math.max(t.p1.y, Math.max(t.p2.y, t.p3.y)));
+	}
+	seen = new int[n];
+	if (n == 0) {
+	    nx = ny = 0;
+	    first = new int[1];
+	    entries = new int[0];
+	    return;
+	}
+
+	// about one cell per triangle
+	double extent = Math.max(maxX - minX, maxY - minY);
+	int side = (int)Math.ceil(Math.sqrt(n));
+	cell = (extent > 0) ? extent / side : 1.0;
+	nx = Math.min(side, (int)((maxX - minX) / cell) + 1);
+	ny = Math.min(side, (int)((maxY - minY) / cell) + 1);
+
+	// count, then fill, the entries of each cell
+	first = new int[nx * ny + 1];
+	for (int pass = 0; pass < 2; pass++) {
+	    int[] fill = (pass == 0) ? null : new int[nx * ny];
+	    for (int i = 0; i < n; i++) {
+		Triangle t = triangles[i];
+		int x0 = cellX(Math.min(t.p1.x, Math.min(t.p2.x, t.p3.x)));
+		int x1 = cellX(Math.max(t.p1.x, Math.max(t.p2.x, t.p3.x)));
+		int y0 = cellY(Math.min(t.p1.y, Math.min(t.p2.y, t.p3.y)));
+		int y1 = cellY(Math.max(t.p1.y, Math.max(t.p2.y, t.p3.y)));
+		for (int cx = x0; cx <= x1; cx++) {
+		    for (int cy = y0; cy <= y1; cy++) {
+			int c = cy * nx + cx;
+			if (pass == 0) first[c + 1]++;
+			else entries[first[c] + fill[c]++] = i;
+		    }
+		}
+	    }
+	    if (pass == 0) {
+		for (int c = 0; c < nx * ny; c++) first[c + 1] += first[c];
+		entries = new int[first[nx * ny]];
+	    }
+	}
+    }
+
+    private int cellX(double x) {
+	return Math.max(0, Math.min(nx - 1, (int)Math.floor((x - minX) / cell)));
+    }
+
+    private int cellY(double y) {
+	return Math.max(0, Math.min(ny - 1, (int)Math.floor((y - minY) / cell)));
+    }
+
+    /**
+     * The triangle with the smallest Triangle.closestEdge distance to p,
+     * or null if there are no triangles.
+     */
+    public Triangle getClosest(Position p) {
+	if (triangles.length == 0) return null;
+	query++;
+	int cx = cellX(p.x), cy = cellY(p.y);
+	double minDistance = Double.MAX_VALUE;
+	int best = -1;
+
+	for (int r = 0; ; r++) {
+	    int x0 = cx - r, x1 = cx + r, y0 = cy - r, y1 = cy + r;
+	    for (int x = Math.max(0, x0); x <= Math.min(nx - 1, x1); x++) {
+		for (int y = Math.max(0, y0); y <= Math.min(ny - 1, y1); y++) {
+		    // only the cells on ring r
+		    if (x != x0 && x != x1 && y != y0 && y != y1) continue;
+		    int c = y * nx + x;
+		    for (int e = first[c]; e < first[c + 1]; e++) {
+			int i = entries[e];
+			if (seen[i] == query) continue;
+			seen[i] = query;
+			double distance = triangles[i].closestEdge(p);
+			if (distance < minDistance ||
+			    (distance == minDistance && i < best)) {
+			    minDistance = distance;
+			    best = i;
+			}
+		    }
+		}
+	    }
+
+	    // triangles not seen yet lie wholly outside the scanned cells
+	    double bound = Double.POSITIVE_INFINITY;
+	    if (x0 > 0)      bound = Math.min(bound, p.x - (minX + x0 * cell));
+	    if (x1 < nx - 1) bound = Math.min(bound, (minX + (x1 + 1) * cell) - p.x);
+	    if (y0 > 0)      bound = Math.min(bound, p.y - (minY + y0 * cell));
+	    if (y1 < ny - 1) bound = Math.min(bound, (minY + (y1 + 1) * cell) - p.y);
+	    if (bound == Double.POSITIVE_INFINITY) break;
+	    // closestEdge is a squared distance; leave room for rounding
+	    if (best >= 0 && bound > 0 && bound * bound * (1 - 1e-9) > minDistance) break;
+	}
+	return triangles[best];
+    }
+}